@@ -30,7 +30,8 @@ public class MainActivity extends AppCompatActivity {
                 .putString(TEST_KEY_VALUE_STRING, "testString")
                 .putFloat(TEST_KEY_VALUE_FLOAT, 1.5f)
                 .putLong(TEST_KEY_VALUE_LONG, 10L)
-                .putBoolean(TEST_KEY_VALUE_BOOLEAN, false);
+                .putBoolean(TEST_KEY_VALUE_BOOLEAN, false)
+                .apply();
 
         //Read values
         Log.i("MainActivity", TEST_KEY_VALUE_STRING + " => " + NPreferences.getString(TEST_KEY_VALUE_STRING, TEST_KEY_VALUE_STRING));
@@ -39,7 +40,7 @@ public class MainActivity extends AppCompatActivity {
         Log.i("MainActivity", TEST_KEY_VALUE_BOOLEAN + " => " + NPreferences.getBoolean(TEST_KEY_VALUE_BOOLEAN, true));
 
         //Clear data
-        NPreferences.edit().clear();
+        NPreferences.edit().clear().apply();
 
         //Call utils example
         utilsExample();
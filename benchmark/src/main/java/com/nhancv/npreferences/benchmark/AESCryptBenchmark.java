@@ -0,0 +1,68 @@
+package com.nhancv.npreferences.benchmark;
+
+import com.nhancv.npreferences.AESCrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link AESCrypt} for payloads from a typical preference value up to a large blob, both with allocated results and into caller supplied
+ * buffers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AESCryptBenchmark {
+
+    @Param({"16", "256", "4096", "65536"})
+    public int payloadSize;
+
+    private byte[] plainText;
+    private byte[] cipherText;
+    private byte[] output;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        Pkcs7PaddingProvider.install();
+        plainText = new byte[payloadSize];
+        new Random(42).nextBytes(plainText);
+        cipherText = AESCrypt.encrypt(Stores.PASSWORD, plainText);
+        output = new byte[AESCrypt.getEncryptedSize(payloadSize)];
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws GeneralSecurityException {
+        return AESCrypt.encrypt(Stores.PASSWORD, plainText);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws GeneralSecurityException {
+        return AESCrypt.decrypt(Stores.PASSWORD, cipherText);
+    }
+
+    @Benchmark
+    public int encryptInto() throws GeneralSecurityException {
+        return AESCrypt.encrypt(Stores.PASSWORD, plainText, 0, plainText.length, output, 0);
+    }
+
+    @Benchmark
+    public int decryptInto() throws GeneralSecurityException {
+        return AESCrypt.decrypt(Stores.PASSWORD, cipherText, 0, cipherText.length, output, 0);
+    }
+}
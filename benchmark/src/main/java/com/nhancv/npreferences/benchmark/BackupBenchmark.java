@@ -0,0 +1,87 @@
+package com.nhancv.npreferences.benchmark;
+
+import com.nhancv.npreferences.NPreferences;
+import com.nhancv.npreferences.NPreferencesStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving a whole store through a backup with exportTo and importFrom, against copying it key by key into another store. Run with
+ * {@code -prof gc} to compare the allocation of both paths.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BackupBenchmark {
+
+    private static final String BACKUP_PASSWORD = "backup password";
+
+    @Param({"1000", "10000"})
+    public int entries;
+
+    private NPreferencesStore source;
+    private NPreferencesStore target;
+    private String[] keys;
+    private byte[] backup;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Stores.create(Stores.DEFAULT);
+        target = Stores.create(Stores.DEFAULT);
+        keys = new String[entries];
+        NPreferences.EncryptedEditor editor = source.edit();
+        for (int i = 0; i < entries; i++) {
+            keys[i] = "backup_" + i;
+            editor.putString(keys[i], "value of the preference number " + i);
+        }
+        editor.commit();
+        source.exportTo(out, BACKUP_PASSWORD);
+        backup = out.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.close();
+        target.close();
+    }
+
+    @Benchmark
+    public int exportTo() throws IOException {
+        out.reset();
+        return source.exportTo(out, BACKUP_PASSWORD);
+    }
+
+    @Benchmark
+    public int importFrom() throws IOException {
+        return target.importFrom(new ByteArrayInputStream(backup), BACKUP_PASSWORD);
+    }
+
+    @Benchmark
+    public boolean copyByKey() {
+        NPreferences.EncryptedEditor editor = target.edit();
+        for (String key : keys) {
+            editor.putString(key, source.getString(key, null));
+        }
+        return editor.commit();
+    }
+}
@@ -0,0 +1,93 @@
+package com.nhancv.npreferences.benchmark;
+
+import com.nhancv.npreferences.NPreferencesStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of one shared store from one thread, from several threads, and from several threads while another one writes. Comparing the per-thread
+ * throughput of the runs shows how much the read path contends.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+    private static final int THREADS = 4;
+
+    @State(Scope.Benchmark)
+    public static class SharedStore {
+
+        @Param({Stores.DEFAULT, Stores.CACHE, Stores.SNAPSHOT})
+        public String readModel;
+
+        NPreferencesStore store;
+
+        @Setup
+        public void setUp() throws IOException {
+            store = Stores.create(readModel);
+        }
+
+        @TearDown
+        public void tearDown() {
+            store.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        int nextIndex() {
+            next = (next + 1) & (Stores.KEY_COUNT - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int readSingleThread(SharedStore shared, Cursor cursor) {
+        return shared.store.getInt(Stores.INT_KEYS[cursor.nextIndex()], -1);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public int readMultiThread(SharedStore shared, Cursor cursor) {
+        return shared.store.getInt(Stores.INT_KEYS[cursor.nextIndex()], -1);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(THREADS - 1)
+    public int reader(SharedStore shared, Cursor cursor) {
+        return shared.store.getInt(Stores.INT_KEYS[cursor.nextIndex()], -1);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void writer(SharedStore shared, Cursor cursor) {
+        int index = cursor.nextIndex();
+        shared.store.edit().putInt(Stores.INT_KEYS[index], index).apply();
+    }
+}
@@ -0,0 +1,85 @@
+package com.nhancv.npreferences.benchmark;
+
+import com.nhancv.npreferences.NPreferencesStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded throughput of the read and write paths of a store, for each read model. Run with -prof gc to also get the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NPreferencesBenchmark {
+
+    @Param({Stores.DEFAULT, Stores.CACHE, Stores.SNAPSHOT})
+    public String readModel;
+
+    private NPreferencesStore store;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        store = Stores.create(readModel);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (Stores.KEY_COUNT - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int getInt() {
+        return store.getInt(Stores.INT_KEYS[nextIndex()], -1);
+    }
+
+    @Benchmark
+    public String getString() {
+        return store.getString(Stores.STRING_KEYS[nextIndex()], null);
+    }
+
+    @Benchmark
+    public int getMissing() {
+        return store.getInt("missing", -1);
+    }
+
+    @Benchmark
+    public Map<String, Object> getAll() {
+        return store.getAll();
+    }
+
+    @Benchmark
+    public void putIntApply() {
+        int index = nextIndex();
+        store.edit().putInt(Stores.INT_KEYS[index], index).apply();
+    }
+
+    @Benchmark
+    public boolean putStringCommit() {
+        int index = nextIndex();
+        return store.edit().putString(Stores.STRING_KEYS[index], "updated value of the preference number " + index).commit();
+    }
+}
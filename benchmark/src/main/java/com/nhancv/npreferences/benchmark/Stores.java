@@ -0,0 +1,81 @@
+package com.nhancv.npreferences.benchmark;
+
+import com.nhancv.npreferences.NPreferences;
+import com.nhancv.npreferences.NPreferencesStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Creates the stores measured by the benchmarks.
+ */
+final class Stores {
+
+    static final String PASSWORD = "F/*-7lk(*(&#KD(S(()";
+    static final String NAME = "benchmark";
+    static final int KEY_COUNT = 64;
+    //built once so the benchmarks do not measure string concatenation
+    static final String[] INT_KEYS = keys("int_");
+    static final String[] STRING_KEYS = keys("string_");
+
+    //values of the readModel parameter
+    static final String DEFAULT = "default";
+    static final String CACHE = "cache";
+    static final String SNAPSHOT = "snapshot";
+
+    //values of the valueFormat parameter
+    static final String CBC = "cbc";
+    static final String GCM = "gcm";
+
+    private Stores() {
+    }
+
+    /**
+     * @param readModel - {@link #DEFAULT}, {@link #CACHE} or {@link #SNAPSHOT}
+     * @return A store backed by {@link InMemorySharedPreferences}, holding {@link #KEY_COUNT} int and String entries
+     */
+    static NPreferencesStore create(String readModel) throws IOException {
+        return create(context(), readModel, CBC);
+    }
+
+    /**
+     * @param context     - The context the store is opened with, see {@link #context()}
+     * @param readModel   - {@link #DEFAULT}, {@link #CACHE} or {@link #SNAPSHOT}
+     * @param valueFormat - {@link #CBC} or {@link #GCM}
+     * @return A store backed by the preferences {@link #NAME} of the context, holding {@link #KEY_COUNT} int and String entries
+     */
+    static NPreferencesStore create(BenchmarkContext context, String readModel, String valueFormat) {
+        Pkcs7PaddingProvider.install();
+        NPreferencesStore store = new NPreferencesStore.Builder(context)
+                .name(NAME)
+                .password(PASSWORD)
+                .cacheEnabled(CACHE.equals(readModel))
+                .snapshotReads(SNAPSHOT.equals(readModel))
+                .authenticatedValues(GCM.equals(valueFormat))
+                .build();
+        NPreferences.EncryptedEditor editor = store.edit();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            editor.putInt(INT_KEYS[i], i).putString(STRING_KEYS[i], "value of the preference number " + i);
+        }
+        editor.commit();
+        return store;
+    }
+
+    /**
+     * @return A context with its files in a new temporary directory
+     */
+    static BenchmarkContext context() throws IOException {
+        File filesDir = Files.createTempDirectory("npreferences-benchmark").toFile();
+        filesDir.deleteOnExit();
+        return new BenchmarkContext(filesDir);
+    }
+
+    private static String[] keys(String prefix) {
+        String[] keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = prefix + i;
+        }
+        return keys;
+    }
+}
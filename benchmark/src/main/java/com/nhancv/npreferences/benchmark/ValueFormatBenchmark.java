@@ -0,0 +1,120 @@
+package com.nhancv.npreferences.benchmark;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.nhancv.npreferences.NPreferencesStore;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the CBC and the authenticated GCM value format on the read and write paths, and of reading a value that was changed in the file: GCM
+ * rejects it with its tag, CBC decrypts it into garbage unless the padding happens to break. The stored characters per entry of each format are
+ * reported as the storedCharsPerValue counter of {@link #getString(StoredSize)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueFormatBenchmark {
+
+    private static final String TAMPERED_KEY = "tampered";
+
+    @Param({Stores.CBC, Stores.GCM})
+    public String valueFormat;
+
+    private NPreferencesStore store;
+    private int next;
+    private long storedCharsPerValue;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkContext context = Stores.context();
+        store = Stores.create(context, Stores.DEFAULT, valueFormat);
+        SharedPreferences backend = context.getSharedPreferences(Stores.NAME, Context.MODE_PRIVATE);
+        Map<String, ?> entries = backend.getAll();
+        long chars = 0;
+        for (Object value : entries.values()) {
+            chars += value.toString().length();
+        }
+        storedCharsPerValue = chars / entries.size();
+
+        //the one entry not in the snapshot is the one just written, a character in its middle is changed behind the store
+        Map<String, ?> before = new HashMap<>(entries);
+        store.edit().putString(TAMPERED_KEY, "value of the preference that is changed in the file").commit();
+        for (Map.Entry<String, ?> entry : backend.getAll().entrySet()) {
+            if (before.containsKey(entry.getKey())) continue;
+            char[] text = entry.getValue().toString().toCharArray();
+            int middle = text.length / 2;
+            text[middle] = text[middle] == 'A' ? 'B' : 'A';
+            backend.edit().putString(entry.getKey(), new String(text)).commit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (Stores.KEY_COUNT - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int getInt() {
+        return store.getInt(Stores.INT_KEYS[nextIndex()], -1);
+    }
+
+    @Benchmark
+    public String getString(StoredSize size) {
+        return store.getString(Stores.STRING_KEYS[nextIndex()], null);
+    }
+
+    @Benchmark
+    public String getTampered() {
+        return store.getString(TAMPERED_KEY, null);
+    }
+
+    @Benchmark
+    public void putIntApply() {
+        int index = nextIndex();
+        store.edit().putInt(Stores.INT_KEYS[index], index).apply();
+    }
+
+    /**
+     * Size of the stored values of the format, reported with the results of the benchmark it is passed to.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class StoredSize {
+
+        public long storedCharsPerValue;
+
+        //counters are read at the end of each iteration, and not reset by JMH
+        @Setup(Level.Iteration)
+        public void setUp(ValueFormatBenchmark benchmark) {
+            storedCharsPerValue = benchmark.storedCharsPerValue;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the parts of android.content.Context used by npreferences.
+ */
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract String getPackageName();
+
+    public abstract Context getApplicationContext();
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract File getFilesDir();
+}
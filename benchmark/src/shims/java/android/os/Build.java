@@ -0,0 +1,27 @@
+package android.os;
+
+/**
+ * JVM stand-in for the parts of android.os.Build used by npreferences, reporting a device with every API the library checks for.
+ */
+public final class Build {
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+
+        public static final int SDK_INT = VERSION_CODES.O;
+
+        private VERSION() {
+        }
+    }
+
+    public static final class VERSION_CODES {
+
+        public static final int KITKAT = 19;
+        public static final int O = 26;
+
+        private VERSION_CODES() {
+        }
+    }
+}
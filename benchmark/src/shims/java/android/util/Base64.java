@@ -0,0 +1,46 @@
+package android.util;
+
+/**
+ * JVM implementation of the parts of android.util.Base64 used by npreferences.
+ */
+public class Base64 {
+
+    public static final int DEFAULT = 0;
+    public static final int NO_PADDING = 1;
+    public static final int NO_WRAP = 2;
+    public static final int CRLF = 4;
+    public static final int URL_SAFE = 8;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        java.util.Base64.Encoder encoder;
+        if ((flags & URL_SAFE) != 0) {
+            encoder = java.util.Base64.getUrlEncoder();
+        } else if ((flags & NO_WRAP) != 0) {
+            encoder = java.util.Base64.getEncoder();
+        } else {
+            encoder = java.util.Base64.getMimeEncoder(76, (flags & CRLF) != 0 ? new byte[]{'\r', '\n'} : new byte[]{'\n'});
+        }
+        if ((flags & NO_PADDING) != 0) encoder = encoder.withoutPadding();
+        return encoder.encodeToString(input);
+    }
+
+    public static byte[] encode(byte[] input, int flags) {
+        return encodeToString(input, flags).getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    public static byte[] decode(String str, int flags) {
+        try {
+            //android accepts both alphabets and ignores line breaks
+            return java.util.Base64.getMimeDecoder().decode(str.replace('-', '+').replace('_', '/'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("bad base-64", e);
+        }
+    }
+
+    public static byte[] decode(byte[] input, int flags) {
+        return decode(new String(input, java.nio.charset.StandardCharsets.US_ASCII), flags);
+    }
+}
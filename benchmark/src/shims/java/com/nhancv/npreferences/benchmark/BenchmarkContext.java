@@ -0,0 +1,46 @@
+package com.nhancv.npreferences.benchmark;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Context} handing out one {@link InMemorySharedPreferences} per name, with its files in a temporary directory.
+ */
+public class BenchmarkContext extends Context {
+
+    private final Map<String, SharedPreferences> preferences = new HashMap<>();
+    private final File filesDir;
+
+    public BenchmarkContext(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.nhancv.npreferences.benchmark";
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences sharedPreferences = preferences.get(name);
+        if (sharedPreferences == null) {
+            sharedPreferences = new InMemorySharedPreferences();
+            preferences.put(name, sharedPreferences);
+        }
+        return sharedPreferences;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+}
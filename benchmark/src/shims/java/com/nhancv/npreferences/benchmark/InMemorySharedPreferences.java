@@ -0,0 +1,190 @@
+package com.nhancv.npreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pure-Java {@link SharedPreferences} holding its entries in memory.
+ * <p>
+ * Like the platform implementation every read and commit takes the lock of the map, so contention in the benchmarks is close to what it is on a
+ * device. Nothing is written to disk, so commit and apply only measure the library and the in-memory update.
+ */
+public class InMemorySharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> map = new HashMap<>();
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (map) {
+            return new HashMap<>(map);
+        }
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        synchronized (map) {
+            String value = (String) map.get(key);
+            return value == null ? defValue : value;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        synchronized (map) {
+            Set<String> value = (Set<String>) map.get(key);
+            return value == null ? defValues : value;
+        }
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        synchronized (map) {
+            Integer value = (Integer) map.get(key);
+            return value == null ? defValue : value;
+        }
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        synchronized (map) {
+            Long value = (Long) map.get(key);
+            return value == null ? defValue : value;
+        }
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        synchronized (map) {
+            Float value = (Float) map.get(key);
+            return value == null ? defValue : value;
+        }
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        synchronized (map) {
+            Boolean value = (Boolean) map.get(key);
+            return value == null ? defValue : value;
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        synchronized (map) {
+            return map.containsKey(key);
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private final class InMemoryEditor implements Editor {
+
+        private final Map<String, Object> modified = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public synchronized Editor putString(String key, String value) {
+            modified.put(key, value == null ? this : value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            modified.put(key, values == null ? this : new HashSet<>(values));
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            //the editor itself marks a removal, as in the platform implementation
+            modified.put(key, this);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean cleared;
+            List<String> changed;
+            synchronized (this) {
+                synchronized (map) {
+                    cleared = clear;
+                    if (clear) map.clear();
+                    changed = new ArrayList<>(modified.keySet());
+                    for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                        if (entry.getValue() == this) {
+                            map.remove(entry.getKey());
+                        } else {
+                            map.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                modified.clear();
+                clear = false;
+            }
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                if (cleared) listener.onSharedPreferenceChanged(InMemorySharedPreferences.this, null);
+                for (String key : changed) {
+                    listener.onSharedPreferenceChanged(InMemorySharedPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.nhancv.npreferences.benchmark;
+
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Makes "AES/CBC/PKCS7Padding", which Android provides but the JDK does not, available on the JVM.
+ * <p>
+ * For a 16 byte block cipher PKCS#7 and PKCS#5 padding are the same, so every call is forwarded to the JDK's "AES/CBC/PKCS5Padding".
+ */
+public final class Pkcs7PaddingProvider extends Provider {
+
+    private static final String NAME = "NPreferencesBenchmark";
+
+    private Pkcs7PaddingProvider() {
+        super(NAME, 1.0, "AES/CBC/PKCS7Padding for the JVM");
+        put("Cipher.AES/CBC/PKCS7Padding", PaddingCipher.class.getName());
+    }
+
+    public static synchronized void install() {
+        if (Security.getProvider(NAME) == null) Security.addProvider(new Pkcs7PaddingProvider());
+    }
+
+    public static final class PaddingCipher extends CipherSpi {
+
+        private final Cipher cipher;
+
+        public PaddingCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        }
+
+        @Override
+        protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+            if (!"CBC".equalsIgnoreCase(mode)) throw new NoSuchAlgorithmException(mode);
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+            if (!"PKCS7Padding".equalsIgnoreCase(padding)) throw new NoSuchPaddingException(padding);
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return cipher.getBlockSize();
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return cipher.getOutputSize(inputLen);
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return cipher.getIV();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return cipher.getParameters();
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+            cipher.init(opmode, key, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            cipher.init(opmode, key, params, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            cipher.init(opmode, key, params, random);
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+            return cipher.update(input, inputOffset, inputLen);
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws ShortBufferException {
+            return cipher.update(input, inputOffset, inputLen, output, outputOffset);
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) throws IllegalBlockSizeException, BadPaddingException {
+            //Cipher.doFinal() passes no input, which the delegate refuses
+            return input == null ? cipher.doFinal() : cipher.doFinal(input, inputOffset, inputLen);
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+                throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            return input == null ? cipher.doFinal(output, outputOffset) : cipher.doFinal(input, inputOffset, inputLen, output, outputOffset);
+        }
+    }
+}
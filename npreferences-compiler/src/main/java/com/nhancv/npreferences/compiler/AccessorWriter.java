@@ -0,0 +1,137 @@
+package com.nhancv.npreferences.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the source of the class implementing a TypedPreferences interface.
+ * <p>
+ * The class holds an NPreferencesStore.Key per preference in a final field, built once by the constructor, so a getter is a single typed call on the
+ * store. Its nested Values class holds the preferences read by loadAll() in final fields.
+ */
+final class AccessorWriter {
+
+    private static final String STORE = "com.nhancv.npreferences.NPreferencesStore";
+    private static final String INDENT = "    ";
+
+    private final Writer out;
+    private final String packageName;
+    private final String className;
+    private final String interfaceName;
+    private final boolean isPublic;
+    private final List<Preference> preferences;
+
+    /**
+     * @param out           - Receives the source
+     * @param packageName   - Package of the generated class, empty for the unnamed package
+     * @param className     - Simple name of the generated class
+     * @param interfaceName - Qualified name of the interface
+     * @param isPublic      - true to make the generated class public, as the interface is
+     * @param preferences   - The preferences the interface declares
+     */
+    AccessorWriter(Writer out, String packageName, String className, String interfaceName, boolean isPublic, List<Preference> preferences) {
+        this.out = out;
+        this.packageName = packageName;
+        this.className = className;
+        this.interfaceName = interfaceName;
+        this.isPublic = isPublic;
+        this.preferences = preferences;
+    }
+
+    void write() throws IOException {
+        String visibility = isPublic ? "public " : "";
+        if (!packageName.isEmpty()) line(0, "package " + packageName + ";").line(0, "");
+        line(0, "/**");
+        line(0, " * Typed accessors of the preferences declared by {@link " + interfaceName + "}, generated by npreferences-compiler.");
+        line(0, " */");
+        line(0, visibility + "final class " + className + " implements " + interfaceName + " {");
+        line(0, "");
+        line(1, "private final " + STORE + " store;");
+        for (Preference preference : preferences) {
+            line(1, "private final " + STORE + ".Key " + keyField(preference) + ";");
+        }
+        line(1, "private final " + STORE + ".Key[] keys;");
+        line(0, "");
+
+        line(1, "/**");
+        line(1, " * @param store - The store the preferences are read from and written to");
+        line(1, " */");
+        line(1, visibility + className + "(" + STORE + " store) {");
+        line(2, "this.store = store;");
+        StringBuilder keys = new StringBuilder();
+        for (Preference preference : preferences) {
+            line(2, "this." + keyField(preference) + " = store.key(" + Preference.quote(preference.name) + ");");
+            if (keys.length() > 0) keys.append(", ");
+            keys.append(keyField(preference));
+        }
+        line(2, "this.keys = new " + STORE + ".Key[]{" + keys + "};");
+        line(1, "}");
+
+        for (Preference preference : preferences) {
+            line(0, "");
+            line(1, "@Override");
+            line(1, "public " + preference.type.javaType + " " + preference.method + "() {");
+            line(2, "return store.get" + preference.type.accessor + "(" + keyField(preference) + ", " + preference.defaultLiteral + ");");
+            line(1, "}");
+            line(0, "");
+            line(1, "/**");
+            line(1, " * Write the preference \"" + preference.name.replace("*/", "*&#47;") + "\" in the background.");
+            line(1, " *");
+            line(1, " * @param value - The new value");
+            line(1, " */");
+            line(1, "public void " + preference.setter() + "(" + preference.type.javaType + " value) {");
+            line(2, "store.edit().put" + preference.type.accessor + "(" + keyField(preference) + ".name(), value).apply();");
+            line(1, "}");
+        }
+
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Read all declared preferences in one pass, decrypting them in parallel.");
+        line(1, " *");
+        line(1, " * @return The values of the preferences at the time of the call");
+        line(1, " */");
+        line(1, "public Values loadAll() {");
+        line(2, "return new Values(store.loadAll(keys));");
+        line(1, "}");
+        line(0, "");
+
+        line(1, "/**");
+        line(1, " * The declared preferences read by {@link #loadAll()}.");
+        line(1, " */");
+        line(1, "public static final class Values implements " + interfaceName + " {");
+        line(0, "");
+        for (Preference preference : preferences) {
+            line(2, "private final " + preference.type.javaType + " " + preference.field() + ";");
+        }
+        line(0, "");
+        line(2, "private Values(" + STORE + ".Values values) {");
+        for (int i = 0; i < preferences.size(); i++) {
+            Preference preference = preferences.get(i);
+            line(3, "this." + preference.field() + " = values.get" + preference.type.accessor + "(" + i + ", " + preference.defaultLiteral + ");");
+        }
+        line(2, "}");
+        for (Preference preference : preferences) {
+            line(0, "");
+            line(2, "@Override");
+            line(2, "public " + preference.type.javaType + " " + preference.method + "() {");
+            line(3, "return " + preference.field() + ";");
+            line(2, "}");
+        }
+        line(1, "}");
+        line(0, "}");
+    }
+
+    private static String keyField(Preference preference) {
+        return preference.field() + "Key";
+    }
+
+    private AccessorWriter line(int depth, String text) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.write(INDENT);
+        }
+        out.write(text);
+        out.write('\n');
+        return this;
+    }
+}
@@ -0,0 +1,147 @@
+package com.nhancv.npreferences.compiler;
+
+import java.util.Locale;
+
+import javax.lang.model.SourceVersion;
+
+/**
+ * A preference declared by a method of a TypedPreferences interface.
+ */
+final class Preference {
+
+    /**
+     * The supported types, with what the generated code calls on the store, the editor and the loaded values.
+     */
+    enum Type {
+        INT("int", "Int", "0"),
+        LONG("long", "Long", "0L"),
+        FLOAT("float", "Float", "0f"),
+        BOOLEAN("boolean", "Boolean", "false"),
+        STRING("java.lang.String", "String", "null");
+
+        final String javaType;
+        //suffix of getX and putX
+        final String accessor;
+        final String zero;
+
+        Type(String javaType, String accessor, String zero) {
+            this.javaType = javaType;
+            this.accessor = accessor;
+            this.zero = zero;
+        }
+
+        /**
+         * @param typeName - The return type of the method as written by javac
+         * @return The type, or null if it is not supported
+         */
+        static Type of(String typeName) {
+            for (Type type : values()) {
+                if (type.javaType.equals(typeName)) return type;
+            }
+            return null;
+        }
+
+        /**
+         * @param value - The default value given to the annotation, empty for the zero value
+         * @return The value as a Java literal
+         * @throws IllegalArgumentException if the value is not one of the type
+         */
+        String literal(String value) {
+            if (value.isEmpty()) return zero;
+            switch (this) {
+                case INT:
+                    return String.valueOf(Integer.parseInt(value));
+                case LONG:
+                    return Long.parseLong(value) + "L";
+                case FLOAT:
+                    float parsed = Float.parseFloat(value);
+                    if (Float.isNaN(parsed) || Float.isInfinite(parsed)) throw new IllegalArgumentException(value);
+                    return parsed + "f";
+                case BOOLEAN:
+                    if (!value.equals("true") && !value.equals("false")) throw new IllegalArgumentException(value);
+                    return value;
+                default:
+                    return quote(value);
+            }
+        }
+    }
+
+    final String method;
+    final String name;
+    final Type type;
+    final String defaultLiteral;
+
+    /**
+     * @param method         - Name of the declaring method
+     * @param name           - Name of the preference
+     * @param type           - Type of the preference
+     * @param defaultLiteral - Default value as a Java literal
+     */
+    Preference(String method, String name, Type type, String defaultLiteral) {
+        this.method = method;
+        this.name = name;
+        this.type = type;
+        this.defaultLiteral = defaultLiteral;
+    }
+
+    /**
+     * @param method - Name of a method declaring a preference
+     * @return The name of the preference: the name of the method without a "get" or "is" prefix
+     */
+    static String nameOf(String method) {
+        String property = method;
+        if (method.length() > 3 && method.startsWith("get") && Character.isUpperCase(method.charAt(3))) {
+            property = method.substring(3);
+        } else if (method.length() > 2 && method.startsWith("is") && Character.isUpperCase(method.charAt(2))) {
+            property = method.substring(2);
+        }
+        return property.substring(0, 1).toLowerCase(Locale.US) + property.substring(1);
+    }
+
+    /**
+     * @return Name of the fields generated for the preference: the name of the method without a "get" or "is" prefix, unless that is a keyword
+     */
+    String field() {
+        String property = nameOf(method);
+        return SourceVersion.isName(property) ? property : method;
+    }
+
+    /**
+     * @return Name of the generated setter
+     */
+    String setter() {
+        String property = nameOf(method);
+        return "set" + property.substring(0, 1).toUpperCase(Locale.US) + property.substring(1);
+    }
+
+    static String quote(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7E) {
+                        builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,184 @@
+package com.nhancv.npreferences.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the typed accessors of interfaces annotated with com.nhancv.npreferences.TypedPreferences, see the documentation of that annotation.
+ * <p>
+ * The annotations are matched by name, so the processor does not depend on the Android library that declares them.
+ */
+public final class TypedPreferencesProcessor extends AbstractProcessor {
+
+    static final String TYPED_PREFERENCES = "com.nhancv.npreferences.TypedPreferences";
+    static final String PREFERENCE_KEY = "com.nhancv.npreferences.PreferenceKey";
+    private static final String SUFFIX = "Preferences";
+    //declared by every generated class
+    private static final String LOAD_ALL = "loadAll";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(TYPED_PREFERENCES);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.INTERFACE) {
+                    error(element, "@TypedPreferences only applies to interfaces");
+                    continue;
+                }
+                TypeElement type = (TypeElement) element;
+                List<Preference> preferences = preferencesOf(type);
+                if (preferences != null) write(type, preferences);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param type - An annotated interface
+     * @return The preferences it declares, or null if a declaration is not valid, which is reported as an error
+     */
+    private List<Preference> preferencesOf(TypeElement type) {
+        List<Preference> preferences = new ArrayList<>();
+        Map<String, ExecutableElement> names = new HashMap<>();
+        Map<String, ExecutableElement> setters = new HashMap<>();
+        boolean valid = true;
+        for (Element member : processingEnv.getElementUtils().getAllMembers(type)) {
+            if (member.getKind() != ElementKind.METHOD || !member.getModifiers().contains(Modifier.ABSTRACT)) continue;
+            ExecutableElement method = (ExecutableElement) member;
+            if (!method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty()) {
+                error(method, "a preference is declared by a method without parameters");
+                valid = false;
+                continue;
+            }
+            Preference.Type preferenceType = Preference.Type.of(method.getReturnType().toString());
+            if (preferenceType == null) {
+                error(method, "a preference is an int, long, float, boolean or String, not " + method.getReturnType());
+                valid = false;
+                continue;
+            }
+            String methodName = method.getSimpleName().toString();
+            if (methodName.equals(LOAD_ALL)) {
+                error(method, LOAD_ALL + "() is generated and can not declare a preference");
+                valid = false;
+                continue;
+            }
+            String name = annotationValue(method, "value");
+            if (name.isEmpty()) name = Preference.nameOf(methodName);
+            String defaultLiteral;
+            try {
+                defaultLiteral = preferenceType.literal(annotationValue(method, "defaultValue"));
+            } catch (IllegalArgumentException e) {
+                error(method, "the default value is not a valid " + preferenceType.javaType);
+                valid = false;
+                continue;
+            }
+            ExecutableElement previous = names.put(name, method);
+            if (previous != null) {
+                error(method, "the preference \"" + name + "\" is already declared by " + previous.getSimpleName() + "()");
+                valid = false;
+                continue;
+            }
+            Preference preference = new Preference(methodName, name, preferenceType, defaultLiteral);
+            previous = setters.put(preference.setter(), method);
+            if (previous != null) {
+                error(method, "the setter " + preference.setter() + "() is already generated for " + previous.getSimpleName() + "()");
+                valid = false;
+                continue;
+            }
+            preferences.add(preference);
+        }
+        return valid ? preferences : null;
+    }
+
+    /**
+     * @param method - A method declaring a preference
+     * @param name   - Name of an element of its PreferenceKey annotation
+     * @return The value of the element, empty if the method is not annotated or the element is not set
+     */
+    private static String annotationValue(ExecutableElement method, String name) {
+        for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().toString().equals(PREFERENCE_KEY)) continue;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals(name)) return String.valueOf(entry.getValue().getValue());
+            }
+        }
+        return "";
+    }
+
+    private void write(TypeElement type, List<Preference> preferences) {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+        String className = annotationClassName(type);
+        if (className.isEmpty()) className = flatName(type) + SUFFIX;
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            Writer writer = file.openWriter();
+            try {
+                new AccessorWriter(writer, packageName, className, type.getQualifiedName().toString(),
+                        type.getModifiers().contains(Modifier.PUBLIC), preferences).write();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(type, "unable to write " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    private static String annotationClassName(TypeElement type) {
+        for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().toString().equals(TYPED_PREFERENCES)) continue;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("className")) return String.valueOf(entry.getValue().getValue());
+            }
+        }
+        return "";
+    }
+
+    /**
+     * @param type - An interface, possibly nested
+     * @return The simple names of the interface and the types enclosing it, joined by '_'
+     */
+    private static String flatName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name = enclosing.getSimpleName() + "_" + name;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
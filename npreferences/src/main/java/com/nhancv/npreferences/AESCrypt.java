@@ -1,14 +1,17 @@
 package com.nhancv.npreferences;
 
+import android.os.Build;
 import android.util.Base64;
 import android.util.Log;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -28,30 +31,169 @@ public class AESCrypt {
 
     //AESCrypt-ObjC uses blank IV (not the best security, but the aim here is compatibility)
     private static final byte[] ivBytes = {0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+    private static final IvParameterSpec ivSpec = new IvParameterSpec(ivBytes);
+    private static final int BLOCK_SIZE = 16;
+
+    //authenticated values use GCM with a random nonce per value, the cipher text has the length of the message followed by the tag
+    private static final String AEAD_MODE = "AES/GCM/NoPadding";
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+    //Cipher.updateAAD and GCMParameterSpec were added in API 19, calling them on older versions throws NoSuchMethodError
+    private static final boolean IS_AEAD_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
 
     //togglable log option (please turn off in live!)
     public static boolean DEBUG_LOG_ENABLED = false;
 
+    //derived keys are cached per password, so a hit costs neither a hash nor a lock, most apps only ever use one or two
+    private static final int MAX_CACHED_KEYS = 8;
+    private static final LruCache<String, SecretKeySpec> keyCache = new LruCache<>(MAX_CACHED_KEYS);
+
+    //MessageDigest.getInstance does a provider lookup on every call, keep one instance per thread instead
+    static final ThreadLocal<MessageDigest> digestCache = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                if (DEBUG_LOG_ENABLED)
+                    Log.e(TAG, "MessageDigest.getInstance ", e);
+                return null;
+            }
+        }
+    };
+
+    //Cipher.getInstance does a provider lookup on every call, keep one instance per thread instead
+    private static final ThreadLocal<Cipher> cipherCache = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(AES_MODE);
+            } catch (GeneralSecurityException e) {
+                if (DEBUG_LOG_ENABLED)
+                    Log.e(TAG, "Cipher.getInstance ", e);
+                return null;
+            }
+        }
+    };
+
+    private static final ThreadLocal<Cipher> aeadCipherCache = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(AEAD_MODE);
+            } catch (GeneralSecurityException e) {
+                if (DEBUG_LOG_ENABLED)
+                    Log.e(TAG, "Cipher.getInstance ", e);
+                return null;
+            }
+        }
+    };
 
     private AESCrypt() {
     }
 
+    /**
+     * Returns the SHA-256 digest of the calling thread, callers must leave it reset, which {@link MessageDigest#digest()} does
+     *
+     * @return the digest
+     */
+    static MessageDigest sha256() throws NoSuchAlgorithmException {
+        MessageDigest digest = digestCache.get();
+        return digest != null ? digest : MessageDigest.getInstance(HASH_ALGORITHM);
+    }
+
     /**
      * Generates SHA256 hash of the password which is used as key
      *
      * @param password used to generated key
      * @return SHA256 of the password
      */
-    private static SecretKeySpec generateKey(final String password) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        final MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    private static byte[] generateKey(final String password) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        MessageDigest digest = sha256();
         byte[] bytes = password.getBytes("UTF-8");
         digest.update(bytes, 0, bytes.length);
-        byte[] key = digest.digest();
+        return digest.digest();
+    }
+
+    /**
+     * Returns the cached key for the password, deriving it with {@link #generateKey(String)} only if it is not among the {@value #MAX_CACHED_KEYS}
+     * most recently used ones
+     *
+     * @param password used to generated key
+     * @return SHA256 of the password
+     */
+    static SecretKeySpec getKey(final String password) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        SecretKeySpec key = keyCache.get(password);
+        if (key == null) {
+            byte[] hash = generateKey(password);
+            log("SHA-256 key ", hash);
+            key = new SecretKeySpec(hash, "AES");
+            keyCache.put(password, key);
+        }
+        return key;
+    }
 
-        log("SHA-256 key ", key);
+    /**
+     * Returns the IV used by the password based methods, callers must not modify it
+     *
+     * @return the blank IV
+     */
+    static byte[] iv() {
+        return ivBytes;
+    }
+
+    /**
+     * Drops all cached keys, the next call will derive them again
+     */
+    public static void clearKeyCache() {
+        keyCache.clear();
+    }
+
+    /**
+     * Returns the Cipher of the calling thread, it is re-initialized by every caller
+     *
+     * @return Cipher for {@link #AES_MODE}
+     * @throws GeneralSecurityException if the mode is not supported by any provider
+     */
+    private static Cipher cipher() throws GeneralSecurityException {
+        Cipher cipher = cipherCache.get();
+        if (cipher == null) {
+            cipherCache.remove();
+            cipher = Cipher.getInstance(AES_MODE);
+            cipherCache.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Returns the GCM Cipher of the calling thread, it is re-initialized by every caller
+     *
+     * @return Cipher for {@link #AEAD_MODE}
+     * @throws GeneralSecurityException if the mode is not supported by any provider
+     */
+    private static Cipher aeadCipher() throws GeneralSecurityException {
+        Cipher cipher = aeadCipherCache.get();
+        if (cipher == null) {
+            aeadCipherCache.remove();
+            cipher = Cipher.getInstance(AEAD_MODE);
+            aeadCipherCache.set(cipher);
+        }
+        return cipher;
+    }
 
-        SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-        return secretKeySpec;
+    /**
+     * Returns a new Cipher owned by the caller, for streams that stay open while the thread's own Cipher is used by other calls
+     *
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param key  AES key typically 128, 192 or 256 bit
+     * @param iv   Initiation Vector
+     * @return Cipher for {@link #AES_MODE}, initialized
+     * @throws GeneralSecurityException if the mode is not supported by any provider
+     */
+    static Cipher newCipher(int mode, final SecretKeySpec key, final byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(AES_MODE);
+        cipher.init(mode, key, ivSpec(iv));
+        return cipher;
     }
 
     /**
@@ -66,7 +208,7 @@ public class AESCrypt {
             throws GeneralSecurityException {
 
         try {
-            final SecretKeySpec key = generateKey(password);
+            final SecretKeySpec key = getKey(password);
 
             log("message", message);
 
@@ -83,6 +225,23 @@ public class AESCrypt {
         }
     }
 
+    /**
+     * Encrypt raw bytes using 256-bit AES with key generated from password.
+     *
+     * @param password used to generated key
+     * @param message  in bytes
+     * @return Encrypted cipher text (not encoded)
+     * @throws GeneralSecurityException if problems occur during encryption
+     */
+    public static byte[] encrypt(final String password, final byte[] message)
+            throws GeneralSecurityException {
+        try {
+            return encrypt(getKey(password), ivBytes, message);
+        } catch (UnsupportedEncodingException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
     /**
      * More flexible AES encrypt that doesn't encode
      *
@@ -94,9 +253,8 @@ public class AESCrypt {
      */
     public static byte[] encrypt(final SecretKeySpec key, final byte[] iv, final byte[] message)
             throws GeneralSecurityException {
-        final Cipher cipher = Cipher.getInstance(AES_MODE);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+        final Cipher cipher = cipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec(iv));
         byte[] cipherText = cipher.doFinal(message);
 
         log("cipherText", cipherText);
@@ -116,7 +274,7 @@ public class AESCrypt {
             throws GeneralSecurityException {
 
         try {
-            final SecretKeySpec key = generateKey(password);
+            final SecretKeySpec key = getKey(password);
 
             log("base64EncodedCipherText", base64EncodedCipherText);
             byte[] decodedCipherText = Base64.decode(base64EncodedCipherText, Base64.NO_WRAP);
@@ -138,6 +296,23 @@ public class AESCrypt {
         }
     }
 
+    /**
+     * Decrypt raw cipher text using 256-bit AES with key generated from password.
+     *
+     * @param password          used to generated key
+     * @param decodedCipherText in bytes (assumed it's already been decoded)
+     * @return Decrypted message (not encoded)
+     * @throws GeneralSecurityException if there's an issue decrypting
+     */
+    public static byte[] decrypt(final String password, final byte[] decodedCipherText)
+            throws GeneralSecurityException {
+        try {
+            return decrypt(getKey(password), ivBytes, decodedCipherText);
+        } catch (UnsupportedEncodingException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
     /**
      * More flexible AES decrypt that doesn't encode
      *
@@ -149,9 +324,8 @@ public class AESCrypt {
      */
     public static byte[] decrypt(final SecretKeySpec key, final byte[] iv, final byte[] decodedCipherText)
             throws GeneralSecurityException {
-        final Cipher cipher = Cipher.getInstance(AES_MODE);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+        final Cipher cipher = cipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec(iv));
         byte[] decryptedBytes = cipher.doFinal(decodedCipherText);
 
         log("decryptedBytes", decryptedBytes);
@@ -159,6 +333,196 @@ public class AESCrypt {
         return decryptedBytes;
     }
 
+    /**
+     * Encrypt into a caller supplied buffer using 256-bit AES with key generated from password, without allocating the output.
+     *
+     * @param password     used to generated key
+     * @param input        message in bytes
+     * @param inputOffset  start of the message in input
+     * @param inputLength  length of the message
+     * @param output       buffer for the cipher text, at least {@link #getEncryptedSize(int)} bytes after outputOffset
+     * @param outputOffset start of the cipher text in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if problems occur during encryption
+     */
+    public static int encrypt(final String password, final byte[] input, int inputOffset, int inputLength, final byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        try {
+            return encrypt(getKey(password), ivBytes, input, inputOffset, inputLength, output, outputOffset);
+        } catch (UnsupportedEncodingException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /**
+     * Encrypt into a caller supplied buffer, without allocating the output.
+     *
+     * @param key          AES key typically 128, 192 or 256 bit
+     * @param iv           Initiation Vector
+     * @param input        message in bytes
+     * @param inputOffset  start of the message in input
+     * @param inputLength  length of the message
+     * @param output       buffer for the cipher text, at least {@link #getEncryptedSize(int)} bytes after outputOffset
+     * @param outputOffset start of the cipher text in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if something goes wrong during encryption
+     */
+    public static int encrypt(final SecretKeySpec key, final byte[] iv, final byte[] input, int inputOffset, int inputLength,
+                              final byte[] output, int outputOffset) throws GeneralSecurityException {
+        final Cipher cipher = cipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec(iv));
+        return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Encrypt the remaining bytes of input into output, without allocating the output.
+     *
+     * @param key    AES key typically 128, 192 or 256 bit
+     * @param iv     Initiation Vector
+     * @param input  message, consumed up to its limit
+     * @param output buffer for the cipher text, with at least {@link #getEncryptedSize(int)} bytes remaining
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if something goes wrong during encryption
+     */
+    public static int encrypt(final SecretKeySpec key, final byte[] iv, final ByteBuffer input, final ByteBuffer output)
+            throws GeneralSecurityException {
+        final Cipher cipher = cipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec(iv));
+        return cipher.doFinal(input, output);
+    }
+
+    /**
+     * Decrypt into a caller supplied buffer using 256-bit AES with key generated from password, without allocating the output.
+     *
+     * @param password     used to generated key
+     * @param input        cipher text in bytes (assumed it's already been decoded)
+     * @param inputOffset  start of the cipher text in input
+     * @param inputLength  length of the cipher text
+     * @param output       buffer for the message, at least inputLength bytes after outputOffset
+     * @param outputOffset start of the message in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if there's an issue decrypting
+     */
+    public static int decrypt(final String password, final byte[] input, int inputOffset, int inputLength, final byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        try {
+            return decrypt(getKey(password), ivBytes, input, inputOffset, inputLength, output, outputOffset);
+        } catch (UnsupportedEncodingException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /**
+     * Decrypt into a caller supplied buffer, without allocating the output.
+     *
+     * @param key          AES key typically 128, 192 or 256 bit
+     * @param iv           Initiation Vector
+     * @param input        cipher text in bytes (assumed it's already been decoded)
+     * @param inputOffset  start of the cipher text in input
+     * @param inputLength  length of the cipher text
+     * @param output       buffer for the message, at least inputLength bytes after outputOffset
+     * @param outputOffset start of the message in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if something goes wrong during decryption
+     */
+    public static int decrypt(final SecretKeySpec key, final byte[] iv, final byte[] input, int inputOffset, int inputLength,
+                              final byte[] output, int outputOffset) throws GeneralSecurityException {
+        final Cipher cipher = cipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec(iv));
+        return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Decrypt the remaining bytes of input into output, without allocating the output.
+     *
+     * @param key    AES key typically 128, 192 or 256 bit
+     * @param iv     Initiation Vector
+     * @param input  cipher text, consumed up to its limit
+     * @param output buffer for the message, with at least input.remaining() bytes remaining
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if something goes wrong during decryption
+     */
+    public static int decrypt(final SecretKeySpec key, final byte[] iv, final ByteBuffer input, final ByteBuffer output)
+            throws GeneralSecurityException {
+        final Cipher cipher = cipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec(iv));
+        return cipher.doFinal(input, output);
+    }
+
+    /**
+     * Encrypt and authenticate in a single pass with AES-GCM into a caller supplied buffer.
+     *
+     * @param key          AES key typically 128, 192 or 256 bit
+     * @param nonce        {@link #NONCE_SIZE} random bytes, never used twice with the same key
+     * @param aad          data authenticated along with the message but not encrypted
+     * @param aadLength    length of the data in aad
+     * @param input        message in bytes
+     * @param inputOffset  start of the message in input
+     * @param inputLength  length of the message
+     * @param output       buffer for the cipher text and the tag, at least inputLength + {@link #TAG_SIZE} bytes after outputOffset
+     * @param outputOffset start of the cipher text in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if something goes wrong during encryption, or below API 19
+     */
+    static int encryptAead(final SecretKeySpec key, final byte[] nonce, final byte[] aad, int aadLength, final byte[] input, int inputOffset,
+                           int inputLength, final byte[] output, int outputOffset) throws GeneralSecurityException {
+        if (!IS_AEAD_SUPPORTED) throw new NoSuchAlgorithmException(AEAD_MODE + " needs API 19");
+        final Cipher cipher = aeadCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec(nonce, 0));
+        cipher.updateAAD(aad, 0, aadLength);
+        return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * Check and decrypt in a single pass with AES-GCM into a caller supplied buffer.
+     *
+     * @param key          AES key typically 128, 192 or 256 bit
+     * @param nonce        buffer holding the nonce the message was encrypted with
+     * @param nonceOffset  start of the {@link #NONCE_SIZE} bytes of the nonce
+     * @param aad          data authenticated along with the message
+     * @param aadLength    length of the data in aad
+     * @param input        cipher text followed by the tag
+     * @param inputOffset  start of the cipher text in input
+     * @param inputLength  length of the cipher text and the tag
+     * @param output       buffer for the message, at least inputLength bytes after outputOffset
+     * @param outputOffset start of the message in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException if the cipher text, the tag or the data do not match, nothing is written then, or below API 19
+     */
+    static int decryptAead(final SecretKeySpec key, final byte[] nonce, int nonceOffset, final byte[] aad, int aadLength, final byte[] input,
+                           int inputOffset, int inputLength, final byte[] output, int outputOffset) throws GeneralSecurityException {
+        if (!IS_AEAD_SUPPORTED) throw new NoSuchAlgorithmException(AEAD_MODE + " needs API 19");
+        final Cipher cipher = aeadCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec(nonce, nonceOffset));
+        cipher.updateAAD(aad, 0, aadLength);
+        return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    /**
+     * @return Returns true if AES-GCM with associated data is available, from API 19.
+     */
+    static boolean isAeadSupported() {
+        return IS_AEAD_SUPPORTED;
+    }
+
+    /**
+     * Size of the cipher text produced for a message, PKCS7 always adds between 1 and 16 bytes of padding
+     *
+     * @param messageLength length of the message in bytes
+     * @return length of the cipher text in bytes
+     */
+    public static int getEncryptedSize(int messageLength) {
+        return (messageLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    private static IvParameterSpec ivSpec(byte[] iv) {
+        return iv == ivBytes ? ivSpec : new IvParameterSpec(iv);
+    }
+
+    private static GCMParameterSpec gcmSpec(byte[] nonce, int offset) {
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce, offset, NONCE_SIZE);
+    }
+
     private static void log(String what, byte[] bytes) {
         if (DEBUG_LOG_ENABLED)
             Log.d(TAG, what + "[" + bytes.length + "] [" + bytesToHex(bytes) + "]");
@@ -187,4 +551,4 @@ public class AESCrypt {
         }
         return new String(hexChars);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,325 @@
+package com.nhancv.npreferences;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Framed binary format of the backups written by {@link NPreferencesStore#exportTo(OutputStream, String)}.
+ * <p>
+ * A backup starts with {@link #MAGIC}, followed by frames of {@code [length][nonce][cipher text][tag]}: a four-byte big-endian length of the rest of
+ * the frame, then one AES-GCM message holding the frame type and its payload. Each frame is bound to its position in the backup, so frames can not be
+ * dropped, repeated or reordered, and the backup ends with a frame holding the number of entries, so a truncated backup is detected. Entries hold the
+ * plain key and the value encoded by {@link ValueCodec}, values kept in side files are written as chunks of at most {@link #CHUNK_SIZE} bytes, so
+ * neither side ever holds more than one frame in memory.
+ */
+final class Backup {
+
+    static final int TYPE_ENTRY = 1;
+    //a value read from a side file, its bytes follow in chunk frames ending with an empty one
+    static final int TYPE_STREAM = 2;
+    static final int TYPE_CHUNK = 3;
+    static final int TYPE_END = 4;
+
+    private static final byte[] MAGIC = {'N', 'P', 'X', '1'};
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int LENGTH_SIZE = 4;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+    //values are held by the backing store as a whole, larger frames are rejected as corrupt rather than allocated
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int FRAME_OVERHEAD = AESCrypt.NONCE_SIZE + AESCrypt.TAG_SIZE;
+    private static final int INITIAL_SIZE = CHUNK_SIZE + 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Backup() {
+    }
+
+    /**
+     * Writes the frames of a backup to a stream.
+     */
+    static final class Writer {
+
+        private final OutputStream out;
+        private final SecretKeySpec key;
+        //magic and the position of the frame, bound to its tag
+        private final byte[] associatedData = associatedData();
+        private long sequence;
+        //[type][payload] of the frame being written
+        private byte[] plainText = new byte[INITIAL_SIZE];
+        //[length][nonce][cipher text][tag]
+        private byte[] frame = new byte[INITIAL_SIZE + LENGTH_SIZE + FRAME_OVERHEAD];
+
+        /**
+         * @param out - Receives the backup, it is not closed
+         * @param key - The key derived from the backup password
+         * @throws IOException if the header can not be written, or below API 19
+         */
+        Writer(OutputStream out, SecretKeySpec key) throws IOException {
+            checkSupported();
+            this.out = out;
+            this.key = key;
+            out.write(MAGIC);
+        }
+
+        /**
+         * @param name   - The plain key
+         * @param value  - The value encoded by {@link ValueCodec}
+         * @param length - Length of the value in the buffer
+         * @throws IOException if the frame can not be written
+         */
+        void entry(String name, byte[] value, int length) throws IOException {
+            int start = key(TYPE_ENTRY, name, length);
+            System.arraycopy(value, 0, plainText, start, length);
+            write(start + length);
+        }
+
+        /**
+         * Write a value read from a stream, chunk by chunk.
+         *
+         * @param name - The plain key
+         * @param in   - The plain bytes of the value, read until its end but not closed
+         * @throws IOException if the stream can not be read or a frame can not be written
+         */
+        void stream(String name, InputStream in) throws IOException {
+            write(key(TYPE_STREAM, name, 0));
+            //the last chunk is the first one shorter than CHUNK_SIZE, a value of a multiple of CHUNK_SIZE bytes ends with an empty chunk
+            int length;
+            do {
+                plainText = grow(plainText, 1 + CHUNK_SIZE);
+                plainText[0] = TYPE_CHUNK;
+                length = 0;
+                int count;
+                while (length < CHUNK_SIZE && (count = in.read(plainText, 1 + length, CHUNK_SIZE - length)) != -1) {
+                    length += count;
+                }
+                write(1 + length);
+            } while (length == CHUNK_SIZE);
+        }
+
+        /**
+         * Write the frame ending the backup and flush the stream.
+         *
+         * @param count - The number of entries written
+         * @throws IOException if the frame can not be written
+         */
+        void finish(int count) throws IOException {
+            plainText[0] = TYPE_END;
+            putInt(plainText, 1, count);
+            write(1 + 4);
+            out.flush();
+        }
+
+        /**
+         * Start a frame with its type and key.
+         *
+         * @return The offset of the rest of the payload in plainText
+         */
+        private int key(int type, String name, int rest) throws IOException {
+            byte[] bytes = name.getBytes(UTF_8);
+            if (bytes.length > MAX_KEY_LENGTH) throw new IOException("key too long: " + name);
+            plainText = grow(plainText, 3 + bytes.length + rest);
+            plainText[0] = (byte) type;
+            plainText[1] = (byte) (bytes.length >>> 8);
+            plainText[2] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, plainText, 3, bytes.length);
+            return 3 + bytes.length;
+        }
+
+        private void write(int length) throws IOException {
+            if (length + FRAME_OVERHEAD > MAX_FRAME) throw new IOException("value too large for a backup frame: " + length + " bytes");
+            frame = grow(frame, LENGTH_SIZE + FRAME_OVERHEAD + length);
+            byte[] nonce = BufferPool.get().nextNonce();
+            System.arraycopy(nonce, 0, frame, LENGTH_SIZE, nonce.length);
+            putLong(associatedData, MAGIC.length, sequence++);
+            try {
+                int sealed = AESCrypt.encryptAead(key, nonce, associatedData, associatedData.length, plainText, 0, length, frame,
+                        LENGTH_SIZE + nonce.length);
+                putInt(frame, 0, nonce.length + sealed);
+                out.write(frame, 0, LENGTH_SIZE + nonce.length + sealed);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("unable to encrypt the backup", e);
+            }
+        }
+    }
+
+    /**
+     * Reads and checks the frames of a backup from a stream.
+     */
+    static final class Reader {
+
+        private final InputStream in;
+        private final SecretKeySpec key;
+        private final byte[] associatedData = associatedData();
+        private final byte[] header = new byte[LENGTH_SIZE];
+        private long sequence;
+        private byte[] frame = new byte[INITIAL_SIZE + FRAME_OVERHEAD];
+        //[type][payload] of the last frame read
+        private byte[] plainText = new byte[INITIAL_SIZE + FRAME_OVERHEAD];
+        private int length;
+        //start of the payload after the key
+        private int valueStart;
+
+        /**
+         * @param in  - The backup, it is not closed
+         * @param key - The key derived from the backup password
+         * @throws IOException if the stream does not start with a backup header, or below API 19
+         */
+        Reader(InputStream in, SecretKeySpec key) throws IOException {
+            checkSupported();
+            this.in = in;
+            this.key = key;
+            byte[] magic = new byte[MAGIC.length];
+            readFully(in, magic, magic.length);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a backup");
+        }
+
+        /**
+         * Read and decrypt the next frame.
+         *
+         * @return The type of the frame
+         * @throws IOException if the backup ends early, was written with another password or was changed
+         */
+        int next() throws IOException {
+            readFully(in, header, LENGTH_SIZE);
+            int frameLength = getInt(header, 0);
+            if (frameLength < FRAME_OVERHEAD || frameLength > MAX_FRAME) throw new IOException("corrupt backup frame " + sequence);
+            frame = grow(frame, frameLength);
+            readFully(in, frame, frameLength);
+            plainText = grow(plainText, frameLength);
+            putLong(associatedData, MAGIC.length, sequence++);
+            try {
+                length = AESCrypt.decryptAead(key, frame, 0, associatedData, associatedData.length, frame, AESCrypt.NONCE_SIZE,
+                        frameLength - AESCrypt.NONCE_SIZE, plainText, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("wrong password or corrupt backup frame " + (sequence - 1), e);
+            }
+            if (length == 0) throw new IOException("corrupt backup frame " + (sequence - 1));
+            valueStart = 1;
+            return plainText[0];
+        }
+
+        /**
+         * @return The plain key of the last entry or stream frame
+         * @throws IOException if the frame does not hold a key
+         */
+        String key() throws IOException {
+            int keyLength = length < 3 ? -1 : (plainText[1] & 0xFF) << 8 | plainText[2] & 0xFF;
+            if (keyLength < 0 || 3 + keyLength > length) throw new IOException("corrupt backup frame " + (sequence - 1));
+            valueStart = 3 + keyLength;
+            return new String(plainText, 3, keyLength, UTF_8);
+        }
+
+        /**
+         * @return A copy of the value of the last entry frame, after {@link #key()}
+         */
+        byte[] value() {
+            return Arrays.copyOfRange(plainText, valueStart, length);
+        }
+
+        /**
+         * @return The number of entries held by the last end frame
+         * @throws IOException if the frame does not hold a count
+         */
+        int count() throws IOException {
+            if (length != 1 + 4) throw new IOException("corrupt backup frame " + (sequence - 1));
+            return getInt(plainText, 1);
+        }
+
+        /**
+         * @return A stream over the chunk frames following a stream frame, reading them as it is read
+         */
+        InputStream chunks() {
+            return new ChunkInputStream();
+        }
+
+        /**
+         * Returns the payload of the chunk frames one after another, failing on any other frame before the empty chunk ending the value.
+         */
+        private final class ChunkInputStream extends InputStream {
+
+            private int position;
+            private boolean finished;
+
+            private ChunkInputStream() {
+                //position == length until the first chunk is read
+                position = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!fill()) return -1;
+                return plainText[position++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] target, int offset, int count) throws IOException {
+                if (count == 0) return 0;
+                if (!fill()) return -1;
+                int read = Math.min(count, length - position);
+                System.arraycopy(plainText, position, target, offset, read);
+                position += read;
+                return read;
+            }
+
+            /**
+             * @return Returns false after the last chunk.
+             */
+            private boolean fill() throws IOException {
+                while (position == length) {
+                    if (finished) return false;
+                    if (next() != TYPE_CHUNK) throw new IOException("corrupt backup frame " + (sequence - 1));
+                    position = 1;
+                    finished = length - 1 < CHUNK_SIZE;
+                }
+                return true;
+            }
+        }
+    }
+
+    private static void checkSupported() throws IOException {
+        if (!AESCrypt.isAeadSupported()) throw new IOException("backups are sealed with AES-GCM, which needs API 19");
+    }
+
+    private static byte[] associatedData() {
+        return Arrays.copyOf(MAGIC, MAGIC.length + 8);
+    }
+
+    private static byte[] grow(byte[] buffer, int size) {
+        return buffer.length >= size ? buffer : new byte[Math.max(size, size + (size >> 1))];
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            target[offset + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    private static int getInt(byte[] source, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | source[offset + i] & 0xFF;
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] target, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            target[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] target, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(target, offset, length - offset);
+            if (count == -1) throw new EOFException("the backup ends early");
+            offset += count;
+        }
+    }
+}
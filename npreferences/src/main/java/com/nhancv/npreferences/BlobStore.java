@@ -0,0 +1,289 @@
+package com.nhancv.npreferences;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Side files holding values too large for the preferences file, each encrypted as a stream with its own random IV.
+ * <p>
+ * A file is named after the key it belongs to, a sequence number and a random suffix: {@code <key hash>-<sequence>-<random>}. It is written with a
+ * {@link #TEMP_SUFFIX} and renamed once the editor that wrote it commits, and files of the same key with a lower sequence number are deleted once
+ * the preferences no longer point to them, so stale files can be found without decrypting anything.
+ */
+final class BlobStore {
+
+    static final String TEMP_SUFFIX = ".tmp";
+
+    //file header, followed by the IV and the cipher text
+    private static final byte[] MAGIC = {'N', 'P', 'B', '1'};
+    private static final int IV_SIZE = 16;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int SEQUENCE_LENGTH = 16;
+    //temporary files of editors that were never committed are dropped after this long
+    private static final long TEMP_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private final File directory;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() << 16);
+    private volatile boolean isUsed;
+
+    BlobStore(File directory, SecretKeySpec key) {
+        this.directory = directory;
+        this.key = key;
+        this.isUsed = directory.isDirectory();
+    }
+
+    /**
+     * @return Returns false until the directory exists, so stores that never hold a large value skip the clean up after commits.
+     */
+    boolean isUsed() {
+        return isUsed;
+    }
+
+    /**
+     * Encrypt a value into a new temporary file.
+     *
+     * @param prefix     - The name prefix of the key, see {@link NPreferencesStore#blobPrefix(String)}
+     * @param head       - Bytes already read from the value
+     * @param headLength - Number of bytes in head
+     * @param rest       - The rest of the value, read until its end
+     * @param length     - Receives the plain length of the value at index 0
+     * @return The temporary file
+     * @throws IOException if the value can not be read or the file can not be written
+     */
+    File write(String prefix, byte[] head, int headLength, InputStream rest, long[] length) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("unable to create " + directory);
+        }
+        if (!isUsed) {
+            isUsed = true;
+        } else {
+            deleteExpiredTemp();
+        }
+        File file = new File(directory, prefix + "-" + hex(sequence.incrementAndGet(), SEQUENCE_LENGTH) + "-"
+                + hex(random.nextInt() & 0xFFFFFFFFL, 8) + TEMP_SUFFIX);
+        byte[] iv = new byte[IV_SIZE];
+        random.nextBytes(iv);
+        FileOutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            Cipher cipher = AESCrypt.newCipher(Cipher.ENCRYPT_MODE, key, iv);
+            out.write(MAGIC);
+            out.write(iv);
+            byte[] buffer = new byte[CHUNK_SIZE + 2 * IV_SIZE];
+            long total = 0;
+            for (int offset = 0; offset < headLength; offset += CHUNK_SIZE) {
+                int count = Math.min(CHUNK_SIZE, headLength - offset);
+                out.write(buffer, 0, cipher.update(head, offset, count, buffer, 0));
+                total += count;
+            }
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int count;
+            while ((count = rest.read(chunk)) != -1) {
+                out.write(buffer, 0, cipher.update(chunk, 0, count, buffer, 0));
+                total += count;
+            }
+            out.write(buffer, 0, cipher.doFinal(buffer, 0));
+            out.getFD().sync();
+            length[0] = total;
+            written = true;
+            return file;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to encrypt " + file, e);
+        } finally {
+            out.close();
+            if (!written) file.delete();
+        }
+    }
+
+    /**
+     * @param file - A file returned by {@link #write(String, byte[], int, InputStream, long[])}
+     * @return The name the file has once it is committed
+     */
+    static String committedName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.length() - TEMP_SUFFIX.length());
+    }
+
+    /**
+     * Give a temporary file its committed name, before the preferences pointing to it are written.
+     *
+     * @param file - A file returned by {@link #write(String, byte[], int, InputStream, long[])}
+     * @throws IOException if the file can not be renamed
+     */
+    void commit(File file) throws IOException {
+        if (!file.renameTo(new File(directory, committedName(file)))) throw new IOException("unable to rename " + file);
+    }
+
+    /**
+     * @param name - The committed name of a file
+     * @return A stream decrypting the file
+     * @throws IOException if the file does not exist or has no valid header
+     */
+    InputStream open(String name) throws IOException {
+        FileInputStream in = new FileInputStream(new File(directory, name));
+        try {
+            byte[] header = new byte[MAGIC.length + IV_SIZE];
+            readFully(in, header);
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) throw new IOException("not a value file: " + name);
+            Cipher cipher = AESCrypt.newCipher(Cipher.DECRYPT_MODE, key, Arrays.copyOfRange(header, MAGIC.length, header.length));
+            return new DecryptingInputStream(in, cipher);
+        } catch (GeneralSecurityException | IOException e) {
+            in.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("unable to decrypt " + name, e);
+        }
+    }
+
+    /**
+     * @param name - The committed name of a file
+     */
+    void delete(String name) {
+        new File(directory, name).delete();
+    }
+
+    /**
+     * Delete the committed files the preferences no longer point to.
+     *
+     * @param current - Name prefix of each written key => the name of its current file, or null if the key no longer has one
+     * @param clear   - true to also delete the files of every other key
+     */
+    void deleteStale(Map<String, String> current, boolean clear) {
+        if (!isUsed) return;
+        String[] names = directory.list();
+        if (names == null) return;
+        long limit = sequence.get() + 1;
+        for (String name : names) {
+            if (name.endsWith(TEMP_SUFFIX)) continue;
+            int end = name.indexOf('-');
+            if (end < 0) continue;
+            String prefix = name.substring(0, end);
+            if (!current.containsKey(prefix)) {
+                if (clear) new File(directory, name).delete();
+                continue;
+            }
+            String keep = current.get(prefix);
+            //a file written by a later editor of the same key may already be committed, keep everything newer than the current one
+            long keepSequence = keep == null ? limit : sequenceOf(keep);
+            if (!name.equals(keep) && sequenceOf(name) < keepSequence) new File(directory, name).delete();
+        }
+    }
+
+    private void deleteExpiredTemp() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        long expired = System.currentTimeMillis() - TEMP_MAX_AGE;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < expired) file.delete();
+        }
+    }
+
+    private static long sequenceOf(String name) {
+        int start = name.indexOf('-') + 1;
+        if (start == 0 || name.length() < start + SEQUENCE_LENGTH) return Long.MAX_VALUE;
+        try {
+            return Long.parseLong(name.substring(start, start + SEQUENCE_LENGTH), 16);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static String hex(long value, int digits) {
+        StringBuilder builder = new StringBuilder(Long.toHexString(value));
+        while (builder.length() < digits) {
+            builder.insert(0, '0');
+        }
+        return builder.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] target) throws IOException {
+        int offset = 0;
+        while (offset < target.length) {
+            int count = in.read(target, offset, target.length - offset);
+            if (count == -1) throw new EOFException();
+            offset += count;
+        }
+    }
+
+    /**
+     * Decrypts a file chunk by chunk with {@link Cipher#update(byte[], int, int, byte[], int)}, so a value is never held in memory as a whole.
+     */
+    private static final class DecryptingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Cipher cipher;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] buffer;
+        private int position;
+        private int limit;
+        private boolean finished;
+
+        DecryptingInputStream(InputStream in, Cipher cipher) {
+            this.in = in;
+            this.cipher = cipher;
+            //room for a chunk and the block the cipher may hold back from the previous one
+            this.buffer = new byte[CHUNK_SIZE + 2 * IV_SIZE];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+            int count = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, target, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * @return Returns false at the end of the value.
+         */
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (finished) return false;
+                int count = in.read(chunk);
+                position = 0;
+                try {
+                    if (count == -1) {
+                        finished = true;
+                        limit = cipher.doFinal(buffer, 0);
+                    } else {
+                        limit = cipher.update(chunk, 0, count, buffer, 0);
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("unable to decrypt", e);
+                }
+            }
+            return true;
+        }
+    }
+}
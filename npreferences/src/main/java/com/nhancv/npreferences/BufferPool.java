@@ -0,0 +1,107 @@
+package com.nhancv.npreferences;
+
+import java.security.SecureRandom;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-thread scratch buffers for the encrypt and decrypt paths, so a steady-state read does not allocate anything but the returned value.
+ * <p>
+ * The buffers are only valid until the next call on the same thread, callers must copy out whatever they keep.
+ */
+final class BufferPool {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private static final ThreadLocal<BufferPool> pool = new ThreadLocal<BufferPool>() {
+        @Override
+        protected BufferPool initialValue() {
+            return new BufferPool();
+        }
+    };
+
+    private byte[] cipherText = new byte[INITIAL_SIZE];
+    private byte[] plainText = new byte[INITIAL_SIZE];
+    //compressed values on the write path, inflated values on the read path
+    private byte[] compression = new byte[INITIAL_SIZE];
+    private Deflater deflater;
+    private Inflater inflater;
+    //authenticated values: the data bound to the cipher text and a fresh nonce per write
+    private byte[] associatedData = new byte[INITIAL_SIZE];
+    private final byte[] nonce = new byte[AESCrypt.NONCE_SIZE];
+    private SecureRandom random;
+    //length of the value returned by the last read into this pool
+    int length;
+
+    private BufferPool() {
+    }
+
+    static BufferPool get() {
+        return pool.get();
+    }
+
+    /**
+     * @param size - The minimum size needed
+     * @return The buffer holding cipher text
+     */
+    byte[] cipherText(int size) {
+        if (cipherText.length < size) cipherText = new byte[grow(size)];
+        return cipherText;
+    }
+
+    /**
+     * @param size - The minimum size needed
+     * @return The buffer holding plain text
+     */
+    byte[] plainText(int size) {
+        if (plainText.length < size) plainText = new byte[grow(size)];
+        return plainText;
+    }
+
+    /**
+     * @param size - The minimum size needed
+     * @return The buffer holding compressed or inflated values
+     */
+    byte[] compression(int size) {
+        if (compression.length < size) compression = new byte[grow(size)];
+        return compression;
+    }
+
+    /**
+     * @return The Deflater of the calling thread, created on first use, callers reset it before use
+     */
+    Deflater deflater() {
+        if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        return deflater;
+    }
+
+    /**
+     * @return The Inflater of the calling thread, created on first use, callers reset it before use
+     */
+    Inflater inflater() {
+        if (inflater == null) inflater = new Inflater();
+        return inflater;
+    }
+
+    /**
+     * @param size - The minimum size needed
+     * @return The buffer holding the associated data of an authenticated value
+     */
+    byte[] associatedData(int size) {
+        if (associatedData.length < size) associatedData = new byte[grow(size)];
+        return associatedData;
+    }
+
+    /**
+     * @return The nonce buffer of the calling thread filled with new random bytes, the SecureRandom is created on first use
+     */
+    byte[] nextNonce() {
+        if (random == null) random = new SecureRandom();
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static int grow(int size) {
+        return Math.max(size, size + (size >> 1));
+    }
+}
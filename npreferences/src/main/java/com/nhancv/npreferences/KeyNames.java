@@ -0,0 +1,87 @@
+package com.nhancv.npreferences;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short key names derived from a keyed hash, used instead of encrypted names when {@link NPreferencesStore.Builder#hashedKeyNames(boolean)} is set.
+ * <p>
+ * A name is the first {@value #HASH_LENGTH} bytes of HMAC-SHA256 over the probe number and the plain key, written by {@link TextCodec#URL_SAFE}, with
+ * a subkey derived from the password so names of different passwords are unrelated. Every name has {@link #NAME_LENGTH} characters, which encrypted
+ * names of at least one cipher block never have, so both schemes can share a file. The plain key is kept at the end of the value, see
+ * {@link ValueCodec#appendKey(byte[], String)}, which lets readers check a name really belongs to their key: if it does not, the key moves on to the
+ * next of {@link #MAX_PROBES} names.
+ */
+final class KeyNames {
+
+    static final int HASH_LENGTH = 15;
+    static final int NAME_LENGTH = 1 + HASH_LENGTH / 3 * 4;
+    static final int MAX_PROBES = 4;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final byte[] SUBKEY_LABEL = "npreferences key names".getBytes(CHARSET);
+
+    private final SecretKeySpec subkey;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(subkey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+    };
+
+    /**
+     * @param key - The key values are encrypted with
+     */
+    KeyNames(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key.getEncoded(), ALGORITHM));
+            this.subkey = new SecretKeySpec(mac.doFinal(SUBKEY_LABEL), ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @param key   - The plain name of the preference
+     * @param probe - 0 for the first name of the key, up to {@link #MAX_PROBES} - 1 for the names used when the previous ones belong to other keys
+     * @return The stored name
+     */
+    String name(String key, int probe) {
+        Mac mac = macs.get();
+        //the probe has a fixed size and goes first, so no key followed by a probe hashes the same bytes as a longer key
+        mac.update((byte) probe);
+        mac.update(key.getBytes(CHARSET));
+        return TextCodec.URL_SAFE.encode(mac.doFinal(), 0, HASH_LENGTH);
+    }
+
+    /**
+     * @param name - A stored name
+     * @param key  - The plain key read from the value
+     * @return The probe the name was derived with, or -1 if it is not a name of the key
+     */
+    int probeOf(String name, String key) {
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            if (name.equals(name(key, probe))) return probe;
+        }
+        return -1;
+    }
+
+    /**
+     * @param name - A stored name
+     * @return Returns true if the name has the shape of a hashed name, which an encrypted name never has.
+     */
+    static boolean isHashed(String name) {
+        return name.length() == NAME_LENGTH && TextCodec.of(name) == TextCodec.URL_SAFE;
+    }
+}
@@ -0,0 +1,1038 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SharedPreferences} backed by an append-only, memory-mapped log file instead of an XML file.
+ * <p>
+ * Every commit is appended as one length-prefixed batch record with a CRC32 checksum, so a commit costs O(record) instead of rewriting the whole file,
+ * and either all of its changes or none of them survive a crash. On load the log is replayed up to the last intact record, a torn tail is dropped.
+ * Once more than {@link #setCompactionThreshold(float)} of the log is made of overwritten or removed records, it is rewritten with only the live
+ * entries on a background thread.
+ * <p>
+ * Reads take no lock: the entries are an immutable map, and every commit applies its batch to a copy that is published with a single reference swap,
+ * so a reader sees all changes of a commit or none of them.
+ * <p>
+ * In multi-process mode, see {@link #get(Context, String, boolean)}, every process appends to the same log while holding a {@link FileLock} on a small
+ * memory-mapped header file next to it. The header holds the committed length of the log, a generation bumped when compaction replaces the file, and a
+ * version bumped by every change. Reads compare the version with the one they last saw, which costs a single memory read, and only when it moved
+ * replay the records appended since, or reload the file after a compaction. Changes of other processes are seen on the next read or {@link #refresh()},
+ * and are reported to the listeners then.
+ */
+public class LogPreferences implements SharedPreferences {
+
+    private static final String TAG = LogPreferences.class.getSimpleName();
+    private static final String EXTENSION = ".nplog";
+    private static final String HEADER_EXTENSION = ".header";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x4E504C31; //"NPL1"
+    private static final int HEADER_SIZE = 4;
+    //length and checksum in front of every record
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAPPING_CHUNK = 64 * 1024;
+    private static final int MIN_COMPACTION_SIZE = 16 * 1024;
+    private static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+
+    //header file of multi-process mode: magic, generation of the log file, committed length of the log and version of the content
+    private static final int SHARED_MAGIC = 0x4E504831; //"NPH1"
+    private static final int GENERATION_OFFSET = 4;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int VERSION_OFFSET = 16;
+    private static final int SHARED_HEADER_SIZE = 24;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    //only read from logs written before batches, a commit is one batch record
+    private static final byte OP_CLEAR = 3;
+    //[clear][count] followed by count put or remove operations, applied as a whole
+    private static final byte OP_BATCH = 4;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private static final Map<String, LogPreferences> instances = new HashMap<>();
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG + "-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final boolean multiProcess;
+    private final Object lock = new Object();
+    //never changed once published, writers replace it holding the lock
+    private volatile Map<String, Object> map = new HashMap<>();
+    //key => size of the record holding its current value, used to account dead bytes
+    private final Map<String, Integer> recordSizes = new HashMap<>();
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private long deadBytes;
+    private volatile float compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private boolean compactionScheduled;
+
+    //multi-process mode only: the mapped header file, and the generation and version of the log as this instance last read it
+    private FileChannel headerChannel;
+    private MappedByteBuffer header;
+    private int generation;
+    private volatile long version;
+
+    private LogPreferences(File file, boolean multiProcess) throws IOException {
+        this.file = file;
+        this.multiProcess = multiProcess;
+        synchronized (lock) {
+            if (!multiProcess) {
+                load(false);
+                return;
+            }
+            openHeader();
+            FileLock fileLock = headerChannel.lock();
+            try {
+                boolean shared = header.getInt(0) == SHARED_MAGIC;
+                //a log used by a single process so far is read to its end, and published as the first version
+                load(shared);
+                if (!shared) {
+                    header.putInt(0, SHARED_MAGIC);
+                    publish();
+                }
+                generation = header.getInt(GENERATION_OFFSET);
+                version = header.getLong(VERSION_OFFSET);
+            } finally {
+                fileLock.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the log backed preferences with the given name, stored in the files directory of the context. Like
+     * {@link Context#getSharedPreferences(String, int)}, there is a single instance per file.
+     *
+     * @param context - Context used to locate the files directory
+     * @param name    - The name of the preferences file
+     * @return The preferences, or null if the file can not be opened
+     */
+    public static LogPreferences get(Context context, String name) {
+        return get(new File(context.getFilesDir(), name + EXTENSION));
+    }
+
+    /**
+     * Returns the log backed preferences with the given name, stored in the files directory of the context.
+     *
+     * @param context      - Context used to locate the files directory
+     * @param name         - The name of the preferences file
+     * @param multiProcess - true if other processes of the app use the file as well, every one of them must then open it in multi-process mode
+     * @return The preferences, or null if the file can not be opened
+     * @throws IllegalArgumentException if the file is already open in this process in the other mode
+     */
+    public static LogPreferences get(Context context, String name, boolean multiProcess) {
+        return get(new File(context.getFilesDir(), name + EXTENSION), multiProcess);
+    }
+
+    /**
+     * Returns the log backed preferences stored in the given file, there is a single instance per file.
+     *
+     * @param file - The log file, created if it does not exist
+     * @return The preferences, or null if the file can not be opened
+     */
+    public static LogPreferences get(File file) {
+        return get(file, false);
+    }
+
+    /**
+     * Returns the log backed preferences stored in the given file, there is a single instance per file.
+     *
+     * @param file         - The log file, created if it does not exist
+     * @param multiProcess - true if other processes of the app use the file as well, every one of them must then open it in multi-process mode
+     * @return The preferences, or null if the file can not be opened
+     * @throws IllegalArgumentException if the file is already open in this process in the other mode
+     */
+    public static LogPreferences get(File file, boolean multiProcess) {
+        synchronized (instances) {
+            String path = file.getAbsolutePath();
+            LogPreferences preferences = instances.get(path);
+            if (preferences == null) {
+                try {
+                    preferences = new LogPreferences(file, multiProcess);
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to open " + path, e);
+                    return null;
+                }
+                instances.put(path, preferences);
+            } else if (preferences.multiProcess != multiProcess) {
+                throw new IllegalArgumentException(path + " is already open " + (multiProcess ? "for this process only" : "in multi-process mode"));
+            }
+            return preferences;
+        }
+    }
+
+    /**
+     * @return Returns true if other processes may change the log, see {@link #get(Context, String, boolean)}.
+     */
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    /**
+     * Pick up the changes other processes committed since this instance last looked, telling the listeners about them. Costs a single read of the
+     * mapped header if there are none. Reads do this on their own, call it to be told about changes without reading.
+     *
+     * @return Returns true if another process changed the log.
+     */
+    public boolean refresh() {
+        if (!multiProcess || header.getLong(VERSION_OFFSET) == version) return false;
+        Set<String> changed = new HashSet<>();
+        synchronized (lock) {
+            FileLock fileLock = null;
+            try {
+                fileLock = headerChannel.lock(0, Long.MAX_VALUE, true);
+                catchUp(changed);
+            } catch (IOException e) {
+                Log.e(TAG, "unable to read the changes of other processes to " + file, e);
+            } finally {
+                release(fileLock);
+            }
+        }
+        notifyListeners(changed);
+        return true;
+    }
+
+    /**
+     * Set the share of dead records above which the log is compacted.
+     *
+     * @param threshold - Ratio of dead bytes to log size, between 0 and 1
+     */
+    public void setCompactionThreshold(float threshold) {
+        compactionThreshold = Math.max(0f, Math.min(1f, threshold));
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        refresh();
+        return new HashMap<>(map);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        refresh();
+        Object value = map.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        refresh();
+        Object value = map.get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        refresh();
+        Object value = map.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        refresh();
+        Object value = map.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        refresh();
+        Object value = map.get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        refresh();
+        Object value = map.get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        refresh();
+        return map.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new LogEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, this);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Open and map the file.
+     *
+     * @return The size of the file before it was mapped
+     */
+    private long open() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) throw new IOException("unable to create " + parent);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long size = channel.size();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, roundUp(Math.max(size, HEADER_SIZE)));
+        return size;
+    }
+
+    /**
+     * Open and map the header file of multi-process mode.
+     */
+    private void openHeader() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) throw new IOException("unable to create " + parent);
+        headerChannel = new RandomAccessFile(new File(file.getPath() + HEADER_EXTENSION), "rw").getChannel();
+        header = headerChannel.map(FileChannel.MapMode.READ_WRITE, 0, SHARED_HEADER_SIZE);
+    }
+
+    /**
+     * Open the file and replay the log into memory, dropping a torn tail.
+     *
+     * @param committed - true to only read up to the length committed in the header, other processes may be appending behind it
+     */
+    private void load(boolean committed) throws IOException {
+        long size = open();
+
+        //readers keep the previous entries until the whole log is replayed
+        Map<String, Object> loaded = new HashMap<>();
+        recordSizes.clear();
+        deadBytes = 0;
+        if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            position = HEADER_SIZE;
+            map = loaded;
+            return;
+        }
+
+        position = HEADER_SIZE;
+        boolean intact;
+        if (committed) {
+            int length = header.getInt(LENGTH_OFFSET);
+            ensureCapacity(length);
+            intact = replayRecords(length, loaded, null);
+        } else {
+            intact = replayRecords(buffer.capacity(), loaded, null);
+        }
+        map = loaded;
+        if (!committed && !intact) {
+            Log.w(TAG, "dropping torn log tail of " + file + " at " + position);
+            //zero the tail so records appended later are not followed by stale bytes
+            for (int i = position; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Replay the records from the current position, stopping at the end of the log, at end, or at a torn record.
+     *
+     * @param end     - Offset in the log to stop at
+     * @param target  - The unpublished map the records are applied to
+     * @param changed - Receives the keys the records change, may be null
+     * @return Returns false if a torn record was found.
+     */
+    private boolean replayRecords(int end, Map<String, Object> target, Set<String> changed) {
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int length = buffer.getInt(position);
+            if (length == 0) break;
+            if (length < 0 || length > end - position - RECORD_HEADER_SIZE) return false;
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) return false;
+            try {
+                replay(ByteBuffer.wrap(payload), RECORD_HEADER_SIZE + length, target, changed);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return false;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return true;
+    }
+
+    private void replay(ByteBuffer payload, int recordSize, Map<String, Object> target, Set<String> changed) {
+        byte op = payload.get();
+        if (op == OP_BATCH) {
+            applyBatch(readBatch(payload), recordSize, target, changed);
+            return;
+        }
+        if (op == OP_CLEAR) {
+            if (changed != null) changed.addAll(target.keySet());
+            clearInMemory(target);
+            deadBytes += recordSize;
+            return;
+        }
+        String key = readString(payload);
+        if (op == OP_PUT) {
+            putInMemory(target, key, readValue(payload), recordSize);
+        } else if (op == OP_REMOVE) {
+            removeInMemory(target, key);
+            deadBytes += recordSize;
+        } else {
+            throw new IllegalArgumentException("unknown op " + op);
+        }
+        if (changed != null) changed.add(key);
+    }
+
+    /**
+     * Apply the changes other processes committed since this instance last read the log. Must be called holding the lock and a file lock.
+     *
+     * @param changed - Receives the keys that changed
+     */
+    private void catchUp(Set<String> changed) throws IOException {
+        int length = header.getInt(LENGTH_OFFSET);
+        if (header.getInt(GENERATION_OFFSET) != generation) {
+            //another process compacted the log into a new file, which is read from its start
+            Map<String, Object> before = new HashMap<>(map);
+            channel.close();
+            randomAccessFile.close();
+            load(true);
+            generation = header.getInt(GENERATION_OFFSET);
+            for (Map.Entry<String, Object> entry : before.entrySet()) {
+                if (!entry.getValue().equals(map.get(entry.getKey()))) changed.add(entry.getKey());
+            }
+            for (String key : map.keySet()) {
+                if (!before.containsKey(key)) changed.add(key);
+            }
+        } else if (length > position) {
+            ensureCapacity(length);
+            Map<String, Object> next = new HashMap<>(map);
+            replayRecords(length, next, changed);
+            map = next;
+        }
+        version = header.getLong(VERSION_OFFSET);
+    }
+
+    /**
+     * Publish the log as written by this instance as the next version. Must be called holding the lock and an exclusive file lock.
+     */
+    private void publish() {
+        header.putInt(GENERATION_OFFSET, generation);
+        header.putInt(LENGTH_OFFSET, position);
+        version = header.getLong(VERSION_OFFSET) + 1;
+        header.putLong(VERSION_OFFSET, version);
+    }
+
+    private static void release(FileLock fileLock) {
+        if (fileLock == null) return;
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to release the lock", e);
+        }
+    }
+
+    /**
+     * Decode a whole batch record before any of it is applied, so a record that can not be decoded changes nothing.
+     */
+    private static Batch readBatch(ByteBuffer payload) {
+        Batch batch = new Batch(payload.get() != 0);
+        int count = payload.getInt();
+        if (count < 0 || count > payload.remaining()) throw new IllegalArgumentException("bad batch size " + count);
+        for (int i = 0; i < count; i++) {
+            int start = payload.position();
+            byte op = payload.get();
+            if (op != OP_PUT && op != OP_REMOVE) throw new IllegalArgumentException("unknown op in batch " + op);
+            String key = readString(payload);
+            Object value = op == OP_PUT ? readValue(payload) : null;
+            batch.add(key, value, payload.position() - start);
+        }
+        if (payload.hasRemaining()) throw new IllegalArgumentException("trailing bytes in batch");
+        return batch;
+    }
+
+    /**
+     * Apply a batch appended to the log to a copy of the in-memory map and publish it, so readers see all of the batch or none of it. Must be
+     * called holding the lock.
+     *
+     * @param batch      - The operations of the record
+     * @param recordSize - Size of the record in the log, the part not held by a live entry is dead
+     * @param changed    - Receives the keys the batch changes
+     */
+    private void publishBatch(Batch batch, int recordSize, Set<String> changed) {
+        Map<String, Object> next = new HashMap<>(map);
+        applyBatch(batch, recordSize, next, changed);
+        map = next;
+    }
+
+    /**
+     * Apply a batch appended to the log to a map that is not published yet.
+     *
+     * @param batch      - The operations of the record
+     * @param recordSize - Size of the record in the log, the part not held by a live entry is dead
+     * @param target     - The map to change
+     * @param changed    - Receives the keys the batch changes, may be null
+     */
+    private void applyBatch(Batch batch, int recordSize, Map<String, Object> target, Set<String> changed) {
+        int overhead = recordSize;
+        if (batch.clear) {
+            if (changed != null) changed.addAll(target.keySet());
+            clearInMemory(target);
+        }
+        for (int i = 0; i < batch.keys.size(); i++) {
+            String key = batch.keys.get(i);
+            Object value = batch.values.get(i);
+            int size = batch.sizes.get(i);
+            overhead -= size;
+            if (value == null) {
+                removeInMemory(target, key);
+                deadBytes += size;
+            } else {
+                putInMemory(target, key, value, size);
+            }
+            if (changed != null) changed.add(key);
+        }
+        deadBytes += overhead;
+    }
+
+    private void putInMemory(Map<String, Object> target, String key, Object value, int recordSize) {
+        target.put(key, value);
+        Integer previous = recordSizes.put(key, recordSize);
+        if (previous != null) deadBytes += previous;
+    }
+
+    private void removeInMemory(Map<String, Object> target, String key) {
+        target.remove(key);
+        Integer previous = recordSizes.remove(key);
+        if (previous != null) deadBytes += previous;
+    }
+
+    private void clearInMemory(Map<String, Object> target) {
+        target.clear();
+        for (Integer size : recordSizes.values()) {
+            deadBytes += size;
+        }
+        recordSizes.clear();
+    }
+
+    /**
+     * Append a record to the log, growing the mapping when needed.
+     *
+     * @return The size of the record in the log
+     */
+    private int append(byte[] payload, int length) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + length;
+        //keep room for a zero length terminator after the record
+        ensureCapacity(position + recordSize + 4);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + RECORD_HEADER_SIZE);
+        view.put(payload, 0, length);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+        position += recordSize;
+        return recordSize;
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        if (needed <= buffer.capacity()) return;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, roundUp(Math.max(needed, (long) buffer.capacity() * 2)));
+    }
+
+    private static long roundUp(long size) {
+        return (size + MAPPING_CHUNK - 1) / MAPPING_CHUNK * MAPPING_CHUNK;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled || position < MIN_COMPACTION_SIZE || deadBytes < position * compactionThreshold) return;
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Rewrite the log with only the live entries and swap it in place of the current file. The in-memory map is not touched, readers keep going.
+     * In multi-process mode the changes of other processes are read first, and the new generation tells them to reload the file.
+     */
+    void compact() {
+        Set<String> changed = new HashSet<>();
+        synchronized (lock) {
+            compactionScheduled = false;
+            FileLock fileLock = null;
+            try {
+                if (multiProcess) {
+                    fileLock = headerChannel.lock();
+                    catchUp(changed);
+                }
+                rewrite();
+            } catch (IOException e) {
+                Log.e(TAG, "unable to lock " + file + " for compaction", e);
+            } finally {
+                release(fileLock);
+            }
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * Write the live entries to a new file and swap it in. Must be called holding the lock, and an exclusive file lock in multi-process mode.
+     */
+    private void rewrite() {
+        File compacted = new File(file.getPath() + ".compact");
+        Map<String, Integer> sizes = new HashMap<>();
+        int length = HEADER_SIZE;
+        try {
+            FileOutputStream out = new FileOutputStream(compacted);
+            try {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(MAGIC);
+                CRC32 crc = new CRC32();
+                RecordBuilder builder = new RecordBuilder();
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    builder.reset();
+                    builder.put(entry.getKey(), entry.getValue());
+                    crc.reset();
+                    crc.update(builder.bytes(), 0, builder.size());
+                    data.writeInt(builder.size());
+                    data.writeInt((int) crc.getValue());
+                    data.write(builder.bytes(), 0, builder.size());
+                    sizes.put(entry.getKey(), RECORD_HEADER_SIZE + builder.size());
+                    length += RECORD_HEADER_SIZE + builder.size();
+                }
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "compaction of " + file + " failed", e);
+            //keep appending to the old log
+            compacted.delete();
+            return;
+        }
+
+        try {
+            channel.close();
+            randomAccessFile.close();
+            if (!compacted.renameTo(file)) throw new IOException("unable to replace " + file);
+            open();
+            position = length;
+            deadBytes = 0;
+            recordSizes.clear();
+            recordSizes.putAll(sizes);
+            if (multiProcess) {
+                generation++;
+                publish();
+                header.force();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "unable to reopen " + file + " after compaction", e);
+            try {
+                if (!channel.isOpen()) load(multiProcess);
+            } catch (IOException reopen) {
+                Log.e(TAG, "unable to reopen " + file, reopen);
+            }
+        }
+    }
+
+    /**
+     * Move the entries of another preferences file that the log does not hold yet into it, then clear that file. Entries already in the log are newer
+     * and kept. In multi-process mode this happens once for all processes, the first one to get here moves the entries.
+     *
+     * @param source - The preferences used before the log
+     * @return Returns true if the entries are in the log and the file was cleared.
+     */
+    boolean adopt(SharedPreferences source) {
+        Map<String, ?> entries = source.getAll();
+        if (entries.isEmpty()) return true;
+        Set<String> changed = new HashSet<>();
+        boolean result = true;
+        synchronized (lock) {
+            FileLock fileLock = null;
+            try {
+                if (multiProcess) {
+                    fileLock = headerChannel.lock();
+                    catchUp(changed);
+                }
+                //one batch, a crash can not leave part of the entries in the log and the rest only in the cleared file
+                RecordBuilder builder = new RecordBuilder();
+                Batch batch = new Batch(false);
+                builder.batch(false);
+                for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                    if (map.containsKey(entry.getKey())) continue;
+                    batch.add(entry.getKey(), entry.getValue(), builder.put(entry.getKey(), entry.getValue()));
+                }
+                if (!batch.keys.isEmpty()) {
+                    builder.count(batch.keys.size());
+                    publishBatch(batch, append(builder.bytes(), builder.size()), changed);
+                    buffer.force();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "unable to move the entries of the preferences into " + file, e);
+                result = false;
+            } finally {
+                if (fileLock != null) {
+                    publish();
+                    header.force();
+                    release(fileLock);
+                }
+            }
+        }
+        notifyListeners(changed);
+        return result && source.edit().clear().commit();
+    }
+
+    private void notifyListeners(Set<String> keys) {
+        if (keys.isEmpty()) return;
+        Set<OnSharedPreferenceChangeListener> current;
+        synchronized (listeners) {
+            if (listeners.isEmpty()) return;
+            current = new HashSet<>(listeners.keySet());
+        }
+        for (String key : keys) {
+            for (OnSharedPreferenceChangeListener listener : current) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer source) {
+        int length = source.getInt();
+        if (length < 0 || length > source.remaining()) throw new IllegalArgumentException("bad string length " + length);
+        String value = new String(source.array(), source.arrayOffset() + source.position(), length, CHARSET);
+        source.position(source.position() + length);
+        return value;
+    }
+
+    private static Object readValue(ByteBuffer source) {
+        byte type = source.get();
+        switch (type) {
+            case TYPE_STRING:
+                return readString(source);
+            case TYPE_INT:
+                return source.getInt();
+            case TYPE_LONG:
+                return source.getLong();
+            case TYPE_FLOAT:
+                return source.getFloat();
+            case TYPE_BOOLEAN:
+                return source.get() != 0;
+            case TYPE_STRING_SET:
+                int count = source.getInt();
+                Set<String> values = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    values.add(readString(source));
+                }
+                return values;
+            default:
+                throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+
+    /**
+     * The operations of one batch record.
+     */
+    private static final class Batch {
+
+        private final boolean clear;
+        private final List<String> keys = new ArrayList<>();
+        //null marks a removal
+        private final List<Object> values = new ArrayList<>();
+        //size of every operation in the record
+        private final List<Integer> sizes = new ArrayList<>();
+
+        Batch(boolean clear) {
+            this.clear = clear;
+        }
+
+        void add(String key, Object value, int size) {
+            keys.add(key);
+            values.add(value);
+            sizes.add(size);
+        }
+    }
+
+    /**
+     * Encodes record payloads into a reused buffer.
+     */
+    private static final class RecordBuilder {
+
+        private final Output output = new Output();
+        private final DataOutputStream data = new DataOutputStream(output);
+
+        /**
+         * Start a batch record, its operations are added by {@link #put(String, Object)} and {@link #remove(String)}.
+         */
+        void batch(boolean clear) throws IOException {
+            output.reset();
+            data.writeByte(OP_BATCH);
+            data.writeBoolean(clear);
+            data.writeInt(0);
+        }
+
+        /**
+         * Write the number of operations of the batch record being built.
+         */
+        void count(int count) {
+            byte[] bytes = output.buffer();
+            for (int i = 0; i < 4; i++) {
+                bytes[2 + i] = (byte) (count >>> (24 - 8 * i));
+            }
+        }
+
+        void reset() {
+            output.reset();
+        }
+
+        /**
+         * Add a put operation to the record.
+         *
+         * @return The size of the operation
+         */
+        int put(String key, Object value) throws IOException {
+            int start = output.size();
+            data.writeByte(OP_PUT);
+            writeString(key);
+            if (value instanceof String) {
+                data.writeByte(TYPE_STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                data.writeByte(TYPE_INT);
+                data.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                data.writeByte(TYPE_LONG);
+                data.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                data.writeByte(TYPE_FLOAT);
+                data.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                data.writeByte(TYPE_BOOLEAN);
+                data.writeBoolean((Boolean) value);
+            } else if (value instanceof Set) {
+                Set<?> values = (Set<?>) value;
+                data.writeByte(TYPE_STRING_SET);
+                data.writeInt(values.size());
+                for (Object item : values) {
+                    writeString((String) item);
+                }
+            } else {
+                throw new IllegalArgumentException("unsupported value " + value);
+            }
+            return output.size() - start;
+        }
+
+        /**
+         * Add a remove operation to the record.
+         *
+         * @return The size of the operation
+         */
+        int remove(String key) throws IOException {
+            int start = output.size();
+            data.writeByte(OP_REMOVE);
+            writeString(key);
+            return output.size() - start;
+        }
+
+        byte[] bytes() {
+            return output.buffer();
+        }
+
+        int size() {
+            return output.size();
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(CHARSET);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+
+        private static final class Output extends ByteArrayOutputStream {
+            byte[] buffer() {
+                return buf;
+            }
+        }
+    }
+
+    /**
+     * Editor staging changes until they are appended to the log by {@link #commit()} or {@link #apply()}.
+     */
+    private final class LogEditor implements Editor {
+
+        //removed marks a removal
+        private final Map<String, Object> changes = new LinkedHashMap<>();
+        private final Object removed = new Object();
+        private boolean clear;
+
+        @Override
+        public synchronized Editor putString(String key, String value) {
+            changes.put(key, value == null ? removed : value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putStringSet(String key, Set<String> values) {
+            changes.put(key, values == null ? removed : new HashSet<>(values));
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            changes.put(key, removed);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(true);
+        }
+
+        @Override
+        public void apply() {
+            write(false);
+        }
+
+        /**
+         * Append the staged changes to the log as one batch record and update the in-memory map. The map is only changed once the whole record is
+         * in the log, a failed commit leaves both untouched.
+         *
+         * @param force - true to flush the mapping to disk before returning
+         * @return true if the changes were written to the log
+         */
+        private synchronized boolean write(boolean force) {
+            Set<String> changed = new HashSet<>();
+            boolean result = true;
+            synchronized (lock) {
+                RecordBuilder builder = new RecordBuilder();
+                FileLock fileLock = null;
+                try {
+                    if (multiProcess) {
+                        //removals and clear are applied to the map as other processes left it
+                        fileLock = headerChannel.lock();
+                        catchUp(changed);
+                    }
+                    Batch batch = new Batch(clear);
+                    builder.batch(clear);
+                    for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                        String key = entry.getKey();
+                        Object value = entry.getValue();
+                        if (value == removed) {
+                            //the clear runs first, so removals after it have nothing to remove
+                            if (clear || !map.containsKey(key)) continue;
+                            batch.add(key, null, builder.remove(key));
+                        } else {
+                            batch.add(key, value, builder.put(key, value));
+                        }
+                    }
+                    if (clear || !batch.keys.isEmpty()) {
+                        builder.count(batch.keys.size());
+                        publishBatch(batch, append(builder.bytes(), builder.size()), changed);
+                        if (force) buffer.force();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "unable to write " + file, e);
+                    result = false;
+                } finally {
+                    //nothing is appended by a failed commit, so the length published is the one of the last intact record
+                    if (fileLock != null) {
+                        publish();
+                        if (force) header.force();
+                        release(fileLock);
+                    }
+                }
+                scheduleCompactionIfNeeded();
+            }
+            changes.clear();
+            clear = false;
+            notifyListeners(changed);
+            return result;
+        }
+    }
+}
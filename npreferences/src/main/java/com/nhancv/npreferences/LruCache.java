@@ -0,0 +1,87 @@
+package com.nhancv.npreferences;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache for values read far more often than they are added, such as derived keys and key names.
+ * <p>
+ * Lookups take no lock. Every entry remembers the value of a clock advanced by each entry added, read at its last lookup, and written only when it
+ * moved, so threads looking up the same entry do not fight over it. Once the cache is full, adding an entry drops the one whose last lookup is the
+ * oldest, which is the least recently used one up to entries looked up between the same two additions.
+ *
+ * @param <K> - Type of the keys
+ * @param <V> - Type of the values
+ */
+final class LruCache<K, V> {
+
+    private final int capacity;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private volatile long clock;
+
+    /**
+     * @param capacity - Number of entries kept
+     */
+    LruCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param key - The key to look up
+     * @return The cached value, or null if there is none
+     */
+    V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) return null;
+        long now = clock;
+        if (entry.lastUsed != now) entry.lastUsed = now;
+        return entry.value;
+    }
+
+    boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Add or replace an entry, dropping the least recently used one if the cache is full.
+     *
+     * @param key   - The key of the entry
+     * @param value - The value of the entry
+     * @return The value of the entry dropped to make room, or null if none was
+     */
+    V put(K key, V value) {
+        synchronized (entries) {
+            V evicted = null;
+            if (entries.size() >= capacity && !entries.containsKey(key)) {
+                K eldest = null;
+                long eldestUse = Long.MAX_VALUE;
+                for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                    if (entry.getValue().lastUsed < eldestUse) {
+                        eldest = entry.getKey();
+                        eldestUse = entry.getValue().lastUsed;
+                    }
+                }
+                if (eldest != null) evicted = entries.remove(eldest).value;
+            }
+            entries.put(key, new Entry<>(value, ++clock));
+            return evicted;
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private volatile long lastUsed;
+
+        private Entry(V value, long lastUsed) {
+            this.value = value;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.nhancv.npreferences;
+
+/**
+ * Receives timings and cache statistics from a {@link NPreferencesStore}.
+ * <p>
+ * Methods are called on the thread doing the work, often in the middle of a read, so implementations must be thread-safe and cheap, for example
+ * {@link MetricsRecorder}. With {@link #NONE}, the default, the store does not even read the clock.
+ */
+public interface MetricsListener {
+
+    /**
+     * The timed steps of reads and writes.
+     */
+    enum Operation {
+        /**
+         * Deriving the AES key from the password, once per store.
+         */
+        KEY_DERIVATION,
+        /**
+         * AES encryption of a key name or value.
+         */
+        ENCRYPT,
+        /**
+         * AES decryption of a key name or value.
+         */
+        DECRYPT,
+        /**
+         * Turning cipher text into stored text and back, see {@link TextCodec}.
+         */
+        CODEC,
+        /**
+         * Compressing values before encryption and inflating them after decryption, see {@link NPreferences#setCompressionThreshold(int)}.
+         */
+        COMPRESSION,
+        /**
+         * A lookup in the backing {@link android.content.SharedPreferences}.
+         */
+        BACKEND_READ,
+        /**
+         * {@link NPreferences.EncryptedEditor#commit()}, or writing the changes staged in write-behind mode.
+         */
+        COMMIT,
+        /**
+         * {@link NPreferences.EncryptedEditor#apply()}.
+         */
+        APPLY
+    }
+
+    /**
+     * The in-memory caches of a store.
+     */
+    enum Cache {
+        /**
+         * Encrypted names of plain keys.
+         */
+        KEY_NAME,
+        /**
+         * Decoded values, see {@link NPreferences#setCacheEnabled(boolean)}.
+         */
+        VALUE,
+        /**
+         * The decoded snapshot, see {@link NPreferences#setSnapshotEnabled(boolean)}. A miss means the whole store was decrypted.
+         */
+        SNAPSHOT
+    }
+
+    /**
+     * A listener that ignores everything.
+     */
+    MetricsListener NONE = new MetricsListener() {
+        @Override
+        public void onLatency(Operation operation, long nanos) {
+        }
+
+        @Override
+        public void onCacheLookup(Cache cache, boolean hit) {
+        }
+    };
+
+    /**
+     * @param operation - The step that was timed
+     * @param nanos     - How long it took, in nanoseconds
+     */
+    void onLatency(Operation operation, long nanos);
+
+    /**
+     * @param cache - The cache that was looked up
+     * @param hit   - true if the cache held the entry
+     */
+    void onCacheLookup(Cache cache, boolean hit);
+}
@@ -0,0 +1,115 @@
+package com.nhancv.npreferences;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link MetricsListener} keeping counters and latency histograms in memory, to be read periodically and forwarded to telemetry.
+ * <p>
+ * Latencies are counted in power-of-two buckets of nanoseconds, so recording is a few atomic increments without allocation or locking, and
+ * percentiles are accurate to a factor of two.
+ */
+public class MetricsRecorder implements MetricsListener {
+
+    private static final int BUCKETS = 64;
+    private static final int OPERATIONS = Operation.values().length;
+    private static final int CACHES = Cache.values().length;
+
+    //per operation: BUCKETS histogram buckets, then the count and the total nanos
+    private final AtomicLongArray latencies = new AtomicLongArray(OPERATIONS * (BUCKETS + 2));
+    //per cache: hits, then misses
+    private final AtomicLongArray lookups = new AtomicLongArray(CACHES * 2);
+
+    @Override
+    public void onLatency(Operation operation, long nanos) {
+        int base = operation.ordinal() * (BUCKETS + 2);
+        latencies.incrementAndGet(base + bucketOf(nanos));
+        latencies.incrementAndGet(base + BUCKETS);
+        latencies.addAndGet(base + BUCKETS + 1, nanos);
+    }
+
+    @Override
+    public void onCacheLookup(Cache cache, boolean hit) {
+        lookups.incrementAndGet(cache.ordinal() * 2 + (hit ? 0 : 1));
+    }
+
+    /**
+     * @param operation - The timed step
+     * @return The number of times the step was recorded
+     */
+    public long getCount(Operation operation) {
+        return latencies.get(operation.ordinal() * (BUCKETS + 2) + BUCKETS);
+    }
+
+    /**
+     * @param operation - The timed step
+     * @return The total time spent in the step, in nanoseconds
+     */
+    public long getTotalNanos(Operation operation) {
+        return latencies.get(operation.ordinal() * (BUCKETS + 2) + BUCKETS + 1);
+    }
+
+    /**
+     * @param operation  - The timed step
+     * @param percentile - The percentile, between 0 and 100
+     * @return An upper bound of the latency at the percentile, in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileNanos(Operation operation, double percentile) {
+        int base = operation.ordinal() * (BUCKETS + 2);
+        long count = latencies.get(base + BUCKETS);
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latencies.get(base + i);
+            if (seen >= rank && seen > 0) return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i + 1) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @param operation - The timed step
+     * @return The number of recordings per bucket, bucket i counts latencies between 2^i and 2^(i+1) - 1 nanoseconds
+     */
+    public long[] getHistogram(Operation operation) {
+        int base = operation.ordinal() * (BUCKETS + 2);
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = latencies.get(base + i);
+        }
+        return histogram;
+    }
+
+    public long getHitCount(Cache cache) {
+        return lookups.get(cache.ordinal() * 2);
+    }
+
+    public long getMissCount(Cache cache) {
+        return lookups.get(cache.ordinal() * 2 + 1);
+    }
+
+    /**
+     * @param cache - The cache
+     * @return The share of lookups that were hits, between 0 and 1, or 0 if there were none
+     */
+    public double getHitRate(Cache cache) {
+        long hits = getHitCount(cache);
+        long total = hits + getMissCount(cache);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Set every counter back to 0, for example after forwarding them. Recordings made at the same time may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < latencies.length(); i++) {
+            latencies.set(i, 0);
+        }
+        for (int i = 0; i < lookups.length(); i++) {
+            lookups.set(i, 0);
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+}
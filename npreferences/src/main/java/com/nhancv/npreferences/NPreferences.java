@@ -2,42 +2,114 @@ package com.nhancv.npreferences;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.lang.ref.WeakReference;
-import java.security.GeneralSecurityException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 /**
  * Created by Nhan Cao on 06-Sep-16.
  */
 public class NPreferences {
 
-    private static final String TAG = NPreferences.class.getSimpleName();
-
-    private String cryptoKey;
-    private Utils utils;
-    private EncryptedEditor encryptedEditor;
-    private SharedPreferences sharedPreferences;
-    private boolean isDebug;
-
-    private WeakReference<Context> context;
+    private static final String DEFAULT_PREFS_NAME = "prefsName";
+    private static final Object lock = new Object();
+    private static volatile NPreferencesStore defaultStore;
+    //the initAsync() whose store has not been published yet, reads before then wait for it to be built
+    private static volatile NPreferencesStore.AsyncBuild pendingInit;
+    //bumped by the static setters of options needing a new store, so a store built in the background can tell they changed meanwhile
+    private static int optionsVersion;
+    //set by those setters while there is a default store, which is then rebuilt once on its next use instead of once per setter
+    private static volatile boolean isRebuildPending;
+    //options set through the static setters, applied whenever the default store is built or updated
+    private static boolean isDebug;
+    private static boolean isCacheEnabled;
+    private static boolean isSnapshotEnabled;
+    private static boolean isWriteBehindEnabled;
+    private static long writeBehindWindow = NPreferencesStore.DEFAULT_WRITE_BEHIND_WINDOW;
+    private static int compressionThreshold = -1;
+    private static TextCodec textCodec = TextCodec.ESCAPED;
+    private static boolean isLegacyFallback = true;
+    private static boolean isHashedKeyNames;
+    private static boolean isAuthenticatedValues;
+    private static MetricsListener metrics = MetricsListener.NONE;
 
     private NPreferences() {
-        this.utils = new Utils(this);
     }
 
+    /**
+     * @deprecated The static methods act on {@link #getDefault()}, use {@link NPreferencesStore.Builder} for independent stores.
+     */
+    @Deprecated
     public static NPreferences getInstance() {
         return SingletonHelper.INSTANCE;
     }
 
+    /**
+     * Returns the store the static methods act on.
+     *
+     * @return The default {@link NPreferencesStore}
+     * @throws IllegalStateException if none of the init methods has been called
+     */
+    public static NPreferencesStore getDefault() {
+        NPreferencesStore store = defaultStore;
+        if (store != null) return isRebuildPending ? rebuildIfPending() : store;
+        NPreferencesStore.AsyncBuild pending = pendingInit;
+        if (pending == null) throw new IllegalStateException("NPreferences.init() has not been called");
+        return awaitBuilt(pending);
+    }
+
+    /**
+     * Wait for the store of an {@link #initAsync} to be built, without waiting for it to be warmed up.
+     */
+    private static NPreferencesStore awaitBuilt(NPreferencesStore.AsyncBuild pending) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return pending.built.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("NPreferences.initAsync() failed", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replace the default store. Reads already running finish on the old store, which is flushed and closed once the new one is published.
+     *
+     * @param store - The new default store
+     */
+    public static void setDefault(NPreferencesStore store) {
+        NPreferencesStore previous;
+        synchronized (lock) {
+            previous = defaultStore;
+            defaultStore = store;
+            pendingInit = null;
+            isRebuildPending = false;
+        }
+        if (previous != null && previous != store) previous.close();
+    }
+
     public static void init(Context context) {
-        init("prefsName", context);
+        init(DEFAULT_PREFS_NAME, context);
     }
 
     public static void init(Context context, String encryptedKey) {
-        init("prefsName", context, encryptedKey);
+        init(DEFAULT_PREFS_NAME, context, encryptedKey);
     }
 
     public static void init(String prefsName, Context context) {
@@ -45,17 +117,172 @@ public class NPreferences {
     }
 
     public static void init(String prefsName, Context context, String encryptedKey) {
-        getInstance().context = new WeakReference<>(context);
+        init(new NPreferencesStore.Builder(context).name(prefsName), encryptedKey);
+    }
+
+    /**
+     * Initialize after a {@link #rotatePassword(String)} that may not have finished, resuming it in the background.
+     *
+     * @param prefsName    - Name of the preferences file
+     * @param context      - Context used to open the preferences
+     * @param encryptedKey - The new password
+     * @param previousKey  - The password before the rotation, to be passed until {@link NPreferencesStore#isRotating()} returns false
+     */
+    public static void init(String prefsName, Context context, String encryptedKey, String previousKey) {
+        init(new NPreferencesStore.Builder(context).name(prefsName).previousPassword(previousKey), encryptedKey);
+    }
+
+    /**
+     * Switch the default store to a new password. Entries are encrypted again in small batches on a background thread, and until that is finished
+     * reads of entries not moved yet fall back to the current password, which must be passed to
+     * {@link #init(String, Context, String, String)} until then.
+     *
+     * @param newPassword - The new password
+     * @throws IllegalStateException if the entries of an earlier rotation are still being moved
+     */
+    public static void rotatePassword(String newPassword) {
+        synchronized (lock) {
+            //the rotated store takes the current options, so a rebuild still pending is skipped
+            NPreferencesStore store = defaultStore != null ? defaultStore : getDefault();
+            //changes staged with the current password must be on disk before the rotation looks for entries to move
+            store.flush();
+            NPreferencesStore rotated = withOptions(store.buildUpon().rotatePassword(newPassword)).build();
+            rotated.adoptObservers(store);
+            setDefault(rotated);
+        }
+    }
+
+    /**
+     * Initialize with any {@link SharedPreferences} implementation as the backing store, for example {@link LogPreferences}.
+     *
+     * @param preferences  - The store the encrypted entries are written to
+     * @param context      - Context used to derive the default password
+     * @param encryptedKey - The password, or null to use the package name
+     */
+    public static void init(SharedPreferences preferences, Context context, String encryptedKey) {
+        init(new NPreferencesStore.Builder(context).sharedPreferences(preferences), encryptedKey);
+    }
+
+    /**
+     * Initialize a store shared with other processes of the app, for example a sync service, see {@link NPreferencesStore.Builder#multiProcess(boolean)}.
+     * Every process must initialize it this way.
+     *
+     * @param prefsName    - Name of the preferences file
+     * @param context      - Context used to open the preferences
+     * @param encryptedKey - The password, or null to use the package name
+     */
+    public static void initMultiProcess(String prefsName, Context context, String encryptedKey) {
+        init(new NPreferencesStore.Builder(context).name(prefsName).multiProcess(true), encryptedKey);
+    }
+
+    private static void init(NPreferencesStore.Builder builder, String encryptedKey) {
+        synchronized (lock) {
+            setDefault(withOptions(builder.password(encryptedKey)).build());
+        }
+    }
+
+    /**
+     * Initialize on a background thread: open and load the preferences file, derive the key, warm up the crypto provider and decrypt the hot keys.
+     * Reads issued meanwhile only wait until the file is loaded and the key derived, not for the warm-up.
+     *
+     * @param context      - Context used to open the preferences and to derive the default password
+     * @param encryptedKey - The password, or null to use the package name
+     * @param hotKeys      - Preferences to decrypt in advance, kept if the value cache or snapshot reads are enabled, may be null
+     * @param callback     - Called on the background thread once the store is ready, may be null
+     * @return A future completing with the default store once it is ready
+     */
+    public static Future<NPreferencesStore> initAsync(Context context, String encryptedKey, Collection<String> hotKeys,
+                                                      NPreferencesStore.ReadyCallback callback) {
+        return initAsync(DEFAULT_PREFS_NAME, context, encryptedKey, hotKeys, callback);
+    }
+
+    /**
+     * Initialize on a background thread, see {@link #initAsync(Context, String, Collection, NPreferencesStore.ReadyCallback)}.
+     *
+     * @param prefsName    - Name of the preferences file, or null for the default preferences of the context
+     * @param context      - Context used to open the preferences and to derive the default password
+     * @param encryptedKey - The password, or null to use the package name
+     * @param hotKeys      - Preferences to decrypt in advance, kept if the value cache or snapshot reads are enabled, may be null
+     * @param callback     - Called on the background thread once the store is ready, may be null
+     * @return A future completing with the default store once it is ready
+     */
+    public static Future<NPreferencesStore> initAsync(String prefsName, Context context, String encryptedKey, Collection<String> hotKeys,
+                                                      NPreferencesStore.ReadyCallback callback) {
+        synchronized (lock) {
+            final int version = optionsVersion;
+            NPreferencesStore.Builder builder = withOptions(new NPreferencesStore.Builder(context).name(prefsName).password(encryptedKey));
+            NPreferencesStore.AsyncBuild build = new NPreferencesStore.AsyncBuild(builder, hotKeys, callback) {
+                @Override
+                NPreferencesStore onBuilt(NPreferencesStore store) {
+                    return publish(this, store, version);
+                }
+            };
+            pendingInit = build;
+            build.start();
+            return build.ready;
+        }
+    }
 
-        getInstance().sharedPreferences = TextUtils.isEmpty(prefsName) ?
-                PreferenceManager.getDefaultSharedPreferences(context) :
-                context.getSharedPreferences(prefsName, 0);
-        getInstance().initEncryptedEditor();
-        if (!TextUtils.isEmpty(encryptedKey)) withEncryptionPassword(encryptedKey);
+    /**
+     * Make the store built by an {@link #initAsync} the default, unless another init replaced it meanwhile.
+     */
+    private static NPreferencesStore publish(NPreferencesStore.AsyncBuild build, NPreferencesStore store, int version) {
+        synchronized (lock) {
+            if (pendingInit != build) return store;
+            if (version != optionsVersion) {
+                NPreferencesStore configured = withOptions(store.buildUpon()).build();
+                store.close();
+                store = configured;
+            } else {
+                store.applyWriteOptions(withOptions(store.buildUpon()));
+            }
+            setDefault(store);
+            return store;
+        }
     }
 
-    private static void withEncryptionPassword(String encryptionPassword) {
-        getInstance().initCryptoKey(encryptionPassword);
+    private static NPreferencesStore.Builder withOptions(NPreferencesStore.Builder builder) {
+        return builder.textCodec(textCodec, isLegacyFallback)
+                .hashedKeyNames(isHashedKeyNames)
+                .authenticatedValues(isAuthenticatedValues)
+                .cacheEnabled(isCacheEnabled)
+                .snapshotReads(isSnapshotEnabled)
+                .writeBehind(isWriteBehindEnabled, writeBehindWindow)
+                .debug(isDebug)
+                .compression(compressionThreshold)
+                .metrics(metrics);
+    }
+
+    /**
+     * Have the default store, if there is one, replaced by a copy using the current options on its next use, so a run of setters builds it once.
+     * Must be called holding the lock.
+     */
+    private static void rebuild() {
+        optionsVersion++;
+        if (defaultStore != null) isRebuildPending = true;
+    }
+
+    /**
+     * Replace the default store with a copy using the current options if a setter asked for it since it was built.
+     */
+    private static NPreferencesStore rebuildIfPending() {
+        synchronized (lock) {
+            NPreferencesStore store = defaultStore;
+            if (!isRebuildPending) return store;
+            NPreferencesStore rebuilt = withOptions(store.buildUpon()).build();
+            rebuilt.adoptObservers(store);
+            setDefault(rebuilt);
+            return rebuilt;
+        }
+    }
+
+    /**
+     * Apply the options that only change how values are written to the default store, if there is one, in place. It keeps its caches and the
+     * {@link NPreferencesStore.Key} handles it returned stay valid. Must be called holding the lock.
+     */
+    private static void update() {
+        NPreferencesStore store = defaultStore;
+        if (store != null) store.applyWriteOptions(withOptions(store.buildUpon()));
     }
 
     /**
@@ -67,7 +294,7 @@ public class NPreferences {
      * int.
      */
     public static int getInt(String key, int defaultValue) {
-        return (Integer) getInstance().decryptType(key, 0, defaultValue);
+        return getDefault().getInt(key, defaultValue);
     }
 
     /**
@@ -79,7 +306,7 @@ public class NPreferences {
      * long
      */
     public static long getLong(String key, long defaultValue) {
-        return (Long) getInstance().decryptType(key, 0L, defaultValue);
+        return getDefault().getLong(key, defaultValue);
     }
 
     /**
@@ -91,7 +318,7 @@ public class NPreferences {
      * boolean
      */
     public static boolean getBoolean(String key, boolean defaultValue) {
-        return (Boolean) getInstance().decryptType(key, defaultValue, defaultValue);
+        return getDefault().getBoolean(key, defaultValue);
     }
 
     /**
@@ -103,7 +330,7 @@ public class NPreferences {
      * float
      */
     public static float getFloat(String key, float defaultValue) {
-        return (Float) getInstance().decryptType(key, 0f, defaultValue);
+        return getDefault().getFloat(key, defaultValue);
     }
 
     /**
@@ -115,7 +342,31 @@ public class NPreferences {
      * a String
      */
     public static String getString(String key, String defaultValue) {
-        return (String) getInstance().decryptType(key, "", defaultValue);
+        return getDefault().getString(key, defaultValue);
+    }
+
+    /**
+     * Retrieve a byte value from the preferences, reading it into memory.
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist or can not be read
+     * @return byte[] - Returns a copy of the preference value if it exists, or defValue.
+     * @see NPreferencesStore#getBytes(String, byte[])
+     */
+    public static byte[] getBytes(String key, byte[] defaultValue) {
+        return getDefault().getBytes(key, defaultValue);
+    }
+
+    /**
+     * Open a byte value of the preferences, decrypting a value kept in a side file while it is read.
+     *
+     * @param key - The name of the preference to retrieve
+     * @return Returns a stream over the preference value, to be closed by the caller, or null if it does not exist or is not a byte value.
+     * @throws IOException if the side file of the value can not be opened
+     * @see NPreferencesStore#getStream(String)
+     */
+    public static InputStream getStream(String key) throws IOException {
+        return getDefault().getStream(key);
     }
 
     /**
@@ -125,19 +376,94 @@ public class NPreferences {
      * @return Returns true if the preference exists in the preferences, otherwise false.
      */
     public static boolean contains(String key) {
-        String encKey = getInstance().encryptString(key);
-        return getInstance().sharedPreferences.contains(encKey);
+        return getDefault().contains(key);
+    }
+
+    /**
+     * Retrieve all values from the preferences in one pass, decrypting them in parallel. Values written by older versions of the library are returned
+     * as String, byte values as byte[] which must not be modified, and values kept in side files are left out.
+     *
+     * @return Returns a snapshot of the plain keys and their decoded values.
+     */
+    public static Map<String, Object> getAll() {
+        return getDefault().getAll();
+    }
+
+    /**
+     * Decrypt the given preferences in parallel and keep them in the value cache, if it is enabled.
+     *
+     * @param keys - The names of the preferences to read
+     * @return Returns a snapshot of the keys that exist and their decoded values.
+     */
+    public static Map<String, Object> prefetch(Collection<String> keys) {
+        return getDefault().prefetch(keys);
+    }
+
+    /**
+     * Write every preference to a stream as a backup, re-encrypted under its own password.
+     *
+     * @param out            - Receives the backup, it is not closed
+     * @param backupPassword - The password the backup is encrypted with
+     * @return Returns the number of preferences written.
+     * @throws IOException if the backup can not be written or a side file can not be read
+     * @see NPreferencesStore#exportTo(OutputStream, String)
+     */
+    public static int exportTo(OutputStream out, String backupPassword) throws IOException {
+        return getDefault().exportTo(out, backupPassword);
+    }
+
+    /**
+     * Restore the preferences of a backup written by {@link #exportTo(OutputStream, String)}, committing them in batches.
+     *
+     * @param in             - The backup, it is not closed
+     * @param backupPassword - The password the backup was encrypted with
+     * @return Returns the number of preferences restored.
+     * @throws IOException if the backup can not be read or checked, or a batch can not be written
+     * @see NPreferencesStore#importFrom(InputStream, String)
+     */
+    public static int importFrom(InputStream in, String backupPassword) throws IOException {
+        return getDefault().importFrom(in, backupPassword);
+    }
+
+    /**
+     * Call back with the value of a preference now and whenever it changes, on a shared background thread. Observations survive the static setters.
+     *
+     * @param key      - The name of the preference to observe
+     * @param type     - String, Integer, Long, Float, Boolean or byte[]
+     * @param callback - Receives the new values
+     * @return The observation, to be cancelled once the values are no longer needed
+     * @see NPreferencesStore#observe(String, Class, NPreferencesStore.ChangeCallback)
+     */
+    public static <T> NPreferencesStore.Observation<T> observe(String key, Class<T> type, NPreferencesStore.ChangeCallback<T> callback) {
+        return getDefault().observe(key, type, callback);
+    }
+
+    /**
+     * Call back with the value of a preference now and whenever it changes, reading it only after a burst of changes settled and only if it changed.
+     * Observations survive the static setters.
+     *
+     * @param key            - The name of the preference to observe
+     * @param type           - String, Integer, Long, Float, Boolean or byte[]
+     * @param executor       - Runs the reads and the callbacks, or null for a shared background thread
+     * @param debounceMillis - How long to wait for further changes before reading the value
+     * @param callback       - Receives the new values
+     * @return The observation, to be cancelled once the values are no longer needed
+     * @see NPreferencesStore#observe(String, Class, Executor, long, NPreferencesStore.ChangeCallback)
+     */
+    public static <T> NPreferencesStore.Observation<T> observe(String key, Class<T> type, Executor executor, long debounceMillis,
+                                                               NPreferencesStore.ChangeCallback<T> callback) {
+        return getDefault().observe(key, type, executor, debounceMillis, callback);
     }
 
     /**
      * Get the Editor for these preferences, through which you can make modifications to the data in the preferences and atomically commit those changes
      * back to
-     * the SharedPreferences object.
+     * the SharedPreferences object. Nothing is written until {@link EncryptedEditor#apply()} or {@link EncryptedEditor#commit()} is called.
      *
      * @return {@link EncryptedEditor}
      */
     public static EncryptedEditor edit() {
-        return getInstance().encryptedEditor;
+        return getDefault().edit();
     }
 
     /**
@@ -146,121 +472,165 @@ public class NPreferences {
      * @return The {@link Utils} instance for this preferences configuration.
      */
     public static Utils getUtils() {
-        return getInstance().utils;
+        return getDefault().getUtils();
     }
 
+    /**
+     * @deprecated Use {@link NPreferencesStore#isDebug()}.
+     */
+    @Deprecated
     public boolean isDebug() {
         return isDebug;
     }
 
     public static void setDebug(boolean debug) {
-        getInstance().isDebug = debug;
-    }
-
-    private void initEncryptedEditor() {
-        encryptedEditor = new EncryptedEditor(this);
+        synchronized (lock) {
+            isDebug = debug;
+            update();
+        }
     }
 
-    private void initCryptoKey(String encryptionPassword) {
-        cryptoKey = TextUtils.isEmpty(encryptionPassword) ? generateEncryptionString(context.get()) : encryptionPassword;
+    /**
+     * Enable or disable the in-memory cache of decrypted values. Cached values are dropped when the preference changes, so repeated reads of the same key
+     * only cost a map lookup.
+     *
+     * @param enabled - true to cache decrypted values
+     */
+    public static void setCacheEnabled(boolean enabled) {
+        synchronized (lock) {
+            isCacheEnabled = enabled;
+            rebuild();
+        }
     }
 
-    private synchronized void log(String logMessage) {
-        if (isDebug()) {
-            Log.d(TAG, logMessage);
+    /**
+     * Enable or disable snapshot reads. When enabled, the whole store is decrypted once into an immutable snapshot and every read, from any thread, is a
+     * lookup in it without taking a lock. Writes through this library replace the snapshot with a copy sharing the unchanged entries, changes made
+     * directly to the backing store are picked up from its change notifications.
+     *
+     * @param enabled - true to read from the snapshot
+     */
+    public static void setSnapshotEnabled(boolean enabled) {
+        synchronized (lock) {
+            isSnapshotEnabled = enabled;
+            rebuild();
         }
     }
 
-    private String generateEncryptionString(Context context) {
-        return context.getPackageName();
+    /**
+     * Enable or disable write-behind mode. When enabled, {@link EncryptedEditor#apply()} only stages the changes, they are encrypted and written on a
+     * background thread once per flush window, and repeated writes to the same key within the window are merged so only the last value is written.
+     * Reads see staged values immediately. Disabling write-behind flushes the staged changes.
+     *
+     * @param enabled - true to write changes in the background
+     */
+    public static void setWriteBehindEnabled(boolean enabled) {
+        synchronized (lock) {
+            isWriteBehindEnabled = enabled;
+            rebuild();
+        }
     }
 
-    private String encryptString(String message) {
-        try {
-            String encString = AESCrypt.encrypt(cryptoKey, message);
-            return encodeCharset(encString);
-        } catch (GeneralSecurityException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Set how long staged changes are collected before the background writer flushes them.
+     *
+     * @param millis - The flush window in milliseconds
+     */
+    public static void setWriteBehindWindow(long millis) {
+        synchronized (lock) {
+            writeBehindWindow = Math.max(0, millis);
+            update();
         }
     }
 
-    private String decryptString(String message) {
-        try {
-            String decString = removeEncoding(message);
-            return AESCrypt.decrypt(cryptoKey, decString);
-        } catch (GeneralSecurityException e) {
-            return null;
+    /**
+     * Compress values over a size with Deflater before they are encrypted, which keeps repetitive strings such as JSON small on disk. Cipher text does
+     * not compress, so this is the only stage where it helps. Entries are flagged in their header, so compressed and uncompressed entries stay
+     * readable whatever the threshold.
+     *
+     * @param bytes - Values over this many bytes are compressed, or a negative number to never compress, the default
+     */
+    public static void setCompressionThreshold(int bytes) {
+        synchronized (lock) {
+            compressionThreshold = bytes;
+            update();
         }
     }
 
-    private String removeEncoding(String value) {
-        String encodedString = value;
-        encodedString = encodedString.replaceAll("x0P1Xx", "\\+").replaceAll("x0P2Xx", "/").replaceAll("x0P3Xx", "=");
-        log("removeEncoding() : " + value + " => " + encodedString);
-        return encodedString;
+    /**
+     * Set the listener receiving timings of the crypto, lookup and commit steps and the cache hit and miss counts, for example a
+     * {@link MetricsRecorder}. Nothing is measured while it is {@link MetricsListener#NONE}, the default.
+     *
+     * @param listener - The listener, or null for none
+     */
+    public static void setMetricsListener(MetricsListener listener) {
+        synchronized (lock) {
+            metrics = listener == null ? MetricsListener.NONE : listener;
+            update();
+        }
     }
 
-    private String encodeCharset(String value) {
-        String encodedString = value;
-        encodedString = encodedString.replaceAll("\\+", "x0P1Xx").replaceAll("/", "x0P2Xx").replaceAll("=", "x0P3Xx");
-        log("encodeCharset() : " + value + " => " + encodedString);
-        return encodedString;
+    /**
+     * Write all changes staged in write-behind mode on the calling thread.
+     *
+     * @return Returns true if the changes were successfully written to persistent storage.
+     */
+    public static boolean flush() {
+        return getDefault().flush();
     }
 
-    private boolean containsEncryptedKey(String encryptedKey) {
-        return sharedPreferences.contains(encryptedKey);
+    /**
+     * Set how cipher text is turned into the key names and values stored in the preferences. Entries written with another codec stay readable, and
+     * lookups fall back to the names written by {@link TextCodec#ESCAPED} so data already on disk is still found.
+     *
+     * @param codec - The codec used for new entries
+     */
+    public static void setTextCodec(TextCodec codec) {
+        setTextCodec(codec, true);
     }
 
-    private <T> Object decryptType(String key, Object type, T defaultType) {
-        String encKey = encryptString(key);
-
-        log("decryptType() => encryptedKey => " + encKey);
-
-        if (TextUtils.isEmpty(encKey) || !containsEncryptedKey(encKey)) {
-            log("unable to encrypt or find key => " + encKey);
-            return defaultType;
-        }
-
-        String value = sharedPreferences.getString(encKey, null);
-
-        log("decryptType() => encryptedValue => " + value);
-
-        if (TextUtils.isEmpty(value)) {
-            return defaultType;
+    /**
+     * Set how cipher text is turned into the key names and values stored in the preferences.
+     *
+     * @param codec          - The codec used for new entries
+     * @param legacyFallback - true to also look up keys under the names written by {@link TextCodec#ESCAPED}. Entries found that way are moved to the
+     *                       new name the next time they are written.
+     */
+    public static void setTextCodec(TextCodec codec, boolean legacyFallback) {
+        synchronized (lock) {
+            textCodec = codec;
+            isLegacyFallback = legacyFallback;
+            rebuild();
         }
+    }
 
-        String orgValue = decryptString(value);
-        log("decryptType() => orgValue => " + orgValue);
-
-        if (TextUtils.isEmpty(orgValue)) {
-            return defaultType;
+    /**
+     * Store keys under short names derived from a keyed hash of the key, HMAC-SHA256 with a subkey of the password, instead of encrypting them. A name
+     * costs one hash instead of an encryption and has a fixed length of 21 characters, shorter than any encrypted name, which keeps the file and its
+     * parsing small, and {@link #getAll()} reads the plain key from the value instead of decrypting the name. Entries under the old names are moved
+     * once, in the background, with reads falling back to them until that is finished. Turning the option off again moves them back.
+     *
+     * @param enabled - true to use hashed key names
+     */
+    public static void setHashedKeyNames(boolean enabled) {
+        synchronized (lock) {
+            isHashedKeyNames = enabled;
+            rebuild();
         }
+    }
 
-        if (type instanceof String) {
-            return orgValue;
-        } else if (type instanceof Integer) {
-            try {
-                return Integer.parseInt(orgValue);
-            } catch (NumberFormatException e) {
-                return defaultType;
-            }
-        } else if (type instanceof Long) {
-            try {
-                return Long.parseLong(orgValue);
-            } catch (NumberFormatException e) {
-                return defaultType;
-            }
-        } else if (type instanceof Float) {
-            try {
-                return Float.parseFloat(orgValue);
-            } catch (NumberFormatException e) {
-                return defaultType;
-            }
-        } else if (type instanceof Boolean) {
-            return Boolean.parseBoolean(orgValue);
-        } else {
-            return defaultType;
+    /**
+     * Write values with AES-GCM instead of AES-CBC with a fixed IV. Every value gets a random nonce, so equal values no longer have equal cipher text,
+     * and a tag that is checked in the same pass as the decryption and covers the stored name, so a changed value, or one copied under another key,
+     * reads as missing instead of as garbage. Values written before stay readable and are converted the next time they are written. AES-GCM needs
+     * API 19, below it the option is ignored.
+     *
+     * @param enabled - true to write authenticated values
+     */
+    public static void setAuthenticatedValues(boolean enabled) {
+        synchronized (lock) {
+            isAuthenticatedValues = enabled && AESCrypt.isAeadSupported();
+            update();
         }
     }
 
@@ -271,78 +641,147 @@ public class NPreferences {
     /**
      * A class for several utility methods.
      */
-    public final class Utils {
+    public static final class Utils {
 
-        private final NPreferences NPreferences;
+        private final NPreferencesStore store;
 
-        private Utils(NPreferences NPreferences) {
-            this.NPreferences = NPreferences;
+        Utils(NPreferencesStore store) {
+            this.store = store;
         }
 
         /**
-         * Utility method to retrieve the encrypted value of a string using the current {@link NPreferences} configuration.
+         * Utility method to retrieve the encrypted value of a string using the configuration of its store.
          *
          * @param value - String which should be encrypted
          * @return The encrypted value of the given String
          */
         public String encryptStringValue(String value) {
-            return NPreferences.encryptString(value);
+            return store.encryptString(value);
         }
 
         /**
-         * Utility method to decrypt the given String using the current {@link NPreferences} configuration.
+         * Utility method to decrypt the given String using the configuration of its store.
          *
          * @param value - String which should be decrypted
          * @return The decrypted value of the given String
          */
         public String decryptStringValue(String value) {
-            return NPreferences.decryptString(value);
+            return store.decryptString(value);
         }
 
     }
 
     /**
-     * Class used for modifying values in a {@link NPreferences} object.
+     * Class used for modifying values in a {@link NPreferencesStore}.
      */
-    public final class EncryptedEditor {
+    public static final class EncryptedEditor {
 
         private final String TAG = EncryptedEditor.class.getSimpleName();
-        private final NPreferences preferences;
-
-        private EncryptedEditor(NPreferences NPreferences) {
-            this.preferences = NPreferences;
+        private final NPreferencesStore preferences;
+        //plain key => encoded value staged by this editor, null marks a removal
+        private final Map<String, byte[]> pending = new LinkedHashMap<>();
+        //plain key => temporary side file written by this editor, renamed when the changes are applied
+        private final Map<String, File> files = new HashMap<>();
+        private boolean clear;
+
+        EncryptedEditor(NPreferencesStore store) {
+            this.preferences = store;
         }
 
-        private synchronized void log(String logMessage) {
+        private void log(String logMessage) {
             if (preferences.isDebug()) {
                 Log.d(TAG, logMessage);
             }
         }
 
         private SharedPreferences.Editor editor() {
-            return preferences.sharedPreferences.edit();
+            return preferences.editBackend();
+        }
+
+        private synchronized void putValue(String key, byte[] value) {
+            pending.put(key, value);
+            File replaced = files.remove(key);
+            if (replaced != null) replaced.delete();
         }
 
-        private String encryptValue(String value) {
-            String encryptedString = preferences.encryptString(value);
-            log("encryptValue() => " + encryptedString);
-            return encryptedString;
+        /**
+         * Stage a value already encoded by {@link ValueCodec}, as restored by {@link NPreferencesStore#importFrom(InputStream, String)}.
+         */
+        EncryptedEditor putEncoded(String key, byte[] value) {
+            putValue(key, value);
+            return this;
         }
 
-        private void putValue(String key, String value) {
-            log("putValue() => " + key + " [" + encryptValue(key) + "] || " + value + " [" + encryptValue(value) + "]");
-            editor().putString(encryptValue(key), encryptValue(value)).commit();
+        private synchronized void putFile(String key, byte[] value, File file) {
+            putValue(key, value);
+            if (file != null) files.put(key, file);
         }
 
         /**
-         * Set a String value in the preferences editor, to be written back once apply() is called.
+         * Give the side files written by this editor their committed names, dropping the changes whose file can not be renamed.
+         *
+         * @return Returns false if a change was dropped.
+         */
+        private synchronized boolean commitFiles() {
+            boolean result = true;
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                try {
+                    preferences.commitBlob(entry.getValue());
+                } catch (IOException e) {
+                    Log.e(TAG, "dropping " + entry.getKey(), e);
+                    pending.remove(entry.getKey());
+                    entry.getValue().delete();
+                    result = false;
+                }
+            }
+            files.clear();
+            return result;
+        }
+
+        /**
+         * Encrypt all staged changes in one pass into a single {@link SharedPreferences.Editor}.
+         *
+         * @return The editor holding the encrypted changes
+         */
+        private synchronized SharedPreferences.Editor prepare() {
+            SharedPreferences.Editor editor = editor();
+            if (clear) {
+                log("clear() => clearing preferences.");
+                editor.clear();
+            }
+            for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+                String encValue = preferences.writeValue(editor, entry.getKey(), entry.getValue());
+                if (preferences.isDebug()) log("putValue() => " + entry.getKey() + " || " + encValue);
+            }
+            return editor;
+        }
+
+        /**
+         * Drop the cached values touched by this editor and reset it, so it can be reused for another transaction.
+         */
+        private synchronized void finish(boolean written) {
+            if (written) preferences.deleteStaleBlobs(pending, clear);
+            if (clear) {
+                preferences.invalidateAll();
+            } else {
+                for (String key : pending.keySet()) {
+                    preferences.invalidate(key);
+                }
+            }
+            preferences.updateSnapshot(pending, clear);
+            pending.clear();
+            clear = false;
+        }
+
+        /**
+         * Set a String value in the preferences editor, to be written back once apply() is called. A null value removes the preference.
          *
          * @param key   - The name of the preference to modify
          * @param value - The new value for the preference
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
         public EncryptedEditor putString(String key, String value) {
-            putValue(key, value);
+            putValue(key, value == null ? null : ValueCodec.encodeString(value));
             return this;
         }
 
@@ -354,7 +793,7 @@ public class NPreferences {
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
         public EncryptedEditor putInt(String key, int value) {
-            putValue(key, String.valueOf(value));
+            putValue(key, ValueCodec.encodeInt(value));
             return this;
         }
 
@@ -366,7 +805,7 @@ public class NPreferences {
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
         public EncryptedEditor putLong(String key, long value) {
-            putValue(key, String.valueOf(value));
+            putValue(key, ValueCodec.encodeLong(value));
             return this;
         }
 
@@ -378,7 +817,7 @@ public class NPreferences {
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
         public EncryptedEditor putFloat(String key, float value) {
-            putValue(key, String.valueOf(value));
+            putValue(key, ValueCodec.encodeFloat(value));
             return this;
         }
 
@@ -390,7 +829,38 @@ public class NPreferences {
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
         public EncryptedEditor putBoolean(String key, boolean value) {
-            putValue(key, String.valueOf(value));
+            putValue(key, ValueCodec.encodeBoolean(value));
+            return this;
+        }
+
+        /**
+         * Set a byte value in the preferences editor, to be written back once apply() is called. A value over the blob threshold of the store is
+         * encrypted into a side file right away, see {@link NPreferencesStore.Builder#blobs(File, int)}. A null value removes the preference.
+         *
+         * @param key   - The name of the preference to modify
+         * @param value - The new value for the preference
+         * @return Returns a reference to the same Editor object, so you can chain put calls together.
+         * @throws IOException if the side file can not be written
+         */
+        public EncryptedEditor putBytes(String key, byte[] value) throws IOException {
+            if (value == null) return remove(key);
+            File[] file = new File[1];
+            putFile(key, preferences.encodeBytes(key, value, file), file[0]);
+            return this;
+        }
+
+        /**
+         * Set a byte value read from a stream in the preferences editor, to be written back once apply() is called. The stream is read to its end
+         * but not closed. A value over the blob threshold of the store is encrypted into a side file while it is read, without holding it in memory.
+         *
+         * @param key - The name of the preference to modify
+         * @param in  - The new value for the preference
+         * @return Returns a reference to the same Editor object, so you can chain put calls together.
+         * @throws IOException if the stream can not be read or the side file can not be written
+         */
+        public EncryptedEditor putStream(String key, InputStream in) throws IOException {
+            File[] file = new File[1];
+            putFile(key, preferences.encodeStream(key, in, file), file[0]);
             return this;
         }
 
@@ -401,26 +871,77 @@ public class NPreferences {
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
         public EncryptedEditor remove(String key) {
-            String encKey = encryptValue(key);
-            if (containsEncryptedKey(encKey)) {
-                log("remove() => " + key + " [ " + encKey + " ]");
-                editor().remove(encKey).commit();
-            }
+            putValue(key, null);
             return this;
         }
 
         /**
          * Mark in the editor to remove all values from the preferences. Once commit is called, the only remaining preferences will be any that you have
-         * defined in this editor.
+         * defined in this editor. As with {@link SharedPreferences.Editor#clear()}, the clear is done first when committing, whether it was called
+         * before or after the puts of this editor.
          *
          * @return Returns a reference to the same Editor object, so you can chain put calls together.
          */
-        public EncryptedEditor clear() {
-            log("clear() => clearing preferences.");
-            editor().clear().commit();
+        public synchronized EncryptedEditor clear() {
+            clear = true;
             return this;
         }
 
+        /**
+         * Drop every change staged in this editor and delete the side files it wrote, used when an editor is abandoned without being committed.
+         */
+        synchronized void discard() {
+            pending.clear();
+            for (File file : files.values()) {
+                file.delete();
+            }
+            files.clear();
+            clear = false;
+        }
+
+        /**
+         * Commit your preferences changes back from this Editor to the {@link NPreferencesStore} it is editing. The in-memory preferences are updated
+         * immediately and the disk write is started asynchronously, see {@link SharedPreferences.Editor#apply()}. In write-behind mode the changes are
+         * only staged and encrypted later on the background writer.
+         */
+        public synchronized void apply() {
+            long start = preferences.startTimer();
+            commitFiles();
+            if (preferences.isWriteBehindEnabled()) {
+                preferences.writeQueue.enqueue(pending, clear);
+                pending.clear();
+                clear = false;
+            } else {
+                synchronized (preferences.writeLock()) {
+                    prepare().apply();
+                }
+                finish(true);
+            }
+            preferences.stopTimer(MetricsListener.Operation.APPLY, start);
+        }
+
+        /**
+         * Commit your preferences changes back from this Editor to the {@link NPreferencesStore} it is editing, writing them to disk synchronously.
+         * In write-behind mode this also flushes every change staged before it.
+         *
+         * @return Returns true if the new values were successfully written to persistent storage.
+         */
+        public synchronized boolean commit() {
+            boolean committed = commitFiles();
+            if (preferences.isWriteBehindEnabled()) {
+                apply();
+                return preferences.writeQueue.flush() && committed;
+            }
+            long start = preferences.startTimer();
+            boolean result;
+            synchronized (preferences.writeLock()) {
+                result = prepare().commit();
+            }
+            finish(result);
+            preferences.stopTimer(MetricsListener.Operation.COMMIT, start);
+            return result && committed;
+        }
+
     }
 
-}
\ No newline at end of file
+}
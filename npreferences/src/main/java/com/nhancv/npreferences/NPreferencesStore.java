@@ -0,0 +1,2628 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An encrypted preferences store with its own backing file, password and caches.
+ * <p>
+ * The configuration is fixed when the store is built, so independent stores, for example one per account, can be used from any thread without
+ * coordinating with each other. To change the configuration build a new store with {@link #buildUpon()} and {@link #close()} the old one.
+ * {@link NPreferences} is a static facade over a default store.
+ */
+public final class NPreferencesStore {
+
+    private static final String TAG = NPreferencesStore.class.getSimpleName();
+    private static final int MAX_CACHED_KEY_NAMES = 512;
+    static final long DEFAULT_WRITE_BEHIND_WINDOW = 100;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int DECRYPT_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    //below this many entries per thread the hand-off costs more than the decryption
+    private static final int MIN_ENTRIES_PER_TASK = 16;
+    static final int DEFAULT_BLOB_THRESHOLD = 16 * 1024;
+    static final long DEFAULT_OBSERVER_DEBOUNCE = 50;
+    private static final String BLOB_DIRECTORY = "npreferences_blobs";
+    //plain name of the entry holding the progress of a migration, encrypted with the current password
+    static final String MIGRATION_STATE = "npreferences.rotation";
+    //entries checked per commit of a migration
+    private static final int MIGRATION_BATCH = 64;
+    //an import commits after this many entries or this many bytes of values, whichever comes first
+    private static final int IMPORT_BATCH = 256;
+    private static final int IMPORT_BATCH_BYTES = 256 * 1024;
+    //authenticated values are stored as this marker and the text of [version][nonce][cipher text][tag], older values as the text of the CBC cipher text
+    private static final char AUTHENTICATED_MARKER = '~';
+    private static final byte AUTHENTICATED_VERSION = 1;
+    private static final int AUTHENTICATED_OVERHEAD = 1 + AESCrypt.NONCE_SIZE + AESCrypt.TAG_SIZE;
+    //marks a cached key that does not exist in the preferences
+    static final Object MISSING = new Object();
+
+    private final SharedPreferences sharedPreferences;
+    //the backing store if it is a log shared with other processes, checked for their changes before values held in this process are used
+    private final LogPreferences sharedLog;
+    private final String cryptoKey;
+    private final SecretKeySpec secretKey;
+    private final TextCodec textCodec;
+    private final boolean isLegacyFallback;
+    private final boolean isHashedKeyNames;
+    //derives the hashed key names, also used to find them while a migration moves entries to encrypted names
+    private final KeyNames keyNames;
+    private final boolean isCacheEnabled;
+    private final boolean isSnapshotEnabled;
+    private final boolean isWriteBehindEnabled;
+    //options only changing how values are written and reported, replaced on the live store by applyWriteOptions()
+    private volatile boolean isAuthenticatedValues;
+    private volatile long writeBehindWindow;
+    private volatile boolean isDebug;
+    private volatile MetricsListener metrics;
+    //false for MetricsListener.NONE, so the clock is not read when nobody listens
+    private volatile boolean isMetricsEnabled;
+    private final NPreferences.Utils utils;
+    private final File blobDirectory;
+    private final int blobThreshold;
+    //side files of values over blobThreshold bytes, null if the store has no blob directory
+    private final BlobStore blobStore;
+    //copy of the key hashed in front of every side file prefix, SecretKeySpec.getEncoded() copies it on every call
+    private final byte[] blobPrefixKey;
+    //values over this many bytes are compressed before encryption, negative to never compress
+    private volatile int compressionThreshold;
+    //moves entries written with the previous password or the other key naming scheme, null if there is nothing to move or until looked for
+    private volatile Migration migration;
+    private volatile boolean isMigrationChecked;
+    private final Object migrationLock = new Object();
+    //held while changes are written to the backing store, so a migration batch never overwrites a newer value
+    private final Object writeLock = new Object();
+    //plain key => encrypted key name, the IV is fixed so the mapping only depends on cryptoKey
+    private final LruCache<String, String> keyNameCache = new LruCache<>(MAX_CACHED_KEY_NAMES);
+    //encrypted key name => plain key, used to map change notifications back to cached values, so names dropped from keyNameCache are kept here
+    //while their value is cached
+    private final Map<String, String> keyNameIndex = new ConcurrentHashMap<>();
+    //hashed names this store has checked are not taken by another key, see resolveHashedName
+    private final Set<String> checkedNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    //plain key => decoded value, only used when the value cache is enabled
+    private final Map<String, Object> valueCache = new ConcurrentHashMap<>();
+    private volatile int cacheGeneration;
+    //decoded copy of the whole store, only used when snapshot reads are enabled, null until loaded or after an unknown change
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final Object snapshotLock = new Object();
+    final WriteQueue writeQueue = new WriteQueue();
+    //plain key => its observations
+    private final Map<String, List<Observation<?>>> observers = new ConcurrentHashMap<>();
+    //encrypted key name => plain key of every observed key, unlike keyNameIndex it is never trimmed
+    private final Map<String, String> observedNames = new ConcurrentHashMap<>();
+    private final SharedPreferences.OnSharedPreferenceChangeListener changeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String encKey) {
+            if (MIGRATION_STATE.equals(encKey)) return;
+            String key = encKey == null ? null : keyNameIndex.get(encKey);
+            if (key != null) {
+                invalidate(key);
+                //a write of this store publishes all of its changes in one swap once committed, refreshing them key by key would publish part of it
+                if (isSnapshotEnabled && !Thread.holdsLock(writeLock)) refreshSnapshot(key);
+            } else if (encKey == null || isSnapshotEnabled) {
+                //a clear, or a key this store has not seen, may have changed any entry of the snapshot
+                invalidateAll();
+                snapshot.set(null);
+            }
+            if (!observers.isEmpty()) {
+                String observed = encKey == null ? null : observedNames.get(encKey);
+                if (observed != null) {
+                    notifyObservers(observers.get(observed));
+                } else if (encKey == null) {
+                    for (List<Observation<?>> observations : observers.values()) {
+                        notifyObservers(observations);
+                    }
+                }
+            }
+        }
+    };
+
+    private NPreferencesStore(Builder builder, SharedPreferences sharedPreferences, String cryptoKey, File blobDirectory) {
+        this.sharedPreferences = sharedPreferences;
+        this.sharedLog = sharedPreferences instanceof LogPreferences && ((LogPreferences) sharedPreferences).isMultiProcess() ?
+                (LogPreferences) sharedPreferences : null;
+        this.cryptoKey = cryptoKey;
+        this.textCodec = builder.textCodec;
+        this.isLegacyFallback = builder.legacyFallback;
+        this.isHashedKeyNames = builder.hashedKeyNames;
+        this.isAuthenticatedValues = builder.authenticatedValues;
+        this.isCacheEnabled = builder.cacheEnabled;
+        this.isSnapshotEnabled = builder.snapshotEnabled;
+        this.isWriteBehindEnabled = builder.writeBehindEnabled;
+        this.writeBehindWindow = builder.writeBehindWindow;
+        this.isDebug = builder.debug;
+        this.metrics = builder.metrics;
+        this.isMetricsEnabled = builder.metrics != MetricsListener.NONE;
+        long start = startTimer();
+        try {
+            this.secretKey = AESCrypt.getKey(cryptoKey);
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("unable to derive the key", e);
+        }
+        this.keyNames = new KeyNames(secretKey);
+        stopTimer(MetricsListener.Operation.KEY_DERIVATION, start);
+        this.utils = new NPreferences.Utils(this);
+        this.blobDirectory = blobDirectory;
+        this.blobThreshold = builder.blobThreshold;
+        this.blobStore = blobDirectory == null ? null : new BlobStore(blobDirectory, secretKey);
+        this.blobPrefixKey = secretKey.getEncoded();
+        this.compressionThreshold = builder.compressionThreshold;
+        String previousPassword = TextUtils.isEmpty(builder.previousPassword) || builder.previousPassword.equals(cryptoKey) ?
+                null : builder.previousPassword;
+        sharedPreferences.registerOnSharedPreferenceChangeListener(changeListener);
+        //other stores only look for a migration once they read, so building them does not wait for the backing store
+        if (previousPassword != null || isHashedKeyNames) findMigration(previousPassword);
+    }
+
+    /**
+     * Retrieve an int value from the preferences.
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return int - Returns the preference value if it exists, or defValue.
+     */
+    public int getInt(String key, int defaultValue) {
+        if (isSnapshotEnabled) return (Integer) snapshotType(key, 0, defaultValue);
+        if (isCacheEnabled) return (Integer) decryptType(key, 0, defaultValue);
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeInt(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a long value from the preferences.
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return long - Returns the preference value if it exists, or defValue.
+     */
+    public long getLong(String key, long defaultValue) {
+        if (isSnapshotEnabled) return (Long) snapshotType(key, 0L, defaultValue);
+        if (isCacheEnabled) return (Long) decryptType(key, 0L, defaultValue);
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeLong(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a boolean value from the preferences
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return - Returns the preference value if it exists, or defValue.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        if (isSnapshotEnabled) return (Boolean) snapshotType(key, defaultValue, defaultValue);
+        if (isCacheEnabled) return (Boolean) decryptType(key, defaultValue, defaultValue);
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeBoolean(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a float value from the preferences
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return float - Returns the preference value if it exists, or defValue.
+     */
+    public float getFloat(String key, float defaultValue) {
+        if (isSnapshotEnabled) return (Float) snapshotType(key, 0f, defaultValue);
+        if (isCacheEnabled) return (Float) decryptType(key, 0f, defaultValue);
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeFloat(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a String value from the preferences
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return String - Returns the preference value if it exists, or defValue.
+     */
+    public String getString(String key, String defaultValue) {
+        if (isSnapshotEnabled) return (String) snapshotType(key, "", defaultValue);
+        if (isCacheEnabled) return (String) decryptType(key, "", defaultValue);
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeString(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a value written by {@link NPreferences.EncryptedEditor#putBytes(String, byte[])} or
+     * {@link NPreferences.EncryptedEditor#putStream(String, InputStream)}, reading it into memory. Use {@link #getStream(String)} for values too
+     * large for that.
+     *
+     * @param key          - The name of the preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist or can not be read
+     * @return byte[] - Returns a copy of the preference value if it exists, or defValue.
+     */
+    public byte[] getBytes(String key, byte[] defaultValue) {
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        if (value == null) return defaultValue;
+        byte[] bytes = ValueCodec.decodeBytes(value, pool.length);
+        if (bytes != null) return bytes;
+        String name = ValueCodec.blobName(value, pool.length);
+        BlobStore blobs = name == null ? null : blobsOf(key, name);
+        if (blobs == null) return defaultValue;
+        long length = ValueCodec.blobLength(value);
+        if (length > Integer.MAX_VALUE) return defaultValue;
+        byte[] result = new byte[(int) length];
+        try {
+            InputStream in = blobs.open(name);
+            try {
+                int offset = 0;
+                int count;
+                while (offset < result.length && (count = in.read(result, offset, result.length - offset)) != -1) {
+                    offset += count;
+                }
+                if (offset < result.length || in.read() != -1) throw new IOException("unexpected length of " + name);
+            } finally {
+                in.close();
+            }
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to read " + name, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Open a value written by {@link NPreferences.EncryptedEditor#putBytes(String, byte[])} or
+     * {@link NPreferences.EncryptedEditor#putStream(String, InputStream)}. A value kept in a side file is decrypted chunk by chunk while it is read.
+     *
+     * @param key - The name of the preference to retrieve
+     * @return Returns a stream over the preference value, to be closed by the caller, or null if it does not exist or is not a byte value.
+     * @throws IOException if the side file of the value can not be opened
+     */
+    public InputStream getStream(String key) throws IOException {
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        if (value == null) return null;
+        byte[] bytes = ValueCodec.decodeBytes(value, pool.length);
+        if (bytes != null) return new ByteArrayInputStream(bytes);
+        String name = ValueCodec.blobName(value, pool.length);
+        BlobStore blobs = name == null ? null : blobsOf(key, name);
+        return blobs == null ? null : blobs.open(name);
+    }
+
+    /**
+     * @param key  - The plain name of the preference
+     * @param name - The name of a side file of the key
+     * @return The blob store able to decrypt the file, which is the one of the previous password for files not moved by a rotation yet
+     */
+    private BlobStore blobsOf(String key, String name) {
+        if (blobStore == null) return null;
+        return isMigrating() && migration.previousBlobs != null && !name.startsWith(blobPrefix(key)) ? migration.previousBlobs : blobStore;
+    }
+
+    /**
+     * Checks whether the preferences contains a preference. With hashed key names, an entry of another key under the same name is only detected when
+     * the value is read.
+     *
+     * @param key - The name of the preference to check
+     * @return Returns true if the preference exists in the preferences, otherwise false.
+     */
+    public boolean contains(String key) {
+        Object staged = writeQueue.get(key);
+        if (staged != null) return staged != MISSING;
+        boolean migrating = isMigrating();
+        if (storedKey(key) != null || previousStoredKey(key) != null) return true;
+        //the entry may have been moved by a migration batch between the two lookups
+        return migrating && storedKey(key) != null;
+    }
+
+    /**
+     * Retrieve all values from the preferences in one pass, decrypting them in parallel. Values written by older versions of the library are returned
+     * as String, byte values as byte[] which must not be modified, and values kept in side files are left out.
+     *
+     * @return Returns a snapshot of the plain keys and their decoded values.
+     */
+    public Map<String, Object> getAll() {
+        return readAll(null);
+    }
+
+    /**
+     * Decrypt the given preferences in parallel and keep them in the value cache, if it is enabled.
+     *
+     * @param keys - The names of the preferences to read
+     * @return Returns a snapshot of the keys that exist and their decoded values.
+     */
+    public Map<String, Object> prefetch(Collection<String> keys) {
+        return readAll(keys);
+    }
+
+    /**
+     * Returns a handle on a preference holding the name it is stored under, so reads through it skip deriving and looking up that name. The accessors
+     * generated for {@link TypedPreferences} interfaces keep one per declared key.
+     *
+     * @param name - The name of the preference
+     * @return The handle, only valid for this store
+     */
+    public Key key(String name) {
+        return new Key(name, encryptKey(name));
+    }
+
+    /**
+     * Retrieve an int value from the preferences through a handle from {@link #key(String)}.
+     *
+     * @param key          - The preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return int - Returns the preference value if it exists, or defValue.
+     */
+    public int getInt(Key key, int defaultValue) {
+        if (isSnapshotEnabled || isCacheEnabled) {
+            Object value = heldValue(key.name);
+            return value instanceof Integer ? (Integer) value : getInt(key.name, defaultValue);
+        }
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeInt(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a long value from the preferences through a handle from {@link #key(String)}.
+     *
+     * @param key          - The preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return long - Returns the preference value if it exists, or defValue.
+     */
+    public long getLong(Key key, long defaultValue) {
+        if (isSnapshotEnabled || isCacheEnabled) {
+            Object value = heldValue(key.name);
+            return value instanceof Long ? (Long) value : getLong(key.name, defaultValue);
+        }
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeLong(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a boolean value from the preferences through a handle from {@link #key(String)}.
+     *
+     * @param key          - The preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return - Returns the preference value if it exists, or defValue.
+     */
+    public boolean getBoolean(Key key, boolean defaultValue) {
+        if (isSnapshotEnabled || isCacheEnabled) {
+            Object value = heldValue(key.name);
+            return value instanceof Boolean ? (Boolean) value : getBoolean(key.name, defaultValue);
+        }
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeBoolean(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a float value from the preferences through a handle from {@link #key(String)}.
+     *
+     * @param key          - The preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return float - Returns the preference value if it exists, or defValue.
+     */
+    public float getFloat(Key key, float defaultValue) {
+        if (isSnapshotEnabled || isCacheEnabled) {
+            Object value = heldValue(key.name);
+            return value instanceof Float ? (Float) value : getFloat(key.name, defaultValue);
+        }
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeFloat(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Retrieve a String value from the preferences through a handle from {@link #key(String)}.
+     *
+     * @param key          - The preference to retrieve
+     * @param defaultValue - Value to return if this preference does not exist
+     * @return String - Returns the preference value if it exists, or defValue.
+     */
+    public String getString(Key key, String defaultValue) {
+        if (isSnapshotEnabled || isCacheEnabled) {
+            Object value = heldValue(key.name);
+            return value instanceof String ? (String) value : getString(key.name, defaultValue);
+        }
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? defaultValue : ValueCodec.decodeString(value, pool.length, defaultValue);
+    }
+
+    /**
+     * Read the given preferences in one pass, decrypting them in parallel and keeping them in the value cache, if it is enabled.
+     *
+     * @param keys - Handles from {@link #key(String)}
+     * @return Returns the values by the index of their key.
+     */
+    public Values loadAll(Key... keys) {
+        List<String> names = new ArrayList<>(keys.length);
+        for (Key key : keys) {
+            names.add(key.name);
+        }
+        Map<String, Object> found = readAll(names);
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = found.get(keys[i].name);
+        }
+        return new Values(values);
+    }
+
+    /**
+     * Write every preference to a stream as a backup, re-encrypted under its own password, see {@link #importFrom(InputStream, String)}. Entries are
+     * decrypted and written one at a time and values kept in side files chunk by chunk, so the memory used does not grow with the size of the store.
+     * Changes staged in write-behind mode are flushed first.
+     *
+     * @param out            - Receives the backup, it is not closed
+     * @param backupPassword - The password the backup is encrypted with
+     * @return Returns the number of preferences written.
+     * @throws IOException if the backup can not be written or a side file can not be read, or below API 19 where AES-GCM is not available
+     */
+    public int exportTo(OutputStream out, String backupPassword) throws IOException {
+        flush();
+        Backup.Writer writer = new Backup.Writer(out, backupKey(backupPassword));
+        BufferPool pool = BufferPool.get();
+        String[] plainKey = new String[1];
+        int count = 0;
+        Migration moving = runningMigration();
+        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            String name = entry.getKey();
+            if (MIGRATION_STATE.equals(name) || !(entry.getValue() instanceof String)) continue;
+            String encValue = (String) entry.getValue();
+            byte[] value = decryptEntry(name, encValue, pool, secretKey, keyNames, plainKey);
+            if (value == null && moving != null && moving.previousKey != null) {
+                //an entry the rotation has not moved yet, the copy of the backing store holds each key under one name as a move is a single commit
+                value = decryptEntry(name, encValue, pool, moving.previousKey, moving.previousKeyNames, plainKey);
+            }
+            if (value == null) continue;
+            int length = pool.length;
+            String blob = ValueCodec.blobName(value, length);
+            if (blob == null) {
+                writer.entry(plainKey[0], value, length);
+                count++;
+                continue;
+            }
+            BlobStore blobs = blobsOf(plainKey[0], blob);
+            InputStream in;
+            try {
+                in = blobs == null ? null : blobs.open(blob);
+            } catch (IOException e) {
+                Log.e(TAG, "unable to read " + blob, e);
+                in = null;
+            }
+            if (in == null) continue;
+            try {
+                writer.stream(plainKey[0], in);
+            } finally {
+                in.close();
+            }
+            count++;
+        }
+        writer.finish(count);
+        return count;
+    }
+
+    /**
+     * Restore the preferences of a backup written by {@link #exportTo(OutputStream, String)}, replacing the values of the keys it holds and keeping
+     * the others. Entries are read one at a time and committed in batches, values over the blob threshold go to side files as they are read. A
+     * backup that was changed, truncated or written with another password fails with the batches before the failure already committed and the
+     * rest dropped.
+     *
+     * @param in             - The backup, it is not closed
+     * @param backupPassword - The password the backup was encrypted with
+     * @return Returns the number of preferences restored.
+     * @throws IOException if the backup can not be read or checked, or a batch can not be written, or below API 19 where AES-GCM is not available
+     */
+    public int importFrom(InputStream in, String backupPassword) throws IOException {
+        Backup.Reader reader = new Backup.Reader(in, backupKey(backupPassword));
+        NPreferences.EncryptedEditor editor = edit();
+        int count = 0;
+        int batch = 0;
+        long batchBytes = 0;
+        boolean finished = false;
+        try {
+            while (true) {
+                int type = reader.next();
+                if (type == Backup.TYPE_END) {
+                    if (reader.count() != count) throw new IOException("the backup holds " + reader.count() + " entries, " + count + " were read");
+                    break;
+                }
+                String key = reader.key();
+                if (type == Backup.TYPE_ENTRY) {
+                    byte[] value = reader.value();
+                    if (!ValueCodec.isInline(value, value.length)) throw new IOException("corrupt backup entry " + key);
+                    editor.putEncoded(key, value);
+                    batchBytes += value.length;
+                } else if (type == Backup.TYPE_STREAM) {
+                    InputStream value = reader.chunks();
+                    editor.putStream(key, value);
+                    //the stream ends at the empty chunk, read it if the editor stopped before
+                    if (value.read() != -1) throw new IOException("corrupt backup entry " + key);
+                } else {
+                    throw new IOException("unexpected backup frame of type " + type);
+                }
+                count++;
+                if (++batch == IMPORT_BATCH || batchBytes >= IMPORT_BATCH_BYTES) {
+                    commitImport(editor);
+                    batch = 0;
+                    batchBytes = 0;
+                }
+            }
+            if (batch > 0) commitImport(editor);
+            finished = true;
+            return count;
+        } finally {
+            //drops the staged changes of the failed batch and deletes its side files
+            if (!finished) editor.discard();
+        }
+    }
+
+    private static void commitImport(NPreferences.EncryptedEditor editor) throws IOException {
+        if (!editor.commit()) throw new IOException("unable to write the imported preferences");
+    }
+
+    private static SecretKeySpec backupKey(String backupPassword) {
+        if (TextUtils.isEmpty(backupPassword)) throw new IllegalArgumentException("a backup needs a password");
+        try {
+            return AESCrypt.getKey(backupPassword);
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("unable to derive the backup key", e);
+        }
+    }
+
+    /**
+     * Get the Editor for this store. Nothing is written until {@link NPreferences.EncryptedEditor#apply()} or
+     * {@link NPreferences.EncryptedEditor#commit()} is called.
+     *
+     * @return {@link NPreferences.EncryptedEditor}
+     */
+    public NPreferences.EncryptedEditor edit() {
+        return new NPreferences.EncryptedEditor(this);
+    }
+
+    /**
+     * @return The {@link NPreferences.Utils} instance for this store.
+     */
+    public NPreferences.Utils getUtils() {
+        return utils;
+    }
+
+    public boolean isDebug() {
+        return isDebug;
+    }
+
+    /**
+     * Write all changes staged in write-behind mode on the calling thread.
+     *
+     * @return Returns true if the changes were successfully written to persistent storage.
+     */
+    public boolean flush() {
+        return writeQueue.flush();
+    }
+
+    /**
+     * Call back with the value of a preference now and whenever it changes, on the shared observer thread and at most once per
+     * {@value #DEFAULT_OBSERVER_DEBOUNCE} ms.
+     *
+     * @param key      - The name of the preference to observe
+     * @param type     - String, Integer, Long, Float, Boolean or byte[]
+     * @param callback - Receives the new values
+     * @return The observation, to be cancelled once the values are no longer needed
+     * @see #observe(String, Class, Executor, long, ChangeCallback)
+     */
+    public <T> Observation<T> observe(String key, Class<T> type, ChangeCallback<T> callback) {
+        return observe(key, type, null, DEFAULT_OBSERVER_DEBOUNCE, callback);
+    }
+
+    /**
+     * Call back with the value of a preference now and whenever it changes. Change notifications of the backing store are mapped back to the plain
+     * key, a burst of them within the debounce window leads to a single read, and the value is only decrypted if the key actually changed. The
+     * callback is skipped if the value is the same as the last one it received. In write-behind mode changes are seen once they are flushed.
+     *
+     * @param key            - The name of the preference to observe
+     * @param type           - String, Integer, Long, Float, Boolean or byte[]
+     * @param executor       - Runs the reads and the callbacks, for example one posting to the main thread, or null for the shared observer thread
+     * @param debounceMillis - How long to wait for further changes before reading the value, 0 to read right away
+     * @param callback       - Receives the new values
+     * @return The observation, to be cancelled once the values are no longer needed
+     */
+    public <T> Observation<T> observe(String key, Class<T> type, Executor executor, long debounceMillis, ChangeCallback<T> callback) {
+        Observation<T> observation = new Observation<>(key, type, sampleOf(type), executor == null ? SharedThreads.OBSERVER : executor,
+                Math.max(0, debounceMillis), callback);
+        addObservation(observation);
+        observation.changed();
+        return observation;
+    }
+
+    /**
+     * Move the observations of another store of the same preferences to this one, used when a store is replaced by one with other options.
+     *
+     * @param store - The store being replaced
+     */
+    void adoptObservers(NPreferencesStore store) {
+        for (List<Observation<?>> observations : store.observers.values()) {
+            for (Observation<?> observation : observations) {
+                store.removeObservation(observation);
+                addObservation(observation);
+            }
+        }
+    }
+
+    private void addObservation(Observation<?> observation) {
+        synchronized (observers) {
+            observation.store = this;
+            String encKey = encryptKey(observation.key);
+            if (encKey != null) observedNames.put(encKey, observation.key);
+            if (isLegacyFallback()) {
+                String legacyKey = encryptString(observation.key);
+                if (legacyKey != null) observedNames.put(legacyKey, observation.key);
+            }
+            List<Observation<?>> observations = observers.get(observation.key);
+            if (observations == null) {
+                observations = new CopyOnWriteArrayList<>();
+                observers.put(observation.key, observations);
+            }
+            observations.add(observation);
+        }
+    }
+
+    private void removeObservation(Observation<?> observation) {
+        synchronized (observers) {
+            List<Observation<?>> observations = observers.get(observation.key);
+            if (observations == null || !observations.remove(observation) || !observations.isEmpty()) return;
+            observers.remove(observation.key);
+            observedNames.values().removeAll(Collections.singleton(observation.key));
+        }
+    }
+
+    private static void notifyObservers(List<Observation<?>> observations) {
+        if (observations == null) return;
+        for (Observation<?> observation : observations) {
+            observation.changed();
+        }
+    }
+
+    private static Object sampleOf(Class<?> type) {
+        if (type == String.class) return "";
+        if (type == Integer.class) return 0;
+        if (type == Long.class) return 0L;
+        if (type == Float.class) return 0f;
+        if (type == Boolean.class) return false;
+        if (type == byte[].class) return new byte[0];
+        throw new IllegalArgumentException("unsupported type " + type);
+    }
+
+    /**
+     * @param key    - The plain name of the preference
+     * @param sample - A sample of the requested type
+     * @return The value converted to the type of the sample, or null if it does not exist or can not be converted
+     */
+    private Object readObserved(String key, Object sample) {
+        if (sample instanceof byte[]) return getBytes(key, null);
+        if (isSnapshotEnabled) return snapshotType(key, sample, null);
+        if (isCacheEnabled) return decryptType(key, sample, null);
+        BufferPool pool = BufferPool.get();
+        byte[] value = readValue(key, pool);
+        return value == null ? null : ValueCodec.decode(value, pool.length, sample, null);
+    }
+
+    /**
+     * Receives the new value of an observed preference.
+     */
+    public interface ChangeCallback<T> {
+
+        /**
+         * Called on the executor given to {@link #observe(String, Class, Executor, long, ChangeCallback)}.
+         *
+         * @param key   - The plain name of the preference
+         * @param value - The new value, or null if the preference does not exist or does not have the observed type
+         */
+        void onChanged(String key, T value);
+    }
+
+    /**
+     * A registered {@link ChangeCallback}, returned by {@link #observe(String, Class, Executor, long, ChangeCallback)}.
+     */
+    public static final class Observation<T> {
+
+        private final String key;
+        private final Class<T> type;
+        private final Object sample;
+        private final Executor executor;
+        private final long debounceMillis;
+        private final ChangeCallback<T> callback;
+        //true from the first change of a burst until the read for it has started
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Runnable submit = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(dispatch);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        };
+        private final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        };
+        //moved to the replacement store when the facade rebuilds its default store
+        private volatile NPreferencesStore store;
+        private volatile boolean cancelled;
+        //guarded by this
+        private boolean dispatched;
+        private Object last;
+
+        private Observation(String key, Class<T> type, Object sample, Executor executor, long debounceMillis, ChangeCallback<T> callback) {
+            this.key = key;
+            this.type = type;
+            this.sample = sample;
+            this.executor = executor;
+            this.debounceMillis = debounceMillis;
+            this.callback = callback;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Stop calling back. A callback already running is not interrupted.
+         */
+        public void cancel() {
+            cancelled = true;
+            store.removeObservation(this);
+        }
+
+        private void changed() {
+            if (cancelled || !scheduled.compareAndSet(false, true)) return;
+            if (debounceMillis == 0) {
+                submit.run();
+            } else {
+                //the debounce timer runs on the observer thread, so a burst of observed changes never queues behind or ahead of writes
+                SharedThreads.OBSERVER.schedule(submit, debounceMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void dispatch() {
+            //a change from here on schedules another read
+            scheduled.set(false);
+            if (cancelled) return;
+            Object value = store.readObserved(key, sample);
+            if (dispatched && (value == null ? last == null : value instanceof byte[] && last instanceof byte[] ?
+                    Arrays.equals((byte[]) value, (byte[]) last) : value.equals(last))) {
+                return;
+            }
+            dispatched = true;
+            last = value;
+            callback.onChanged(key, type.cast(value));
+        }
+    }
+
+    /**
+     * A preference with the name it is stored under, see {@link #key(String)}.
+     */
+    public static final class Key {
+
+        private final String name;
+        //null if the name could not be derived, reads then take the path of plain names
+        private final String storedName;
+
+        private Key(String name, String storedName) {
+            this.name = name;
+            this.storedName = storedName;
+        }
+
+        /**
+         * @return The name of the preference
+         */
+        public String name() {
+            return name;
+        }
+    }
+
+    /**
+     * Values read in one pass by {@link #loadAll(Key...)}, converted to the requested type like the getters of the store do.
+     */
+    public static final class Values {
+
+        private final Object[] values;
+
+        private Values(Object[] values) {
+            this.values = values;
+        }
+
+        /**
+         * @param index        - Index of the key in the keys passed to {@link #loadAll(Key...)}
+         * @param defaultValue - Value to return if the preference does not exist
+         * @return Returns the preference value if it exists, or defValue.
+         */
+        public int getInt(int index, int defaultValue) {
+            Object value = values[index];
+            return value instanceof Integer ? (Integer) value : (Integer) ValueCodec.convert(value, 0, defaultValue);
+        }
+
+        /**
+         * @param index        - Index of the key in the keys passed to {@link #loadAll(Key...)}
+         * @param defaultValue - Value to return if the preference does not exist
+         * @return Returns the preference value if it exists, or defValue.
+         */
+        public long getLong(int index, long defaultValue) {
+            Object value = values[index];
+            return value instanceof Long ? (Long) value : (Long) ValueCodec.convert(value, 0L, defaultValue);
+        }
+
+        /**
+         * @param index        - Index of the key in the keys passed to {@link #loadAll(Key...)}
+         * @param defaultValue - Value to return if the preference does not exist
+         * @return Returns the preference value if it exists, or defValue.
+         */
+        public boolean getBoolean(int index, boolean defaultValue) {
+            Object value = values[index];
+            return value instanceof Boolean ? (Boolean) value : (Boolean) ValueCodec.convert(value, defaultValue, defaultValue);
+        }
+
+        /**
+         * @param index        - Index of the key in the keys passed to {@link #loadAll(Key...)}
+         * @param defaultValue - Value to return if the preference does not exist
+         * @return Returns the preference value if it exists, or defValue.
+         */
+        public float getFloat(int index, float defaultValue) {
+            Object value = values[index];
+            return value instanceof Float ? (Float) value : (Float) ValueCodec.convert(value, 0f, defaultValue);
+        }
+
+        /**
+         * @param index        - Index of the key in the keys passed to {@link #loadAll(Key...)}
+         * @param defaultValue - Value to return if the preference does not exist
+         * @return Returns the preference value if it exists, or defValue.
+         */
+        public String getString(int index, String defaultValue) {
+            Object value = values[index];
+            return value instanceof String ? (String) value : (String) ValueCodec.convert(value, "", defaultValue);
+        }
+    }
+
+    /**
+     * Called once a store built by {@link Builder#buildAsync(Collection, ReadyCallback)} is warmed up.
+     */
+    public interface ReadyCallback {
+
+        /**
+         * Called on the background thread that built the store.
+         *
+         * @param store - The store, ready to be read without waiting for the backing store or the crypto provider
+         */
+        void onReady(NPreferencesStore store);
+    }
+
+    /**
+     * Block until the backing store has loaded its file.
+     */
+    void load() {
+        sharedPreferences.contains(TAG);
+    }
+
+    /**
+     * Take the one-time costs of the first read off the thread that does it: the first encryption loads and initializes the crypto provider, and the
+     * hot keys are decrypted into the value cache or the snapshot, if either is enabled.
+     *
+     * @param hotKeys - The plain names of the preferences to decrypt
+     */
+    void warmUp(Collection<String> hotKeys) {
+        String probe = encryptValue(ValueCodec.encodeBoolean(true), TAG);
+        if (probe != null) decryptValue(probe, TAG, BufferPool.get());
+        if (isSnapshotEnabled) snapshot();
+        if (!hotKeys.isEmpty()) readAll(hotKeys);
+    }
+
+    /**
+     * Flush the staged changes and stop listening to the backing store. The store must not be used afterwards.
+     */
+    public void close() {
+        Migration current = migration;
+        if (current != null) current.cancel();
+        writeQueue.flush();
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(changeListener);
+    }
+
+    /**
+     * @return Returns true while entries written with the previous password, or under the names of the other key naming scheme, are being moved, see
+     * {@link Builder#previousPassword(String)} and {@link Builder#hashedKeyNames(boolean)}.
+     */
+    public boolean isRotating() {
+        return isMigrating();
+    }
+
+    private boolean isMigrating() {
+        return runningMigration() != null;
+    }
+
+    /**
+     * Callers reading a copy of the backing store take the migration before the copy, as it may finish before the entries of the copy it has not
+     * moved are decrypted.
+     *
+     * @return The migration moving entries, or null if there is none or it is finished
+     */
+    private Migration runningMigration() {
+        if (!isMigrationChecked) findMigration(null);
+        Migration current = migration;
+        return current != null && !current.finished ? current : null;
+    }
+
+    /**
+     * Start the migration the store needs, if any: entries may be under encrypted names when hashed ones are used, and under hashed names in a store
+     * that used them before, which the state of its migration tells.
+     *
+     * @param previousPassword - The password to move entries from, or null
+     */
+    private void findMigration(String previousPassword) {
+        synchronized (migrationLock) {
+            if (isMigrationChecked) return;
+            if (previousPassword != null || isHashedKeyNames || sharedPreferences.contains(MIGRATION_STATE)) {
+                Migration pending = new Migration(previousPassword);
+                if (!pending.isFinished()) {
+                    migration = pending;
+                    pending.start();
+                }
+            }
+            isMigrationChecked = true;
+        }
+    }
+
+    /**
+     * @return Returns a {@link Builder} holding the configuration of this store, including its backing store and password.
+     */
+    public Builder buildUpon() {
+        Builder builder = new Builder(null);
+        builder.sharedPreferences = sharedPreferences;
+        builder.multiProcess = sharedLog != null;
+        builder.password = cryptoKey;
+        builder.textCodec = textCodec;
+        builder.legacyFallback = isLegacyFallback;
+        builder.hashedKeyNames = isHashedKeyNames;
+        builder.authenticatedValues = isAuthenticatedValues;
+        builder.cacheEnabled = isCacheEnabled;
+        builder.snapshotEnabled = isSnapshotEnabled;
+        builder.writeBehindEnabled = isWriteBehindEnabled;
+        builder.writeBehindWindow = writeBehindWindow;
+        builder.debug = isDebug;
+        builder.metrics = metrics;
+        builder.blobDirectory = blobDirectory;
+        builder.blobThreshold = blobThreshold;
+        builder.compressionThreshold = compressionThreshold;
+        builder.previousPassword = isMigrating() ? migration.previousPassword : null;
+        return builder;
+    }
+
+    /**
+     * Apply the options of a builder that only change how values are written and reported, authenticated values, compression, the write-behind
+     * window, debug logging and metrics, to this store. Unlike building a new store, this keeps its caches, snapshot and observations, and the
+     * {@link Key} handles it returned stay valid. Values already written keep their format.
+     *
+     * @param builder - The builder holding the options, its other options are ignored
+     */
+    void applyWriteOptions(Builder builder) {
+        isAuthenticatedValues = builder.authenticatedValues;
+        compressionThreshold = builder.compressionThreshold;
+        writeBehindWindow = builder.writeBehindWindow;
+        isDebug = builder.debug;
+        metrics = builder.metrics;
+        isMetricsEnabled = builder.metrics != MetricsListener.NONE;
+    }
+
+    boolean isWriteBehindEnabled() {
+        return isWriteBehindEnabled;
+    }
+
+    /**
+     * Encode a byte value, writing it to a temporary side file if it is over the blob threshold.
+     *
+     * @param key   - The plain name of the preference
+     * @param value - The value
+     * @param file  - Receives the temporary file at index 0, if one was written
+     * @return The value encoded by {@link ValueCodec}, holding either the bytes or a reference to the file
+     * @throws IOException if the side file can not be written
+     */
+    byte[] encodeBytes(String key, byte[] value, File[] file) throws IOException {
+        if (value.length <= blobThreshold) return ValueCodec.encodeBytes(value, 0, value.length);
+        return encodeStream(key, new ByteArrayInputStream(value), file);
+    }
+
+    /**
+     * Encode a byte value read from a stream. Up to the blob threshold is buffered in memory, anything longer is encrypted into a temporary side file
+     * as it is read.
+     *
+     * @param key  - The plain name of the preference
+     * @param in   - The value, read until its end
+     * @param file - Receives the temporary file at index 0, if one was written
+     * @return The value encoded by {@link ValueCodec}, holding either the bytes or a reference to the file
+     * @throws IOException if the stream can not be read or the side file can not be written
+     */
+    byte[] encodeStream(String key, InputStream in, File[] file) throws IOException {
+        byte[] head = new byte[blobThreshold + 1];
+        int length = 0;
+        int count;
+        while (length < head.length && (count = in.read(head, length, head.length - length)) != -1) {
+            length += count;
+        }
+        if (length <= blobThreshold) return ValueCodec.encodeBytes(head, 0, length);
+        if (blobStore == null) {
+            throw new IllegalStateException("values over " + blobThreshold + " bytes need a blob directory, see Builder#blobs(File, int)");
+        }
+        long[] size = new long[1];
+        file[0] = blobStore.write(blobPrefix(key), head, length, in, size);
+        return ValueCodec.encodeBlob(BlobStore.committedName(file[0]), size[0]);
+    }
+
+    /**
+     * Give a side file written by {@link #encodeStream(String, InputStream, File[])} its committed name, before the reference to it is written.
+     *
+     * @param file - The temporary file
+     * @throws IOException if the file can not be renamed
+     */
+    void commitBlob(File file) throws IOException {
+        blobStore.commit(file);
+    }
+
+    /**
+     * Delete the side files that written changes replaced or removed.
+     *
+     * @param changes - The plain keys and their new encoded values, null or MISSING marks a removal
+     * @param clear   - true if the backing store was cleared before the changes were written
+     */
+    void deleteStaleBlobs(Map<String, ?> changes, boolean clear) {
+        if (blobStore == null || !blobStore.isUsed()) return;
+        Map<String, String> current = new HashMap<>(changes.size() * 2);
+        for (Map.Entry<String, ?> entry : changes.entrySet()) {
+            Object value = entry.getValue();
+            byte[] bytes = value instanceof byte[] ? (byte[]) value : null;
+            current.put(blobPrefix(entry.getKey()), bytes == null ? null : ValueCodec.blobName(bytes, bytes.length));
+        }
+        blobStore.deleteStale(current, clear);
+    }
+
+    /**
+     * @param key - The plain name of the preference
+     * @return The name prefix of the side files of the key, a keyed hash so file names do not reveal the key
+     */
+    String blobPrefix(String key) {
+        try {
+            MessageDigest digest = AESCrypt.sha256();
+            digest.update(blobPrefixKey);
+            byte[] hash = digest.digest(key.getBytes(CHARSET));
+            StringBuilder prefix = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                prefix.append(Character.forDigit(hash[i] >> 4 & 0x0F, 16)).append(Character.forDigit(hash[i] & 0x0F, 16));
+            }
+            return prefix.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    SharedPreferences.Editor editBackend() {
+        return sharedPreferences.edit();
+    }
+
+    /**
+     * @return The lock to hold from encrypting changes until they are handed to the backing store.
+     */
+    Object writeLock() {
+        return writeLock;
+    }
+
+    void invalidate(String key) {
+        cacheGeneration++;
+        valueCache.remove(key);
+    }
+
+    void invalidateAll() {
+        cacheGeneration++;
+        valueCache.clear();
+    }
+
+    long startTimer() {
+        return isMetricsEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Report the time since start to the metrics listener, if there is one.
+     *
+     * @param operation - The timed step
+     * @param start     - The value returned by {@link #startTimer()}
+     * @return The current time, to start the timer of the next step
+     */
+    long stopTimer(MetricsListener.Operation operation, long start) {
+        //a start of 0 was taken before the listener was set
+        if (!isMetricsEnabled || start == 0) return 0;
+        long now = System.nanoTime();
+        metrics.onLatency(operation, now - start);
+        return now;
+    }
+
+    private void countLookup(MetricsListener.Cache cache, boolean hit) {
+        if (isMetricsEnabled) metrics.onCacheLookup(cache, hit);
+    }
+
+    private void log(String logMessage) {
+        if (isDebug()) {
+            Log.d(TAG, logMessage);
+        }
+    }
+
+    String encryptString(String message) {
+        return encryptText(message, TextCodec.ESCAPED);
+    }
+
+    private String encryptText(String message, TextCodec codec) {
+        try {
+            long start = startTimer();
+            byte[] cipherText = AESCrypt.encrypt(secretKey, AESCrypt.iv(), message.getBytes(CHARSET));
+            start = stopTimer(MetricsListener.Operation.ENCRYPT, start);
+            String text = codec.encode(cipherText);
+            stopTimer(MetricsListener.Operation.CODEC, start);
+            return text;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the name a preference key is stored under, encrypting or hashing it only the first time it is seen.
+     *
+     * @param key - The plain name of the preference
+     * @return The encrypted or hashed name, or null if encryption failed
+     */
+    private String encryptKey(String key) {
+        String encKey = keyNameCache.get(key);
+        countLookup(MetricsListener.Cache.KEY_NAME, encKey != null);
+        if (encKey == null) {
+            encKey = isHashedKeyNames ? keyNames.name(key, 0) : encryptText(key, textCodec);
+            if (encKey == null) return null;
+            rememberKeyName(key, encKey);
+        }
+        return encKey;
+    }
+
+    private void rememberKeyName(String key, String encKey) {
+        keyNameIndex.put(encKey, key);
+        String evicted = keyNameCache.put(key, encKey);
+        if (evicted == null || evicted.equals(encKey)) return;
+        //the least recently used name made room, it is derived and checked again on its next use
+        checkedNames.remove(evicted);
+        String evictedKey = keyNameIndex.get(evicted);
+        if (evictedKey != null && !valueCache.containsKey(evictedKey)) keyNameIndex.remove(evicted, evictedKey);
+    }
+
+    /**
+     * Returns the hashed name to write a key under. The first time, each name of the key holding an entry is checked to belong to the key, and the
+     * next name is used if it belongs to another one.
+     *
+     * @param key  - The plain name of the preference
+     * @param pool - The buffers of the calling thread
+     * @return The first name that is free or holds an entry of the key, or null if all of them hold entries of other keys
+     */
+    private String resolveHashedName(String key, BufferPool pool) {
+        String first = encryptKey(key);
+        if (checkedNames.contains(first)) return first;
+        for (int probe = 0; probe < KeyNames.MAX_PROBES; probe++) {
+            String name = probe == 0 ? first : keyNames.name(key, probe);
+            String value = readBackend(name);
+            byte[] plainText = TextUtils.isEmpty(value) ? null : decryptValue(value, name, pool);
+            int start = plainText == null ? -1 : ValueCodec.keyStart(plainText, pool.length);
+            //an entry that can not be read belongs to nobody and is overwritten, as it would be under an encrypted name
+            if (start < 0 || ValueCodec.hasKey(plainText, start, pool.length, key)) {
+                if (probe > 0) {
+                    keyNameIndex.remove(first, key);
+                    rememberKeyName(key, name);
+                }
+                checkedNames.add(name);
+                return name;
+            }
+            if (isDebug) log("key name taken by another key => " + key + " => " + name);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name a key is actually stored under, which may be a name in an older format, see {@link #staleStoredKey(String)}.
+     *
+     * @param key - The plain name of the preference
+     * @return The stored name, or null if the key does not exist
+     */
+    private String storedKey(String key) {
+        String encKey = encryptKey(key);
+        if (encKey != null && containsEncryptedKey(encKey)) return encKey;
+        return staleStoredKey(key);
+    }
+
+    /**
+     * Returns the name a key is stored under with the current password in an older format: the name written by {@link TextCodec#ESCAPED} for entries
+     * written before the store switched codec, or the name of the other key naming scheme while a migration has not moved the entry yet.
+     *
+     * @param key - The plain name of the preference
+     * @return The stored name, or null if there is no entry under an older name
+     */
+    private String staleStoredKey(String key) {
+        if (isHashedKeyNames ? isMigrating() : isLegacyFallback()) {
+            String encKey = isHashedKeyNames ? encryptText(key, textCodec) : null;
+            if (encKey != null && containsEncryptedKey(encKey)) return encKey;
+            if (isLegacyFallback()) {
+                String legacyKey = encryptString(key);
+                if (legacyKey != null && containsEncryptedKey(legacyKey)) return legacyKey;
+            }
+        }
+        if (!isHashedKeyNames && isMigrating()) {
+            String hashedKey = keyNames.name(key, 0);
+            if (containsEncryptedKey(hashedKey)) return hashedKey;
+        }
+        return null;
+    }
+
+    private boolean isLegacyFallback() {
+        return textCodec != TextCodec.ESCAPED && isLegacyFallback;
+    }
+
+    /**
+     * Add an encrypted put or remove of a key to a {@link SharedPreferences.Editor}, dropping the entry under an older name if there is one.
+     *
+     * @param editor - The editor collecting the changes
+     * @param key    - The plain name of the preference
+     * @param value  - The value encoded by {@link ValueCodec}, or null to remove the preference
+     * @return The encrypted value, or null for a removal or if encryption failed
+     */
+    String writeValue(SharedPreferences.Editor editor, String key, byte[] value) {
+        String encKey = isHashedKeyNames ? resolveHashedName(key, BufferPool.get()) : encryptKey(key);
+        if (encKey == null) return null;
+        String encValue = null;
+        if (value == null) {
+            editor.remove(encKey);
+        } else {
+            encValue = encryptValue(isHashedKeyNames ? ValueCodec.appendKey(value, key) : value, encKey);
+            editor.putString(encKey, encValue);
+        }
+        String staleKey = staleStoredKey(key);
+        if (staleKey != null) editor.remove(staleKey);
+        String previousKey = previousStoredKey(key);
+        if (previousKey != null) editor.remove(previousKey);
+        return encValue;
+    }
+
+    /**
+     * Encrypt an encoded value into the text stored in the preferences, compressing it first if it is over the compression threshold. With
+     * {@link Builder#authenticatedValues(boolean)} the value gets a random nonce and a tag binding it to its stored name.
+     *
+     * @param value - The value encoded by {@link ValueCodec}
+     * @param name  - The name the value is stored under
+     * @return The encrypted value, or null if encryption failed
+     */
+    private String encryptValue(byte[] value, String name) {
+        try {
+            BufferPool pool = BufferPool.get();
+            byte[] plainText = value;
+            int plainLength = value.length;
+            if (compressionThreshold >= 0 && value.length > compressionThreshold) {
+                long start = startTimer();
+                byte[] compressed = pool.compression(value.length);
+                int length = ValueCodec.deflate(value, pool.deflater(), compressed);
+                stopTimer(MetricsListener.Operation.COMPRESSION, start);
+                if (length > 0) {
+                    plainText = compressed;
+                    plainLength = length;
+                }
+            }
+            long start = startTimer();
+            String text;
+            if (isAuthenticatedValues) {
+                byte[] cipherText = pool.cipherText(AUTHENTICATED_OVERHEAD + plainLength);
+                byte[] nonce = pool.nextNonce();
+                cipherText[0] = AUTHENTICATED_VERSION;
+                System.arraycopy(nonce, 0, cipherText, 1, nonce.length);
+                int aadLength = associatedData(pool, AUTHENTICATED_VERSION, name);
+                int length = 1 + nonce.length + AESCrypt.encryptAead(secretKey, nonce, pool.associatedData(aadLength), aadLength, plainText, 0,
+                        plainLength, cipherText, 1 + nonce.length);
+                start = stopTimer(MetricsListener.Operation.ENCRYPT, start);
+                text = textCodec.encode(AUTHENTICATED_MARKER, cipherText, 0, length);
+            } else {
+                byte[] cipherText = pool.cipherText(AESCrypt.getEncryptedSize(plainLength));
+                int length = AESCrypt.encrypt(secretKey, AESCrypt.iv(), plainText, 0, plainLength, cipherText, 0);
+                start = stopTimer(MetricsListener.Operation.ENCRYPT, start);
+                text = textCodec.encode(cipherText, 0, length);
+            }
+            stopTimer(MetricsListener.Operation.CODEC, start);
+            return text;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decrypt the text stored in the preferences into the buffers of the pool, inflating it if it was compressed. Authenticated and CBC values are
+     * both read whatever the current option, an authenticated value that was changed or moved to another name fails its tag check.
+     *
+     * @param value - The stored text
+     * @param name  - The name the value is stored under
+     * @param pool  - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the decrypted value
+     * @return The buffer holding the decrypted value, or null if it can not be decrypted
+     */
+    private byte[] decryptValue(String value, String name, BufferPool pool) {
+        return decryptValue(value, name, pool, secretKey);
+    }
+
+    private byte[] decryptValue(String value, String name, BufferPool pool, SecretKeySpec key) {
+        try {
+            boolean authenticated = value.length() > 0 && value.charAt(0) == AUTHENTICATED_MARKER;
+            byte[] cipherText = pool.cipherText(TextCodec.maxDecodedLength(value));
+            long start = startTimer();
+            int length = TextCodec.decodeAny(value, authenticated ? 1 : 0, cipherText);
+            start = stopTimer(MetricsListener.Operation.CODEC, start);
+            byte[] plainText = pool.plainText(length);
+            if (authenticated) {
+                if (length < AUTHENTICATED_OVERHEAD || cipherText[0] != AUTHENTICATED_VERSION) return null;
+                int aadLength = associatedData(pool, cipherText[0], name);
+                pool.length = AESCrypt.decryptAead(key, cipherText, 1, pool.associatedData(aadLength), aadLength, cipherText, 1 + AESCrypt.NONCE_SIZE,
+                        length - 1 - AESCrypt.NONCE_SIZE, plainText, 0);
+            } else {
+                pool.length = AESCrypt.decrypt(key, AESCrypt.iv(), cipherText, 0, length, plainText, 0);
+            }
+            start = stopTimer(MetricsListener.Operation.DECRYPT, start);
+            //compressed entries are recognized by their header whatever the current threshold, so they stay readable if it changes
+            int inflatedLength = ValueCodec.inflatedLength(plainText, pool.length);
+            if (inflatedLength < 0) return plainText;
+            //CBC values carry no tag, so the header may hold any length: one the value can not inflate to is corrupt rather than allocated
+            if (inflatedLength > ValueCodec.maxInflatedLength(pool.length)) return null;
+            byte[] inflated = pool.compression(inflatedLength);
+            pool.length = ValueCodec.inflate(plainText, pool.length, pool.inflater(), inflated);
+            stopTimer(MetricsListener.Operation.COMPRESSION, start);
+            return inflated;
+        } catch (GeneralSecurityException | IllegalArgumentException | DataFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the data an authenticated value is bound to into {@link BufferPool#associatedData(int)}: the version of its layout and its stored name,
+     * so a value copied to the name of another key does not read.
+     *
+     * @param pool    - The buffers of the calling thread
+     * @param version - The version of the layout
+     * @param name    - The stored name, may be null
+     * @return The length of the data
+     */
+    private static int associatedData(BufferPool pool, byte version, String name) {
+        int nameLength = name == null ? 0 : name.length();
+        byte[] data = pool.associatedData(1 + nameLength * 3);
+        data[0] = version;
+        int length = 1;
+        for (int i = 0; i < nameLength; i++) {
+            char c = name.charAt(i);
+            if (c < 0x80) {
+                data[length++] = (byte) c;
+            } else if (c < 0x800) {
+                data[length++] = (byte) (0xC0 | c >> 6);
+                data[length++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                data[length++] = (byte) (0xE0 | c >> 12);
+                data[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                data[length++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return length;
+    }
+
+    String decryptString(String message) {
+        return decryptString(message, secretKey);
+    }
+
+    private String decryptString(String message, SecretKeySpec key) {
+        BufferPool pool = BufferPool.get();
+        byte[] plainText = decryptValue(message, null, pool, key);
+        return plainText == null ? null : new String(plainText, 0, pool.length, CHARSET);
+    }
+
+    /**
+     * Decrypt the value of an entry of a known key. The plain key at the end of a value stored under a hashed name is checked and left out.
+     *
+     * @param name     - The stored name
+     * @param value    - The stored text
+     * @param pool     - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the value
+     * @param key      - The key the entry was written with
+     * @param plainKey - The plain name of the preference
+     * @return The buffer holding the value encoded by {@link ValueCodec}, or null if it can not be decrypted or belongs to another key
+     */
+    private byte[] decryptEntry(String name, String value, BufferPool pool, SecretKeySpec key, String plainKey) {
+        byte[] plainText = decryptValue(value, name, pool, key);
+        if (plainText == null || !KeyNames.isHashed(name)) return plainText;
+        int start = ValueCodec.keyStart(plainText, pool.length);
+        if (start < 0 || !ValueCodec.hasKey(plainText, start, pool.length, plainKey)) return null;
+        pool.length = start;
+        return plainText;
+    }
+
+    /**
+     * Decrypt an entry of an unknown key, from its name or, for a hashed name, from the end of its value.
+     *
+     * @param name     - The stored name
+     * @param value    - The stored text
+     * @param pool     - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the value
+     * @param key      - The key to try
+     * @param names    - The hashed names of that key
+     * @param plainKey - Receives the plain name of the preference at index 0
+     * @return The buffer holding the value encoded by {@link ValueCodec}, or null if the entry was not written with the key
+     */
+    private byte[] decryptEntry(String name, String value, BufferPool pool, SecretKeySpec key, KeyNames names, String[] plainKey) {
+        plainKey[0] = null;
+        if (!KeyNames.isHashed(name)) {
+            String decrypted = decryptString(name, key);
+            byte[] plainText = decrypted == null ? null : decryptValue(value, name, pool, key);
+            if (plainText != null) plainKey[0] = decrypted;
+            return plainText;
+        }
+        byte[] plainText = decryptValue(value, name, pool, key);
+        int start = plainText == null ? -1 : ValueCodec.keyStart(plainText, pool.length);
+        if (start < 0) return null;
+        String decrypted = ValueCodec.key(plainText, start, pool.length);
+        //a value that decrypts with the wrong key by chance does not end with a key hashing to its name
+        if (names.probeOf(name, decrypted) < 0) return null;
+        plainKey[0] = decrypted;
+        pool.length = start;
+        return plainText;
+    }
+
+    /**
+     * Returns the decrypted value of a key, preferring changes staged by the write-behind queue.
+     *
+     * @param key  - The plain name of the preference
+     * @param pool - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the value
+     * @return The buffer holding the value encoded by {@link ValueCodec}, or null if there is no readable value
+     */
+    private byte[] readValue(String key, BufferPool pool) {
+        Object staged = writeQueue.get(key);
+        if (staged == null) return readStored(key, pool);
+        if (staged == MISSING) return null;
+        pool.length = ((byte[]) staged).length;
+        return (byte[]) staged;
+    }
+
+    /**
+     * Returns the decrypted value of a key from the name held by its handle, without looking the name up or checking it exists first.
+     *
+     * @param key  - The handle of the preference
+     * @param pool - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the value
+     * @return The buffer holding the value encoded by {@link ValueCodec}, or null if there is no readable value
+     */
+    private byte[] readValue(Key key, BufferPool pool) {
+        if (key.storedName == null || writeQueue.get(key.name) != null) return readValue(key.name, pool);
+        String value = readBackend(key.storedName);
+        byte[] plainText = TextUtils.isEmpty(value) ? null : decryptEntry(key.storedName, value, pool, secretKey, key.name);
+        //the entry may be under an older name, or the name may hold an entry of another key
+        return plainText != null ? plainText : readStored(key.name, pool);
+    }
+
+    /**
+     * @param key - The plain name of the preference
+     * @return The decoded value held by the snapshot or the value cache, or null if it has to be read, or has a staged change
+     */
+    private Object heldValue(String key) {
+        if (writeQueue.get(key) != null) return null;
+        if (isSnapshotEnabled) return snapshot().get(key);
+        if (sharedLog != null) sharedLog.refresh();
+        Object cached = valueCache.get(key);
+        if (cached != null && cached != MISSING) countLookup(MetricsListener.Cache.VALUE, true);
+        return cached;
+    }
+
+    private <T> Object decryptType(String key, Object type, T defaultType) {
+        Object staged = writeQueue.get(key);
+        if (staged != null) {
+            return staged == MISSING ? defaultType : ValueCodec.decode((byte[]) staged, ((byte[]) staged).length, type, defaultType);
+        }
+
+        if (sharedLog != null) sharedLog.refresh();
+        Object cached = valueCache.get(key);
+        boolean hit = cached == MISSING || cached != null && cached.getClass() == type.getClass();
+        countLookup(MetricsListener.Cache.VALUE, hit);
+        if (hit) return cached == MISSING ? defaultType : cached;
+
+        int generation = cacheGeneration;
+        BufferPool pool = BufferPool.get();
+        byte[] stored = readStored(key, pool);
+        Object value = stored == null ? MISSING : ValueCodec.decode(stored, pool.length, type, MISSING);
+        if (value == MISSING && (storedKey(key) != null || previousStoredKey(key) != null)) return defaultType;
+        valueCache.put(key, value);
+        //a writer invalidated the key while it was being read, the value may already be stale
+        if (generation != cacheGeneration) valueCache.remove(key);
+        return value == MISSING ? defaultType : value;
+    }
+
+    /**
+     * Read the given keys, or every entry if keys is null, decrypting them in parallel.
+     *
+     * @param keys - The plain names of the preferences to read, or null for all of them
+     * @return An unmodifiable map of the plain keys and their decoded values
+     */
+    private Map<String, Object> readAll(Collection<String> keys) {
+        if (isSnapshotEnabled) {
+            Snapshot current = snapshot();
+            Map<String, Object> result = new HashMap<>(keys == null ? current.size() * 2 : keys.size() * 2);
+            if (!writeQueue.isClearStaged()) {
+                if (keys == null) {
+                    current.copyTo(result);
+                } else {
+                    for (String key : keys) {
+                        Object value = current.get(key);
+                        if (value != null) result.put(key, value);
+                    }
+                }
+            }
+            writeQueue.overlay(result, keys);
+            return Collections.unmodifiableMap(result);
+        }
+
+        int generation = cacheGeneration;
+        List<String> absent = new ArrayList<>();
+        Map<String, Object> result = writeQueue.isClearStaged() ? new HashMap<String, Object>() : readAllStored(keys, absent);
+        writeQueue.overlay(result, keys);
+
+        if (isCacheEnabled) {
+            for (Map.Entry<String, Object> entry : result.entrySet()) {
+                valueCache.put(entry.getKey(), entry.getValue());
+            }
+            for (String key : absent) {
+                if (writeQueue.get(key) == null) valueCache.put(key, MISSING);
+            }
+            //a writer changed the preferences while they were being read, the values may already be stale
+            if (generation != cacheGeneration) invalidateAll();
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Read and decrypt the given keys, or every entry if keys is null, from the backing store, ignoring staged changes.
+     *
+     * @param keys   - The plain names of the preferences to read, or null for all of them
+     * @param absent - Receives the keys that do not exist
+     * @return A map of the plain keys and their decoded values
+     */
+    private Map<String, Object> readAllStored(Collection<String> keys, List<String> absent) {
+        List<String> plainKeys = new ArrayList<>();
+        List<String> encKeys = new ArrayList<>();
+        List<String> encValues = new ArrayList<>();
+        Map<String, Object> previousValues = new HashMap<>();
+        Migration moving = runningMigration();
+        if (keys == null) {
+            long start = startTimer();
+            Map<String, ?> all = sharedPreferences.getAll();
+            stopTimer(MetricsListener.Operation.BACKEND_READ, start);
+            for (Map.Entry<String, ?> entry : all.entrySet()) {
+                if (!(entry.getValue() instanceof String)) continue;
+                plainKeys.add(null);
+                encKeys.add(entry.getKey());
+                encValues.add((String) entry.getValue());
+            }
+        } else {
+            BufferPool pool = BufferPool.get();
+            for (String key : keys) {
+                String encKey = storedKey(key);
+                String value = encKey == null ? null : readBackend(encKey);
+                if (value == null) {
+                    //not moved by the migration yet, or moved while it was looked up, rare enough to decrypt right away
+                    byte[] previous = moving != null ? readStored(key, pool) : null;
+                    Object decoded = previous == null ? null : ValueCodec.decodeObject(previous, pool.length);
+                    if (decoded != null) {
+                        previousValues.put(key, decoded);
+                    } else {
+                        absent.add(key);
+                    }
+                    continue;
+                }
+                plainKeys.add(key);
+                encKeys.add(encKey);
+                encValues.add(value);
+            }
+        }
+
+        int size = encKeys.size();
+        String[] plain = plainKeys.toArray(new String[size]);
+        String[] names = encKeys.toArray(new String[size]);
+        Object[] values = new Object[size];
+        decryptAll(plain, names, encValues.toArray(new String[size]), values, moving);
+
+        Map<String, Object> result = new HashMap<>(size * 2 + previousValues.size() * 2);
+        result.putAll(previousValues);
+        for (int i = 0; i < size; i++) {
+            if (plain[i] == null || values[i] == null) continue;
+            result.put(plain[i], values[i]);
+            if (keys == null && names[i] != null && (isHashedKeyNames || TextCodec.of(names[i]) == textCodec) && !keyNameCache.containsKey(plain[i])) {
+                rememberKeyName(plain[i], names[i]);
+            }
+        }
+        return result;
+    }
+
+    private Object snapshotType(String key, Object type, Object defaultType) {
+        Object staged = writeQueue.get(key);
+        if (staged != null) {
+            return staged == MISSING ? defaultType : ValueCodec.decode((byte[]) staged, ((byte[]) staged).length, type, defaultType);
+        }
+        return ValueCodec.convert(snapshot().get(key), type, defaultType);
+    }
+
+    /**
+     * Returns the published snapshot, decrypting the whole store into a new one the first time.
+     *
+     * @return The current snapshot
+     */
+    private Snapshot snapshot() {
+        //changes of other processes drop the snapshot through the change listener
+        if (sharedLog != null) sharedLog.refresh();
+        Snapshot current = snapshot.get();
+        countLookup(MetricsListener.Cache.SNAPSHOT, current != null);
+        if (current != null) return current;
+        synchronized (snapshotLock) {
+            current = snapshot.get();
+            if (current != null) return current;
+            int generation = cacheGeneration;
+            current = Snapshot.of(readAllStored(null, null));
+            //a writer changed the preferences while they were being read, use the snapshot for this read only
+            if (generation == cacheGeneration) snapshot.compareAndSet(null, current);
+            return current;
+        }
+    }
+
+    /**
+     * Apply changes written to the backing store to the published snapshot. Callers bump the cache generation first, so a snapshot being loaded at the
+     * same time is not published.
+     *
+     * @param changes - The plain keys and their new encoded values, null or MISSING marks a removal
+     * @param clear   - true if the backing store was cleared before the changes were written
+     */
+    void updateSnapshot(Map<String, ?> changes, boolean clear) {
+        if (!isSnapshotEnabled) return;
+        Map<String, Object> decoded = new HashMap<>(changes.size() * 2);
+        for (Map.Entry<String, ?> entry : changes.entrySet()) {
+            Object value = entry.getValue();
+            byte[] bytes = value instanceof byte[] ? (byte[]) value : null;
+            decoded.put(entry.getKey(), bytes == null ? null : ValueCodec.decodeObject(bytes, bytes.length));
+        }
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current == null && !clear) return;
+            Snapshot next = (clear ? Snapshot.EMPTY : current).with(decoded);
+            if (snapshot.compareAndSet(current, next)) return;
+        }
+    }
+
+    /**
+     * Re-read a key changed in the backing store, possibly by another writer, into the published snapshot.
+     *
+     * @param key - The plain name of the preference
+     */
+    private void refreshSnapshot(String key) {
+        if (snapshot.get() == null) return;
+        BufferPool pool = BufferPool.get();
+        byte[] stored = readStored(key, pool);
+        updateSnapshot(Collections.singletonMap(key, stored == null ? null : Arrays.copyOf(stored, pool.length)), false);
+    }
+
+    /**
+     * Decrypt entries, splitting them across the decrypt executor when there are enough of them. The calling thread decrypts the first chunk itself.
+     *
+     * @param keys      - The plain keys, null entries are decrypted from encKeys
+     * @param encKeys   - The stored names, set to null for entries decrypted with the previous password or stored under the other naming scheme
+     * @param encValues - The stored values
+     * @param values    - Receives the decoded values, null where a value can not be decoded
+     * @param moving    - The migration running when the entries were read, or null
+     */
+    private void decryptAll(final String[] keys, final String[] encKeys, final String[] encValues, final Object[] values, final Migration moving) {
+        int size = encKeys.length;
+        int tasks = Math.min(DECRYPT_THREADS + 1, size / MIN_ENTRIES_PER_TASK);
+        if (tasks <= 1) {
+            decryptRange(keys, encKeys, encValues, values, 0, size, moving);
+            return;
+        }
+
+        int chunk = (size + tasks - 1) / tasks;
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int start = chunk; start < size; start += chunk) {
+            final int from = start;
+            final int to = Math.min(size, start + chunk);
+            futures.add(SharedThreads.DECRYPT.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    decryptRange(keys, encKeys, encValues, values, from, to, moving);
+                    return null;
+                }
+            }));
+        }
+        decryptRange(keys, encKeys, encValues, values, 0, chunk, moving);
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            //finish whatever the executor did not get to on the calling thread
+            decryptRange(keys, encKeys, encValues, values, chunk, size, moving);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void decryptRange(String[] keys, String[] encKeys, String[] encValues, Object[] values, int from, int to, Migration moving) {
+        BufferPool pool = BufferPool.get();
+        String[] plainKey = new String[1];
+        for (int i = from; i < to; i++) {
+            if (values[i] != null) continue;
+            byte[] value;
+            if (keys[i] != null) {
+                value = decryptEntry(encKeys[i], encValues[i], pool, secretKey, keys[i]);
+            } else {
+                value = decryptEntry(encKeys[i], encValues[i], pool, secretKey, keyNames, plainKey);
+                if (value == null && moving != null && moving.previousKey != null) {
+                    //an entry the rotation has not moved yet
+                    value = decryptEntry(encKeys[i], encValues[i], pool, moving.previousKey, moving.previousKeyNames, plainKey);
+                    encKeys[i] = null;
+                }
+                keys[i] = plainKey[0];
+            }
+            //only names of the current scheme are remembered
+            if (encKeys[i] != null && KeyNames.isHashed(encKeys[i]) != isHashedKeyNames) encKeys[i] = null;
+            if (value != null) values[i] = ValueCodec.decodeObject(value, pool.length);
+        }
+    }
+
+    private boolean containsEncryptedKey(String encryptedKey) {
+        long start = startTimer();
+        boolean contains = sharedPreferences.contains(encryptedKey);
+        stopTimer(MetricsListener.Operation.BACKEND_READ, start);
+        return contains;
+    }
+
+    private String readBackend(String encKey) {
+        long start = startTimer();
+        String value = sharedPreferences.getString(encKey, null);
+        stopTimer(MetricsListener.Operation.BACKEND_READ, start);
+        return value;
+    }
+
+    /**
+     * Read and decrypt the stored value of a key into the buffers of the pool.
+     *
+     * @param key  - The plain name of the preference
+     * @param pool - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the value
+     * @return The buffer holding the value encoded by {@link ValueCodec}, or null if there is no readable value
+     */
+    private byte[] readStored(String key, BufferPool pool) {
+        boolean migrating = isMigrating();
+        byte[] plainText = readStoredOnce(key, pool);
+        //a migration batch may move the entry between the lookup of its new name and of its old one, which then both miss it
+        if (plainText == null && (migrating || isMigrating())) plainText = readStoredOnce(key, pool);
+        return plainText;
+    }
+
+    private byte[] readStoredOnce(String key, BufferPool pool) {
+        String encKey = storedKey(key);
+
+        if (encKey == null) {
+            if (isMigrating()) return readPrevious(key, pool);
+            if (isDebug) log("unable to encrypt or find key => " + key);
+            return null;
+        }
+
+        String value = readBackend(encKey);
+
+        if (isDebug) log("readStored() => " + encKey + " => " + value);
+
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+
+        byte[] plainText = decryptEntry(encKey, value, pool, secretKey, key);
+        if (plainText != null || !isHashedKeyNames || !KeyNames.isHashed(encKey)) return plainText;
+        //the name may hold an entry of another key, the key is then stored under one of its next names
+        String name = resolveHashedName(key, pool);
+        if (name == null || name.equals(encKey)) return null;
+        value = readBackend(name);
+        return TextUtils.isEmpty(value) ? null : decryptEntry(name, value, pool, secretKey, key);
+    }
+
+    /**
+     * Returns the name a key is stored under with the previous password, while a rotation has not moved it yet.
+     *
+     * @param key - The plain name of the preference
+     * @return The stored name, or null if there is no rotation or the key was moved or does not exist
+     */
+    private String previousStoredKey(String key) {
+        if (!isMigrating() || migration.previousKey == null) return null;
+        String name = migration.previousName(key, isHashedKeyNames, textCodec);
+        if (name != null && containsEncryptedKey(name)) return name;
+        //the previous password may have been used with the other naming scheme
+        String otherName = migration.previousName(key, !isHashedKeyNames, textCodec);
+        if (otherName != null && containsEncryptedKey(otherName)) return otherName;
+        if (isLegacyFallback()) {
+            String legacyName = migration.previousName(key, false, TextCodec.ESCAPED);
+            if (legacyName != null && containsEncryptedKey(legacyName)) return legacyName;
+        }
+        return null;
+    }
+
+    /**
+     * Read and decrypt the value a key has with the previous password, while a rotation has not moved it yet.
+     *
+     * @param key  - The plain name of the preference
+     * @param pool - The buffers of the calling thread, {@link BufferPool#length} is set to the length of the value
+     * @return The buffer holding the value encoded by {@link ValueCodec}, or null if there is no readable value
+     */
+    private byte[] readPrevious(String key, BufferPool pool) {
+        String name = previousStoredKey(key);
+        String value = name == null ? null : readBackend(name);
+        return TextUtils.isEmpty(value) ? null : decryptEntry(name, value, pool, migration.previousKey, key);
+    }
+
+    /**
+     * Background threads shared by all stores, created on first use.
+     */
+    static final class SharedThreads {
+
+        private static final ExecutorService DECRYPT = decryptExecutor();
+        //runs the migration batches and write-behind flushes of every store, one at a time
+        static final ScheduledExecutorService WRITER =
+                Executors.newSingleThreadScheduledExecutor(daemonThreadFactory(TAG + "-writer"));
+        //debounce timers of every observation, and the reads and callbacks of those without an executor of their own
+        private static final ScheduledExecutorService OBSERVER =
+                Executors.newSingleThreadScheduledExecutor(daemonThreadFactory(TAG + "-observer"));
+
+        private static ExecutorService decryptExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DECRYPT_THREADS, DECRYPT_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), daemonThreadFactory(TAG + "-decrypt"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        private static ThreadFactory daemonThreadFactory(final String name) {
+            return new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+    }
+
+    /**
+     * Builds a store on a background thread in two stages: {@link #built} completes once the store is built and its backing store loaded, which is all
+     * a read has to wait for, {@link #ready} once it is also warmed up.
+     */
+    static class AsyncBuild implements Callable<NPreferencesStore> {
+
+        final FutureTask<NPreferencesStore> built;
+        final FutureTask<NPreferencesStore> ready;
+        private final Collection<String> hotKeys;
+        private final ReadyCallback callback;
+
+        AsyncBuild(Builder builder, Collection<String> hotKeys, ReadyCallback callback) {
+            //the caller may keep changing its builder
+            final Builder config = builder.copy();
+            this.hotKeys = hotKeys == null ? Collections.<String>emptyList() : new ArrayList<>(hotKeys);
+            this.callback = callback;
+            this.built = new FutureTask<>(new Callable<NPreferencesStore>() {
+                @Override
+                public NPreferencesStore call() {
+                    NPreferencesStore store = config.build();
+                    store.load();
+                    return onBuilt(store);
+                }
+            });
+            this.ready = new FutureTask<>(this);
+        }
+
+        /**
+         * Called on the background thread once the store is built, before it is warmed up.
+         *
+         * @param store - The new store
+         * @return The store to warm up and hand out
+         */
+        NPreferencesStore onBuilt(NPreferencesStore store) {
+            return store;
+        }
+
+        void start() {
+            SharedThreads.daemonThreadFactory(TAG + "-init").newThread(ready).start();
+        }
+
+        @Override
+        public NPreferencesStore call() throws Exception {
+            built.run();
+            NPreferencesStore store;
+            try {
+                store = built.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw e;
+            }
+            store.warmUp(hotKeys);
+            if (callback != null) callback.onReady(store);
+            return store;
+        }
+    }
+
+    /**
+     * Moves entries written with the previous password, or under the names of the other key naming scheme, to the current ones in small batches on the
+     * background writer, see {@link Builder#previousPassword(String)} and {@link Builder#hashedKeyNames(boolean)}. Until it is finished, reads of keys
+     * not moved yet fall back to their old names.
+     * <p>
+     * Each batch moves its entries, side files included, and updates the progress in the {@link #MIGRATION_STATE} entry in a single commit. A migration
+     * interrupted by the process dying resumes with the entries left the next time the store is built with the same options, and once the state says it
+     * is finished, building the store costs a single read.
+     */
+    final class Migration implements Runnable {
+
+        private static final String SCHEME_HASHED = "hashed";
+        private static final String SCHEME_ENCRYPTED = "encrypted";
+
+        //null if only the naming scheme changes
+        private final String previousPassword;
+        private final SecretKeySpec previousKey;
+        private final KeyNames previousKeyNames;
+        //ties the state to the passwords, so a later migration does not take it as its own
+        private final String fingerprint;
+        private final BlobStore previousBlobs;
+        //plain key => name under the previous password
+        private final Map<String, String> previousNames = new ConcurrentHashMap<>();
+        //stored names left to check, only used on the background writer
+        private ArrayDeque<String> queue;
+        private int moved;
+        private volatile boolean finished;
+        private volatile boolean cancelled;
+
+        Migration(String previousPassword) {
+            this.previousPassword = previousPassword;
+            try {
+                this.previousKey = previousPassword == null ? null : AESCrypt.getKey(previousPassword);
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                if (previousKey != null) digest.update(previousKey.getEncoded());
+                this.fingerprint = TextCodec.URL_SAFE.encode(digest.digest(secretKey.getEncoded()), 0, 12);
+            } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+                throw new IllegalStateException("unable to derive the previous key", e);
+            }
+            this.previousKeyNames = previousKey == null ? null : new KeyNames(previousKey);
+            this.previousBlobs = blobStore == null || previousKey == null ? null : new BlobStore(blobDirectory, previousKey);
+            readState();
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+
+        void start() {
+            SharedThreads.WRITER.execute(this);
+        }
+
+        /**
+         * Stop after the running batch, which is waited for.
+         */
+        void cancel() {
+            cancelled = true;
+            synchronized (writeLock) {
+                previousNames.clear();
+            }
+        }
+
+        /**
+         * Read the state written by the last batch: {@code <fingerprint>:<moved>:<done|running>:<naming scheme>}.
+         */
+        private void readState() {
+            String value = readBackend(MIGRATION_STATE);
+            if (TextUtils.isEmpty(value)) {
+                //nothing was ever migrated, without a previous password only entries under encrypted names may need hashed ones
+                finished = previousKey == null && !isHashedKeyNames;
+                return;
+            }
+            String state = decryptString(value);
+            String[] parts = state == null ? new String[0] : state.split(":");
+            if (parts.length < 3) {
+                //written with another password, only a rotation from it can move its entries
+                finished = previousKey == null;
+                return;
+            }
+            boolean sameScheme = (parts.length > 3 && SCHEME_HASHED.equals(parts[3])) == isHashedKeyNames;
+            if (!fingerprint.equals(parts[0])) {
+                //left by a rotation from another password, without a previous password only the naming scheme can be moved
+                finished = previousKey == null && sameScheme;
+                return;
+            }
+            try {
+                moved = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            finished = "done".equals(parts[2]) && sameScheme;
+        }
+
+        /**
+         * @param key    - The plain name of the preference
+         * @param hashed - true for the hashed name, false for the encrypted one
+         * @param codec  - The codec of the encrypted name
+         * @return The name of the key under the previous password, or null if it can not be encrypted
+         */
+        private String previousName(String key, boolean hashed, TextCodec codec) {
+            boolean cached = hashed == isHashedKeyNames && (hashed || codec == textCodec);
+            String name = cached ? previousNames.get(key) : null;
+            if (name == null) {
+                try {
+                    name = hashed ? previousKeyNames.name(key, 0) : codec.encode(AESCrypt.encrypt(previousKey, AESCrypt.iv(), key.getBytes(CHARSET)));
+                } catch (GeneralSecurityException e) {
+                    return null;
+                }
+                if (previousNames.size() >= MAX_CACHED_KEY_NAMES) previousNames.clear();
+                if (cached) previousNames.put(key, name);
+            }
+            return name;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled || finished) return;
+            boolean more;
+            try {
+                if (queue == null) queue = pendingNames();
+                synchronized (writeLock) {
+                    if (cancelled) return;
+                    more = moveBatch();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "migration stopped, it resumes when the store is built again", e);
+                return;
+            }
+            if (more) SharedThreads.WRITER.execute(this);
+        }
+
+        private ArrayDeque<String> pendingNames() {
+            Map<String, ?> all = sharedPreferences.getAll();
+            ArrayDeque<String> names = new ArrayDeque<>(all.size());
+            for (Map.Entry<String, ?> entry : all.entrySet()) {
+                if (!(entry.getValue() instanceof String) || MIGRATION_STATE.equals(entry.getKey())) continue;
+                //names this store has already resolved under the current password
+                if (keyNameIndex.containsKey(entry.getKey())) continue;
+                names.add(entry.getKey());
+            }
+            return names;
+        }
+
+        /**
+         * Move the next batch of entries. Must be called holding the write lock.
+         *
+         * @return Returns true if entries are left.
+         */
+        private boolean moveBatch() {
+            BufferPool pool = BufferPool.get();
+            SharedPreferences.Editor editor = sharedPreferences.edit();
+            List<String> replacedFiles = new ArrayList<>();
+            String[] plainKey = new String[1];
+            int count = 0;
+            for (int checked = 0; checked < MIGRATION_BATCH && !queue.isEmpty(); checked++) {
+                String name = queue.poll();
+                String value = readBackend(name);
+                if (TextUtils.isEmpty(value)) continue;
+                byte[] plainText = decryptEntry(name, value, pool, secretKey, keyNames, plainKey);
+                //an entry of the current password and naming scheme, written after the migration started or never in need of moving
+                if (plainText != null && KeyNames.isHashed(name) == isHashedKeyNames) continue;
+                boolean previous = plainText == null;
+                if (previous) {
+                    if (previousKey == null) continue;
+                    plainText = decryptEntry(name, value, pool, previousKey, previousKeyNames, plainKey);
+                    if (plainText == null) continue;
+                }
+                String key = plainKey[0];
+                byte[] plainValue = Arrays.copyOf(plainText, pool.length);
+                //side files are named and encrypted after the password only
+                String file = previous ? ValueCodec.blobName(plainValue, plainValue.length) : null;
+                if (file != null) {
+                    plainValue = moveBlob(key, file, plainValue);
+                    if (plainValue == null) continue;
+                    replacedFiles.add(file);
+                }
+                String newName = isHashedKeyNames ? resolveHashedName(key, pool) : encryptKey(key);
+                if (newName == null) continue;
+                if (!containsEncryptedKey(newName)) {
+                    editor.putString(newName, encryptValue(isHashedKeyNames ? ValueCodec.appendKey(plainValue, key) : plainValue, newName));
+                }
+                editor.remove(name);
+                //the change notifications of both names map back to the key, which keeps its value
+                keyNameIndex.put(name, key);
+                count++;
+            }
+            boolean done = queue.isEmpty();
+            editor.putString(MIGRATION_STATE, encryptString(fingerprint + ":" + (moved + count) + ":" + (done ? "done" : "running") + ":"
+                    + (isHashedKeyNames ? SCHEME_HASHED : SCHEME_ENCRYPTED)));
+            if (!editor.commit()) {
+                Log.e(TAG, "migration could not commit, it resumes when the store is built again");
+                return false;
+            }
+            moved += count;
+            for (String file : replacedFiles) {
+                previousBlobs.delete(file);
+            }
+            if (isDebug) log("migration moved " + moved + " entries, " + queue.size() + " left to check");
+            if (done) finished = true;
+            return !done;
+        }
+
+        /**
+         * @return The reference to the side file encrypted again with the current password, or null if it can not be read
+         */
+        private byte[] moveBlob(String key, String file, byte[] reference) {
+            if (previousBlobs == null) return null;
+            try {
+                InputStream in = previousBlobs.open(file);
+                File moved;
+                long[] length = new long[1];
+                try {
+                    moved = blobStore.write(blobPrefix(key), new byte[0], 0, in, length);
+                } finally {
+                    in.close();
+                }
+                blobStore.commit(moved);
+                return ValueCodec.encodeBlob(BlobStore.committedName(moved), ValueCodec.blobLength(reference));
+            } catch (IOException e) {
+                Log.e(TAG, "unable to move " + file, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Changes staged by write-behind editors, visible to readers until the background writer has written them.
+     */
+    final class WriteQueue implements Runnable {
+
+        //plain key => staged encoded value, MISSING marks a removal
+        private final Map<String, Object> staged = new ConcurrentHashMap<>();
+        private final Object flushLock = new Object();
+        private volatile boolean clearStaged;
+        private int clearRequests;
+        private boolean scheduled;
+
+        /**
+         * @param key - The plain name of the preference
+         * @return The staged value, MISSING if the key is staged for removal, or null if nothing is staged for it
+         */
+        private Object get(String key) {
+            if (!clearStaged && staged.isEmpty()) return null;
+            Object value = staged.get(key);
+            return value == null && clearStaged ? MISSING : value;
+        }
+
+        private boolean isClearStaged() {
+            return clearStaged;
+        }
+
+        /**
+         * Apply the staged changes to a snapshot read from the preferences.
+         *
+         * @param result - The snapshot of plain keys and decoded values
+         * @param keys   - The keys the snapshot was limited to, or null for all keys
+         */
+        private void overlay(Map<String, Object> result, Collection<String> keys) {
+            if (staged.isEmpty()) return;
+            for (Map.Entry<String, Object> entry : staged.entrySet()) {
+                if (keys != null && !keys.contains(entry.getKey())) continue;
+                Object value = entry.getValue();
+                if (value == MISSING) {
+                    result.remove(entry.getKey());
+                } else {
+                    byte[] bytes = (byte[]) value;
+                    Object decoded = ValueCodec.decodeObject(bytes, bytes.length);
+                    if (decoded != null) result.put(entry.getKey(), decoded);
+                }
+            }
+        }
+
+        /**
+         * @param changes - The plain keys and their encoded values staged by an editor, null marks a removal
+         * @param clear   - true if the editor cleared the preferences, which is done before its changes whenever it was called
+         */
+        synchronized void enqueue(Map<String, byte[]> changes, boolean clear) {
+            if (clear) {
+                staged.clear();
+                clearStaged = true;
+                clearRequests++;
+            }
+            for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+                staged.put(entry.getKey(), entry.getValue() == null ? MISSING : entry.getValue());
+            }
+            if (!scheduled) {
+                scheduled = true;
+                SharedThreads.WRITER.schedule(this, writeBehindWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            flush();
+        }
+
+        boolean flush() {
+            synchronized (flushLock) {
+                Map<String, Object> batch;
+                boolean clear;
+                int clearSnapshot;
+                synchronized (this) {
+                    scheduled = false;
+                    batch = new LinkedHashMap<>(staged);
+                    clear = clearStaged;
+                    clearSnapshot = clearRequests;
+                }
+                if (batch.isEmpty() && !clear) return true;
+
+                long start = startTimer();
+                boolean result;
+                synchronized (writeLock) {
+                    SharedPreferences.Editor editor = sharedPreferences.edit();
+                    if (clear) editor.clear();
+                    for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                        Object value = entry.getValue();
+                        writeValue(editor, entry.getKey(), value == MISSING ? null : (byte[]) value);
+                    }
+                    result = editor.commit();
+                }
+                stopTimer(MetricsListener.Operation.COMMIT, start);
+                if (isDebug) log("flush() => wrote " + batch.size() + " staged changes");
+
+                synchronized (this) {
+                    if (clear) invalidateAll();
+                    for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                        if (!clear) invalidate(entry.getKey());
+                    }
+                    updateSnapshot(batch, clear);
+                    for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                        //keep the entry if it was staged again while writing
+                        staged.remove(entry.getKey(), entry.getValue());
+                    }
+                    if (clear && clearSnapshot == clearRequests) clearStaged = false;
+                }
+                if (result) deleteStaleBlobs(batch, clear);
+                return result;
+            }
+        }
+
+    }
+
+    /**
+     * Builds {@link NPreferencesStore} instances. Only the backing store and the password are required, everything else has the defaults of
+     * {@link NPreferences}.
+     */
+    public static final class Builder {
+
+        private final Context context;
+        private String prefsName;
+        private SharedPreferences sharedPreferences;
+        private boolean multiProcess;
+        private String password;
+        private TextCodec textCodec = TextCodec.ESCAPED;
+        private boolean legacyFallback = true;
+        private boolean hashedKeyNames;
+        private boolean authenticatedValues;
+        private boolean cacheEnabled;
+        private boolean snapshotEnabled;
+        private boolean writeBehindEnabled;
+        private long writeBehindWindow = DEFAULT_WRITE_BEHIND_WINDOW;
+        private boolean debug;
+        private MetricsListener metrics = MetricsListener.NONE;
+        private File blobDirectory;
+        private int blobThreshold = DEFAULT_BLOB_THRESHOLD;
+        private int compressionThreshold = -1;
+        private String previousPassword;
+
+        /**
+         * @param context - Context used to open the preferences file and to derive the default password, may be null if both are set explicitly
+         */
+        public Builder(Context context) {
+            this.context = context == null ? null : context.getApplicationContext() == null ? context : context.getApplicationContext();
+        }
+
+        /**
+         * @param prefsName - Name of the preferences file, or null for the default preferences of the context
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder name(String prefsName) {
+            this.prefsName = prefsName;
+            this.sharedPreferences = null;
+            return this;
+        }
+
+        /**
+         * @param preferences - The store the encrypted entries are written to, for example {@link LogPreferences}
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder sharedPreferences(SharedPreferences preferences) {
+            this.sharedPreferences = preferences;
+            return this;
+        }
+
+        /**
+         * Share the store with other processes of the app. The entries are kept in a {@link LogPreferences} log named after the preferences, opened in
+         * multi-process mode, instead of the XML file of the context, which does not see the changes of other processes. The entries of that file are
+         * moved into the log the first time and the file is cleared. Every process must build the store this way.
+         *
+         * @param enabled - true to share the store with other processes, ignored if {@link #sharedPreferences(SharedPreferences)} is set
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder multiProcess(boolean enabled) {
+            this.multiProcess = enabled;
+            return this;
+        }
+
+        /**
+         * @param password - The password, or null to use the package name
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder password(String password) {
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * @param codec          - How cipher text is turned into the key names and values stored in the preferences
+         * @param legacyFallback - true to also look up keys under the names written by {@link TextCodec#ESCAPED}
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setTextCodec(TextCodec, boolean)
+         */
+        public Builder textCodec(TextCodec codec, boolean legacyFallback) {
+            this.textCodec = codec;
+            this.legacyFallback = legacyFallback;
+            return this;
+        }
+
+        /**
+         * @param enabled - true to store keys under short names derived from a keyed hash instead of encrypted names
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setHashedKeyNames(boolean)
+         */
+        public Builder hashedKeyNames(boolean enabled) {
+            this.hashedKeyNames = enabled;
+            return this;
+        }
+
+        /**
+         * AES-GCM needs API 19, below it the option is ignored and values are written with AES-CBC.
+         *
+         * @param enabled - true to write values with AES-GCM, a random nonce and a tag bound to their stored name, values written before stay readable
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setAuthenticatedValues(boolean)
+         */
+        public Builder authenticatedValues(boolean enabled) {
+            if (enabled && !AESCrypt.isAeadSupported()) {
+                Log.w(TAG, "authenticated values need API 19, values are written with AES-CBC");
+                enabled = false;
+            }
+            this.authenticatedValues = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled - true to cache decrypted values
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setCacheEnabled(boolean)
+         */
+        public Builder cacheEnabled(boolean enabled) {
+            this.cacheEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled - true to read from an immutable decoded copy of the whole store
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setSnapshotEnabled(boolean)
+         */
+        public Builder snapshotReads(boolean enabled) {
+            this.snapshotEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @param enabled - true to write changes in the background
+         * @param millis  - The flush window in milliseconds
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setWriteBehindEnabled(boolean)
+         */
+        public Builder writeBehind(boolean enabled, long millis) {
+            this.writeBehindEnabled = enabled;
+            this.writeBehindWindow = Math.max(0, millis);
+            return this;
+        }
+
+        /**
+         * @param debug - true to log reads and writes
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * @param listener - Receives timings and cache statistics, or null for none
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder metrics(MetricsListener listener) {
+            this.metrics = listener == null ? MetricsListener.NONE : listener;
+            return this;
+        }
+
+        /**
+         * Keep byte values over the threshold in encrypted side files, with only a reference in the preferences. By default the side files of a store
+         * opened by name are kept in a directory of {@link Context#getFilesDir()}, and a store with its own {@link SharedPreferences} has none.
+         *
+         * @param directory - The directory of the side files, used by this store only, or null for the default
+         * @param threshold - Byte values up to this many bytes are kept in the preferences
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder blobs(File directory, int threshold) {
+            this.blobDirectory = directory;
+            this.blobThreshold = Math.max(0, threshold);
+            return this;
+        }
+
+        /**
+         * Move the entries written with a previous password to the new one. The store is usable right away: entries are encrypted again in small batches
+         * on a background thread, and until that is finished reads of entries not moved yet fall back to the previous password. Keep passing it
+         * until {@link NPreferencesStore#isRotating()} returns false, a rotation interrupted by the process dying resumes where it stopped.
+         *
+         * @param password - The password the entries were written with, or null if there is none
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         */
+        public Builder previousPassword(String password) {
+            this.previousPassword = password;
+            return this;
+        }
+
+        /**
+         * Switch to a new password, moving the entries written with the current one, see {@link #previousPassword(String)}.
+         *
+         * @param newPassword - The new password
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @throws IllegalStateException if the entries of an earlier rotation are still being moved
+         */
+        public Builder rotatePassword(String newPassword) {
+            if (previousPassword != null) throw new IllegalStateException("the previous password rotation has not finished");
+            if (TextUtils.isEmpty(password)) {
+                if (context == null) throw new IllegalStateException("a Context or password is required");
+                password = context.getPackageName();
+            }
+            this.previousPassword = password;
+            this.password = newPassword;
+            return this;
+        }
+
+        /**
+         * @param threshold - Values over this many bytes are compressed before they are encrypted, or a negative number to never compress
+         * @return Returns a reference to the same Builder object, so you can chain calls together.
+         * @see NPreferences#setCompressionThreshold(int)
+         */
+        public Builder compression(int threshold) {
+            this.compressionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Build the store on a background thread, load its backing store, derive the key and warm up the crypto provider.
+         *
+         * @param hotKeys  - Preferences to decrypt in advance into the value cache or the snapshot, if either is enabled, may be null
+         * @param callback - Called on the background thread once the store is ready, may be null
+         * @return A future completing with the store once it is ready. If building fails, {@link Future#get()} throws the failure.
+         */
+        public Future<NPreferencesStore> buildAsync(Collection<String> hotKeys, ReadyCallback callback) {
+            AsyncBuild build = new AsyncBuild(this, hotKeys, callback);
+            build.start();
+            return build.ready;
+        }
+
+        private Builder copy() {
+            Builder copy = new Builder(context);
+            copy.prefsName = prefsName;
+            copy.sharedPreferences = sharedPreferences;
+            copy.multiProcess = multiProcess;
+            copy.password = password;
+            copy.textCodec = textCodec;
+            copy.legacyFallback = legacyFallback;
+            copy.hashedKeyNames = hashedKeyNames;
+            copy.authenticatedValues = authenticatedValues;
+            copy.cacheEnabled = cacheEnabled;
+            copy.snapshotEnabled = snapshotEnabled;
+            copy.writeBehindEnabled = writeBehindEnabled;
+            copy.writeBehindWindow = writeBehindWindow;
+            copy.debug = debug;
+            copy.metrics = metrics;
+            copy.blobDirectory = blobDirectory;
+            copy.blobThreshold = blobThreshold;
+            copy.compressionThreshold = compressionThreshold;
+            copy.previousPassword = previousPassword;
+            return copy;
+        }
+
+        /**
+         * Open the backing store and create the store. The backing store is loaded on the calling thread.
+         *
+         * @return The new store
+         */
+        public NPreferencesStore build() {
+            SharedPreferences preferences = sharedPreferences;
+            File blobs = blobDirectory;
+            if (preferences == null) {
+                if (context == null) throw new IllegalStateException("a Context or SharedPreferences is required");
+                preferences = TextUtils.isEmpty(prefsName) ?
+                        PreferenceManager.getDefaultSharedPreferences(context) :
+                        context.getSharedPreferences(prefsName, 0);
+                String fileName = TextUtils.isEmpty(prefsName) ? "default" : prefsName;
+                if (multiProcess) {
+                    LogPreferences log = LogPreferences.get(context, fileName, true);
+                    if (log == null) throw new IllegalStateException("unable to open the shared log of " + fileName);
+                    if (!log.adopt(preferences)) Log.e(TAG, "unable to move the entries of " + fileName + " into its shared log");
+                    preferences = log;
+                }
+                if (blobs == null) {
+                    blobs = new File(new File(context.getFilesDir(), BLOB_DIRECTORY), fileName);
+                }
+            }
+            String cryptoKey = password;
+            if (TextUtils.isEmpty(cryptoKey)) {
+                if (context == null) throw new IllegalStateException("a Context or password is required");
+                cryptoKey = context.getPackageName();
+            }
+            return new NPreferencesStore(this, preferences, cryptoKey, blobs);
+        }
+    }
+}
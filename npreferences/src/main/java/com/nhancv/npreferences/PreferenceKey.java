@@ -0,0 +1,27 @@
+package com.nhancv.npreferences;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Names a preference declared in a {@link TypedPreferences} interface and gives its default value.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface PreferenceKey {
+
+    /**
+     * @return Name of the preference, the name of the method without a "get" or "is" prefix if empty
+     */
+    String value() default "";
+
+    /**
+     * @return Default value of the preference, for example "5", "2.5" or "true", or the text itself for a String. If empty, the zero value of the
+     * type, or null for a String.
+     */
+    String defaultValue() default "";
+}
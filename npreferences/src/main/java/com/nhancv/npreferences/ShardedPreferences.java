@@ -0,0 +1,259 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link SharedPreferences} spreading its entries over several backing stores.
+ * <p>
+ * A stable hash of the key picks the shard of every entry, so a commit only rewrites the shard holding the changed keys. A shard is created, and so
+ * loaded from disk, the first time one of its keys is accessed. {@link #getAll()}, {@link Editor#clear()} and listener registration fan out to every
+ * shard. Entries written to a single file before switching to sharding are not moved.
+ */
+public class ShardedPreferences implements SharedPreferences {
+
+    /**
+     * Creates the store backing a shard.
+     */
+    public interface Factory {
+
+        /**
+         * @param shard - Index of the shard, between 0 and the shard count
+         * @return The store for the shard
+         */
+        SharedPreferences create(int shard);
+    }
+
+    private final AtomicReferenceArray<SharedPreferences> shards;
+    private final Factory factory;
+    //held weakly, like the platform implementation does, so a listener that is never unregistered does not leak
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+    private final OnSharedPreferenceChangeListener forwarder = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            Set<OnSharedPreferenceChangeListener> current;
+            synchronized (listeners) {
+                if (listeners.isEmpty()) return;
+                current = new HashSet<>(listeners.keySet());
+            }
+            for (OnSharedPreferenceChangeListener listener : current) {
+                listener.onSharedPreferenceChanged(ShardedPreferences.this, key);
+            }
+        }
+    };
+
+    /**
+     * @param shardCount - Number of backing stores, must not change once data has been written
+     * @param factory    - Creates the store of a shard on first access
+     */
+    public ShardedPreferences(int shardCount, Factory factory) {
+        if (shardCount < 1) throw new IllegalArgumentException("shardCount < 1");
+        this.shards = new AtomicReferenceArray<>(shardCount);
+        this.factory = factory;
+    }
+
+    /**
+     * Shards backed by {@link Context#getSharedPreferences(String, int)} files named prefsName_0 to prefsName_(shardCount - 1).
+     *
+     * @param context    - Context used to open the files
+     * @param prefsName  - Base name of the files
+     * @param shardCount - Number of files, must not change once data has been written
+     * @return The sharded preferences
+     */
+    public static ShardedPreferences get(final Context context, final String prefsName, int shardCount) {
+        return new ShardedPreferences(shardCount, new Factory() {
+            @Override
+            public SharedPreferences create(int shard) {
+                return context.getSharedPreferences(prefsName + "_" + shard, 0);
+            }
+        });
+    }
+
+    /**
+     * @param key - The key of an entry
+     * @return The index of the shard holding the key
+     */
+    int shardOf(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length();
+    }
+
+    private SharedPreferences shard(int index) {
+        SharedPreferences shard = shards.get(index);
+        if (shard == null) {
+            synchronized (shards) {
+                shard = shards.get(index);
+                if (shard == null) {
+                    shard = factory.create(index);
+                    shard.registerOnSharedPreferenceChangeListener(forwarder);
+                    shards.set(index, shard);
+                }
+            }
+        }
+        return shard;
+    }
+
+    private SharedPreferences shardFor(String key) {
+        return shard(shardOf(key));
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>();
+        for (int i = 0; i < shards.length(); i++) {
+            all.putAll(shard(i).getAll());
+        }
+        return all;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return shardFor(key).getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return shardFor(key).getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return shardFor(key).getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return shardFor(key).getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return shardFor(key).getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return shardFor(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return shardFor(key).contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new ShardedEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, this);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Editor holding one editor per touched shard, each shard is committed on its own.
+     */
+    private final class ShardedEditor implements Editor {
+
+        private final Editor[] editors = new Editor[shards.length()];
+
+        private synchronized Editor editor(int index) {
+            Editor editor = editors[index];
+            if (editor == null) {
+                editor = shard(index).edit();
+                editors[index] = editor;
+            }
+            return editor;
+        }
+
+        private Editor editorFor(String key) {
+            return editor(shardOf(key));
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            editorFor(key).putString(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            editorFor(key).putStringSet(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            editorFor(key).putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            editorFor(key).putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            editorFor(key).putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            editorFor(key).putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            editorFor(key).remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            for (int i = 0; i < editors.length; i++) {
+                editor(i).clear();
+            }
+            return this;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            boolean result = true;
+            for (int i = 0; i < editors.length; i++) {
+                if (editors[i] == null) continue;
+                result &= editors[i].commit();
+                editors[i] = null;
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized void apply() {
+            for (int i = 0; i < editors.length; i++) {
+                if (editors[i] == null) continue;
+                editors[i].apply();
+                editors[i] = null;
+            }
+        }
+    }
+}
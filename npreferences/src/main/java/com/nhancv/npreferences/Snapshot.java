@@ -0,0 +1,95 @@
+package com.nhancv.npreferences;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable map of plain keys to decoded values, read without locking once published.
+ * <p>
+ * Entries are spread over a fixed number of buckets, each an immutable map. {@link #with(Map)} copies only the buckets holding changed keys and shares
+ * the others with the previous snapshot, so a write to a large store does not copy every entry.
+ */
+final class Snapshot {
+
+    private static final int BUCKETS = 32;
+    private static final Map<String, Object> EMPTY_BUCKET = Collections.emptyMap();
+
+    static final Snapshot EMPTY = new Snapshot(emptyBuckets(), 0);
+
+    private final Map<String, Object>[] buckets;
+    private final int size;
+
+    private Snapshot(Map<String, Object>[] buckets, int size) {
+        this.buckets = buckets;
+        this.size = size;
+    }
+
+    /**
+     * @param values - The plain keys and decoded values
+     * @return A snapshot holding a copy of the values
+     */
+    static Snapshot of(Map<String, Object> values) {
+        return EMPTY.with(values);
+    }
+
+    /**
+     * @param key - The plain name of the preference
+     * @return The decoded value, or null if the key does not exist
+     */
+    Object get(String key) {
+        return buckets[bucketOf(key)].get(key);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param changes - The plain keys and their new decoded values, null marks a removal
+     * @return A new snapshot with the changes applied, sharing the untouched buckets with this one
+     */
+    Snapshot with(Map<String, Object> changes) {
+        if (changes.isEmpty()) return this;
+        Map<String, Object>[] copy = buckets.clone();
+        boolean[] copied = new boolean[BUCKETS];
+        int newSize = size;
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            int index = bucketOf(entry.getKey());
+            if (!copied[index]) {
+                copy[index] = new HashMap<>(copy[index]);
+                copied[index] = true;
+            }
+            Object previous = entry.getValue() == null ? copy[index].remove(entry.getKey()) : copy[index].put(entry.getKey(), entry.getValue());
+            if (previous == null && entry.getValue() != null) newSize++;
+            else if (previous != null && entry.getValue() == null) newSize--;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            if (copied[i]) copy[i] = copy[i].isEmpty() ? EMPTY_BUCKET : Collections.unmodifiableMap(copy[i]);
+        }
+        return new Snapshot(copy, newSize);
+    }
+
+    /**
+     * @param target - Receives every entry of the snapshot
+     */
+    void copyTo(Map<String, Object> target) {
+        for (Map<String, Object> bucket : buckets) {
+            target.putAll(bucket);
+        }
+    }
+
+    private static int bucketOf(String key) {
+        int hash = key.hashCode();
+        return (hash ^ hash >>> 16) & (BUCKETS - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] emptyBuckets() {
+        Map<String, Object>[] buckets = (Map<String, Object>[]) new Map<?, ?>[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = EMPTY_BUCKET;
+        }
+        return buckets;
+    }
+}
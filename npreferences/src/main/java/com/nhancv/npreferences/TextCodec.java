@@ -0,0 +1,252 @@
+package com.nhancv.npreferences;
+
+import java.util.Arrays;
+
+/**
+ * Converts cipher text to the text stored in the preferences and back in a single pass.
+ * <p>
+ * {@link #ESCAPED} is the original format: standard Base64 with '+', '/' and '=' replaced by x0P1Xx, x0P2Xx and x0P3Xx. {@link #URL_SAFE} writes
+ * unpadded URL-safe Base64 behind a '_' prefix, which never starts an escaped text, so {@link #decodeAny(String)} can read both. Either text may follow
+ * a one character marker written by {@link #encode(char, byte[], int, int)}, which {@link #decodeAny(String, int, byte[])} skips.
+ */
+public enum TextCodec {
+
+    ESCAPED {
+        @Override
+        String encode(char marker, byte[] data, int offset, int length) {
+            char[] out = buffer(1 + ((length + 2) / 3) * 4 * ESCAPE_LENGTH);
+            int pos = 0;
+            if (marker != NO_MARKER) out[pos++] = marker;
+            int end = offset + length;
+            int i = offset;
+            for (; i + 2 < end; i += 3) {
+                int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+                pos = putEscaped(out, pos, bits >>> 18);
+                pos = putEscaped(out, pos, bits >>> 12 & 0x3F);
+                pos = putEscaped(out, pos, bits >>> 6 & 0x3F);
+                pos = putEscaped(out, pos, bits & 0x3F);
+            }
+            int remaining = end - i;
+            if (remaining > 0) {
+                int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+                pos = putEscaped(out, pos, bits >>> 18);
+                pos = putEscaped(out, pos, bits >>> 12 & 0x3F);
+                pos = remaining == 2 ? putEscaped(out, pos, bits >>> 6 & 0x3F) : putEscape(out, pos, '3');
+                pos = putEscape(out, pos, '3');
+            }
+            return new String(out, 0, pos);
+        }
+    },
+
+    URL_SAFE {
+        @Override
+        String encode(char marker, byte[] data, int offset, int length) {
+            char[] out = buffer(2 + ((length + 2) / 3) * 4);
+            int pos = 0;
+            if (marker != NO_MARKER) out[pos++] = marker;
+            out[pos++] = URL_SAFE_PREFIX;
+            int end = offset + length;
+            int i = offset;
+            for (; i + 2 < end; i += 3) {
+                int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+                out[pos++] = URL_SAFE_ALPHABET[bits >>> 18];
+                out[pos++] = URL_SAFE_ALPHABET[bits >>> 12 & 0x3F];
+                out[pos++] = URL_SAFE_ALPHABET[bits >>> 6 & 0x3F];
+                out[pos++] = URL_SAFE_ALPHABET[bits & 0x3F];
+            }
+            int remaining = end - i;
+            if (remaining > 0) {
+                int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+                out[pos++] = URL_SAFE_ALPHABET[bits >>> 18];
+                out[pos++] = URL_SAFE_ALPHABET[bits >>> 12 & 0x3F];
+                if (remaining == 2) out[pos++] = URL_SAFE_ALPHABET[bits >>> 6 & 0x3F];
+            }
+            return new String(out, 0, pos);
+        }
+    };
+
+    static final char NO_MARKER = 0;
+    private static final char URL_SAFE_PREFIX = '_';
+    private static final String ESCAPE_START = "x0P";
+    private static final int ESCAPE_LENGTH = 6;
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] URL_SAFE_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int[] DECODE = new int[128];
+    private static final int PADDING = -2;
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < 64; i++) {
+            DECODE[ALPHABET[i]] = i;
+            DECODE[URL_SAFE_ALPHABET[i]] = i;
+        }
+        DECODE['='] = PADDING;
+    }
+
+    private static final ThreadLocal<char[]> charBuffer = new ThreadLocal<>();
+
+    /**
+     * Encode cipher text into stored text.
+     *
+     * @param data   - The cipher text
+     * @param offset - Start of the cipher text in data
+     * @param length - Number of bytes to encode
+     * @return The stored text
+     */
+    String encode(byte[] data, int offset, int length) {
+        return encode(NO_MARKER, data, offset, length);
+    }
+
+    /**
+     * Encode cipher text into stored text behind a marker telling the format of the cipher text.
+     *
+     * @param marker - A character that is neither '_' nor part of the Base64 alphabet, or {@link #NO_MARKER}
+     * @param data   - The cipher text
+     * @param offset - Start of the cipher text in data
+     * @param length - Number of bytes to encode
+     * @return The stored text
+     */
+    abstract String encode(char marker, byte[] data, int offset, int length);
+
+    String encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    /**
+     * @param text - The stored text
+     * @return The codec that wrote the text
+     */
+    static TextCodec of(String text) {
+        return text.length() > 0 && text.charAt(0) == URL_SAFE_PREFIX ? URL_SAFE : ESCAPED;
+    }
+
+    /**
+     * Decode stored text written by any codec.
+     *
+     * @param text - The stored text
+     * @return The cipher text
+     * @throws IllegalArgumentException if the text is not valid
+     */
+    static byte[] decodeAny(String text) {
+        boolean urlSafe = text.length() > 0 && text.charAt(0) == URL_SAFE_PREFIX;
+        byte[] out = new byte[decodedLength(text, urlSafe ? 1 : 0, urlSafe)];
+        decodeAny(text, out);
+        return out;
+    }
+
+    /**
+     * Decode stored text written by any codec into a caller supplied buffer.
+     *
+     * @param text - The stored text
+     * @param out  - Buffer for the cipher text, at least {@link #maxDecodedLength(String)} bytes
+     * @return The number of bytes written to out
+     * @throws IllegalArgumentException if the text is not valid
+     */
+    static int decodeAny(String text, byte[] out) {
+        return decodeAny(text, 0, out);
+    }
+
+    /**
+     * Decode stored text written by any codec, starting after a marker, into a caller supplied buffer.
+     *
+     * @param text - The stored text
+     * @param from - Index of the first character written by the codec
+     * @param out  - Buffer for the cipher text, at least {@link #maxDecodedLength(String)} bytes
+     * @return The number of bytes written to out
+     * @throws IllegalArgumentException if the text is not valid
+     */
+    static int decodeAny(String text, int from, byte[] out) {
+        int length = text.length();
+        boolean urlSafe = length > from && text.charAt(from) == URL_SAFE_PREFIX;
+        int start = urlSafe ? from + 1 : from;
+        int pos = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            int value;
+            if (!urlSafe && c == 'x' && isEscape(text, i)) {
+                char escaped = text.charAt(i + 3);
+                value = escaped == '1' ? 62 : escaped == '2' ? 63 : PADDING;
+                i += ESCAPE_LENGTH - 1;
+            } else {
+                value = c < 128 ? DECODE[c] : -1;
+            }
+            if (value == PADDING) break;
+            if (value < 0) throw new IllegalArgumentException("bad base-64");
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out[pos++] = (byte) (bits >> 16);
+                out[pos++] = (byte) (bits >> 8);
+                out[pos++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1) throw new IllegalArgumentException("bad base-64");
+        if (count == 2) {
+            out[pos++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            out[pos++] = (byte) (bits >> 10);
+            out[pos++] = (byte) (bits >> 2);
+        }
+        return pos;
+    }
+
+    /**
+     * @param text - The stored text
+     * @return An upper bound of the decoded length that does not need a pass over the text
+     */
+    static int maxDecodedLength(String text) {
+        return text.length() * 3 / 4 + 3;
+    }
+
+    private static int decodedLength(String text, int start, boolean urlSafe) {
+        int symbols = 0;
+        int length = text.length();
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            if (!urlSafe && c == 'x' && isEscape(text, i)) {
+                if (text.charAt(i + 3) == '3') break;
+                i += ESCAPE_LENGTH - 1;
+            } else if (c == '=') {
+                break;
+            }
+            symbols++;
+        }
+        return symbols * 3 / 4;
+    }
+
+    private static boolean isEscape(String text, int i) {
+        if (i + ESCAPE_LENGTH > text.length() || !text.startsWith(ESCAPE_START, i)) return false;
+        char code = text.charAt(i + 3);
+        return code >= '1' && code <= '3' && text.charAt(i + 4) == 'X' && text.charAt(i + 5) == 'x';
+    }
+
+    private static char[] buffer(int size) {
+        char[] buffer = charBuffer.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new char[Math.max(size, 256)];
+            charBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static int putEscaped(char[] out, int pos, int index) {
+        char c = ALPHABET[index];
+        if (c == '+') return putEscape(out, pos, '1');
+        if (c == '/') return putEscape(out, pos, '2');
+        out[pos] = c;
+        return pos + 1;
+    }
+
+    private static int putEscape(char[] out, int pos, char code) {
+        out[pos] = 'x';
+        out[pos + 1] = '0';
+        out[pos + 2] = 'P';
+        out[pos + 3] = code;
+        out[pos + 4] = 'X';
+        out[pos + 5] = 'x';
+        return pos + ESCAPE_LENGTH;
+    }
+}
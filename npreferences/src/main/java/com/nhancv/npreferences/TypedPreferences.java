@@ -0,0 +1,39 @@
+package com.nhancv.npreferences;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the preferences of an app as the methods of an interface, for the npreferences-compiler annotation processor to generate typed
+ * accessors for.
+ * <p>
+ * Every method without parameters declares a preference, its return type is one of int, long, float, boolean or String and it is named after the
+ * preference unless {@link PreferenceKey} says otherwise. The generated class implements the interface over an {@link NPreferencesStore}: it keeps a
+ * {@link NPreferencesStore.Key} per preference, so reads neither derive nor look up names, and adds a setter per preference and a
+ * {@code loadAll()} that reads them all in one pass.
+ * <pre>
+ * &#64;TypedPreferences
+ * public interface Settings {
+ *     &#64;PreferenceKey(defaultValue = "5")
+ *     int volume();
+ *
+ *     &#64;PreferenceKey("dark_mode")
+ *     boolean isDarkMode();
+ * }
+ *
+ * Settings settings = new SettingsPreferences(store);
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface TypedPreferences {
+
+    /**
+     * @return Simple name of the generated class, the name of the interface followed by "Preferences" if empty
+     */
+    String className() default "";
+}
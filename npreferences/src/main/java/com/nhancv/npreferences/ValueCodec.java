@@ -0,0 +1,447 @@
+package com.nhancv.npreferences;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary format of the plain values before they are encrypted.
+ * <p>
+ * A typed value starts with {@link #MAGIC}, followed by one byte holding the format version in the high nibble and the type tag in the low nibble, and
+ * then a fixed-width big-endian payload (UTF-8 bytes for strings). 0xFF never appears in UTF-8 text, so values written by older versions as
+ * String.valueOf(value) are still recognized and parsed as text. A {@link #TYPE_DEFLATED} value wraps another encoded value and is inflated by the store
+ * right after decryption, so the decode methods never see it. Values stored under a hashed key name are followed by their plain key, which the store
+ * checks and strips before decoding.
+ */
+final class ValueCodec {
+
+    static final int TYPE_STRING = 0;
+    static final int TYPE_INT = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_FLOAT = 3;
+    static final int TYPE_BOOLEAN = 4;
+    static final int TYPE_BYTES = 5;
+    //a value kept in a side file of the BlobStore: the plain length, then the UTF-8 file name
+    static final int TYPE_BLOB = 6;
+    //another encoded value compressed with Deflater: its length, then the zlib stream
+    static final int TYPE_DEFLATED = 7;
+
+    //largest value a compressed value inflates to, a larger length in its header is corrupt rather than allocated
+    static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte MAGIC = (byte) 0xFF;
+    //zlib does not expand its input more than 1032 times
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    //payload size per type tag, -1 for variable length
+    private static final int[] PAYLOAD_SIZES = {-1, 4, 8, 4, 1, -1, -1, -1};
+    private static final int TYPE_TEXT = -1;
+    private static final int TYPE_INVALID = -2;
+
+    private ValueCodec() {
+    }
+
+    static byte[] encodeString(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        byte[] result = header(TYPE_STRING, bytes.length);
+        System.arraycopy(bytes, 0, result, HEADER_SIZE, bytes.length);
+        return result;
+    }
+
+    static byte[] encodeInt(int value) {
+        byte[] result = header(TYPE_INT, 4);
+        putInt(result, HEADER_SIZE, value);
+        return result;
+    }
+
+    static byte[] encodeLong(long value) {
+        byte[] result = header(TYPE_LONG, 8);
+        putInt(result, HEADER_SIZE, (int) (value >>> 32));
+        putInt(result, HEADER_SIZE + 4, (int) value);
+        return result;
+    }
+
+    static byte[] encodeFloat(float value) {
+        byte[] result = header(TYPE_FLOAT, 4);
+        putInt(result, HEADER_SIZE, Float.floatToIntBits(value));
+        return result;
+    }
+
+    static byte[] encodeBoolean(boolean value) {
+        byte[] result = header(TYPE_BOOLEAN, 1);
+        result[HEADER_SIZE] = (byte) (value ? 1 : 0);
+        return result;
+    }
+
+    static byte[] encodeBytes(byte[] value, int offset, int length) {
+        byte[] result = header(TYPE_BYTES, length);
+        System.arraycopy(value, offset, result, HEADER_SIZE, length);
+        return result;
+    }
+
+    /**
+     * @param name   - The committed name of the side file
+     * @param length - The plain length of the value
+     * @return The reference stored in the preferences in place of the value
+     */
+    static byte[] encodeBlob(String name, long length) {
+        byte[] bytes = name.getBytes(UTF_8);
+        byte[] result = header(TYPE_BLOB, 8 + bytes.length);
+        putInt(result, HEADER_SIZE, (int) (length >>> 32));
+        putInt(result, HEADER_SIZE + 4, (int) length);
+        System.arraycopy(bytes, 0, result, HEADER_SIZE + 8, bytes.length);
+        return result;
+    }
+
+    /**
+     * Compress an encoded value, unless that does not make it smaller.
+     *
+     * @param value    - The value encoded by one of the encode methods
+     * @param deflater - The Deflater to use, it is reset first
+     * @param target   - Receives the compressed value, at least as long as the value
+     * @return The length of the compressed value, or -1 if it would not be smaller than the value
+     */
+    static int deflate(byte[] value, Deflater deflater, byte[] target) {
+        int limit = Math.min(target.length, value.length);
+        if (limit <= HEADER_SIZE + 4) return -1;
+        target[0] = MAGIC;
+        target[1] = (byte) (VERSION << 4 | TYPE_DEFLATED);
+        putInt(target, HEADER_SIZE, value.length);
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        int length = HEADER_SIZE + 4;
+        while (!deflater.finished()) {
+            if (length == limit) return -1;
+            length += deflater.deflate(target, length, limit - length);
+        }
+        return length < value.length ? length : -1;
+    }
+
+    /**
+     * @param value  - The decrypted value
+     * @param length - Length of the value in the buffer
+     * @return The length of the value once inflated, or -1 if it is not compressed
+     */
+    static int inflatedLength(byte[] value, int length) {
+        if (typeOf(value, length) != TYPE_DEFLATED || length < HEADER_SIZE + 4) return -1;
+        return Math.max(-1, getInt(value, HEADER_SIZE));
+    }
+
+    /**
+     * @param length - Length of a compressed value
+     * @return The largest length the value can inflate to: what its zlib stream can hold, and at most {@link #MAX_INFLATED_LENGTH}
+     */
+    static int maxInflatedLength(int length) {
+        return (int) Math.min(MAX_INFLATED_LENGTH, (long) Math.max(0, length - HEADER_SIZE - 4) * MAX_DEFLATE_RATIO);
+    }
+
+    /**
+     * @param value    - A value for which {@link #inflatedLength(byte[], int)} is not -1
+     * @param length   - Length of the value in the buffer
+     * @param inflater - The Inflater to use, it is reset first
+     * @param target   - Receives the encoded value, at least {@link #inflatedLength(byte[], int)} long
+     * @return The length of the encoded value
+     * @throws DataFormatException if the value is corrupt
+     */
+    static int inflate(byte[] value, int length, Inflater inflater, byte[] target) throws DataFormatException {
+        int size = getInt(value, HEADER_SIZE);
+        inflater.reset();
+        inflater.setInput(value, HEADER_SIZE + 4, length - HEADER_SIZE - 4);
+        int count = 0;
+        while (count < size) {
+            int inflated = inflater.inflate(target, count, size - count);
+            if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+            count += inflated;
+        }
+        if (count != size) throw new DataFormatException("expected " + size + " bytes, got " + count);
+        return count;
+    }
+
+    /**
+     * Append the plain key to an encoded value stored under a hashed name, see {@link KeyNames}: the UTF-8 key, then its length in two bytes.
+     *
+     * @param value - The value encoded by one of the encode methods
+     * @param key   - The plain name of the preference
+     * @return The value followed by the key
+     * @throws IllegalArgumentException if the key is longer than 65535 bytes
+     */
+    static byte[] appendKey(byte[] value, String key) {
+        byte[] bytes = key.getBytes(UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("key too long: " + key);
+        byte[] result = Arrays.copyOf(value, value.length + bytes.length + 2);
+        System.arraycopy(bytes, 0, result, value.length, bytes.length);
+        result[result.length - 2] = (byte) (bytes.length >>> 8);
+        result[result.length - 1] = (byte) bytes.length;
+        return result;
+    }
+
+    /**
+     * @param value  - A decrypted value written by {@link #appendKey(byte[], String)}
+     * @param length - Length of the value in the buffer
+     * @return The length of the encoded value in front of the key, or -1 if the value does not end with a key
+     */
+    static int keyStart(byte[] value, int length) {
+        if (length < 2) return -1;
+        int start = length - 2 - ((value[length - 2] & 0xFF) << 8 | value[length - 1] & 0xFF);
+        return start < 0 ? -1 : start;
+    }
+
+    /**
+     * @param value  - A decrypted value written by {@link #appendKey(byte[], String)}
+     * @param start  - The value returned by {@link #keyStart(byte[], int)}
+     * @param length - Length of the value in the buffer
+     * @return The plain key
+     */
+    static String key(byte[] value, int start, int length) {
+        return new String(value, start, length - 2 - start, UTF_8);
+    }
+
+    /**
+     * Compare the key at the end of a value without decoding it, for the common case of an ASCII key.
+     *
+     * @param value  - A decrypted value written by {@link #appendKey(byte[], String)}
+     * @param start  - The value returned by {@link #keyStart(byte[], int)}
+     * @param length - Length of the value in the buffer
+     * @param key    - The expected plain key
+     * @return Returns true if the value ends with the key.
+     */
+    static boolean hasKey(byte[] value, int start, int length, String key) {
+        int size = length - 2 - start;
+        int count = key.length();
+        if (size == count) {
+            int i = 0;
+            while (i < count && key.charAt(i) < 0x80 && value[start + i] == key.charAt(i)) {
+                i++;
+            }
+            if (i == count) return true;
+            if (key.charAt(i) < 0x80) return false;
+        } else if (size < count) {
+            return false;
+        }
+        return key(value, start, length).equals(key);
+    }
+
+    /**
+     * @param value  - The decrypted value
+     * @param length - Length of the value in the buffer
+     * @return The type tag, -1 if the value was written as plain text by an older version, or -2 if it is corrupt
+     */
+    static int typeOf(byte[] value, int length) {
+        if (length == 0 || value[0] != MAGIC) return TYPE_TEXT;
+        if (length < HEADER_SIZE || (value[1] & 0xFF) >>> 4 != VERSION) return TYPE_INVALID;
+        int type = value[1] & 0x0F;
+        if (type >= PAYLOAD_SIZES.length) return TYPE_INVALID;
+        int size = PAYLOAD_SIZES[type];
+        return size < 0 || length - HEADER_SIZE == size ? type : TYPE_INVALID;
+    }
+
+    static String decodeString(byte[] value, int length, String defaultValue) {
+        switch (typeOf(value, length)) {
+            case TYPE_STRING:
+                return new String(value, HEADER_SIZE, length - HEADER_SIZE, UTF_8);
+            case TYPE_INT:
+                return String.valueOf(getInt(value, HEADER_SIZE));
+            case TYPE_LONG:
+                return String.valueOf(getLong(value));
+            case TYPE_FLOAT:
+                return String.valueOf(Float.intBitsToFloat(getInt(value, HEADER_SIZE)));
+            case TYPE_BOOLEAN:
+                return String.valueOf(value[HEADER_SIZE] != 0);
+            case TYPE_TEXT:
+                //older versions returned the default for an empty value
+                return length == 0 ? defaultValue : new String(value, 0, length, UTF_8);
+            default:
+                return defaultValue;
+        }
+    }
+
+    static int decodeInt(byte[] value, int length, int defaultValue) {
+        if (typeOf(value, length) == TYPE_INT) return getInt(value, HEADER_SIZE);
+        String text = decodeString(value, length, null);
+        if (text == null) return defaultValue;
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static long decodeLong(byte[] value, int length, long defaultValue) {
+        if (typeOf(value, length) == TYPE_LONG) return getLong(value);
+        String text = decodeString(value, length, null);
+        if (text == null) return defaultValue;
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static float decodeFloat(byte[] value, int length, float defaultValue) {
+        if (typeOf(value, length) == TYPE_FLOAT) return Float.intBitsToFloat(getInt(value, HEADER_SIZE));
+        String text = decodeString(value, length, null);
+        if (text == null) return defaultValue;
+        try {
+            return Float.parseFloat(text);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static boolean decodeBoolean(byte[] value, int length, boolean defaultValue) {
+        if (typeOf(value, length) == TYPE_BOOLEAN) return value[HEADER_SIZE] != 0;
+        String text = decodeString(value, length, null);
+        return text == null ? defaultValue : Boolean.parseBoolean(text);
+    }
+
+    /**
+     * @param value  - The decrypted value
+     * @param length - Length of the value in the buffer
+     * @return A copy of the bytes written by {@link #encodeBytes(byte[], int, int)}, or null if the value has another type
+     */
+    static byte[] decodeBytes(byte[] value, int length) {
+        return typeOf(value, length) == TYPE_BYTES ? Arrays.copyOfRange(value, HEADER_SIZE, length) : null;
+    }
+
+    /**
+     * @param value  - The decrypted value
+     * @param length - Length of the value in the buffer
+     * @return The file name written by {@link #encodeBlob(String, long)}, or null if the value has another type
+     */
+    static String blobName(byte[] value, int length) {
+        if (typeOf(value, length) != TYPE_BLOB || length < HEADER_SIZE + 8) return null;
+        return new String(value, HEADER_SIZE + 8, length - HEADER_SIZE - 8, UTF_8);
+    }
+
+    /**
+     * @param value - A value for which {@link #blobName(byte[], int)} is not null
+     * @return The plain length of the value in the side file
+     */
+    static long blobLength(byte[] value) {
+        return getLong(value);
+    }
+
+    /**
+     * @param value  - The decrypted value
+     * @param length - Length of the value in the buffer
+     * @return Returns true if the value can be stored as it is: text written by an older version, or a valid value that is neither compressed nor kept in
+     * a side file.
+     */
+    static boolean isInline(byte[] value, int length) {
+        int type = typeOf(value, length);
+        return type != TYPE_INVALID && type != TYPE_BLOB && type != TYPE_DEFLATED;
+    }
+
+    /**
+     * Decode a value into the boxed type of the given sample, used by the cached read path.
+     *
+     * @param value        - The decrypted value
+     * @param length       - Length of the value in the buffer
+     * @param type         - A sample of the requested type
+     * @param defaultValue - Value to return if the value can not be decoded as the requested type
+     * @return The decoded value or defaultValue
+     */
+    static Object decode(byte[] value, int length, Object type, Object defaultValue) {
+        if (type instanceof String) {
+            String result = decodeString(value, length, null);
+            return result == null ? defaultValue : result;
+        } else if (type instanceof Integer) {
+            return typeOf(value, length) == TYPE_INT ? decodeInt(value, length, 0) : parsed(value, length, type, defaultValue);
+        } else if (type instanceof Long) {
+            return typeOf(value, length) == TYPE_LONG ? decodeLong(value, length, 0L) : parsed(value, length, type, defaultValue);
+        } else if (type instanceof Float) {
+            return typeOf(value, length) == TYPE_FLOAT ? decodeFloat(value, length, 0f) : parsed(value, length, type, defaultValue);
+        } else if (type instanceof Boolean) {
+            return typeOf(value, length) == TYPE_BOOLEAN ? decodeBoolean(value, length, false) : parsed(value, length, type, defaultValue);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Decode a value into the boxed type it was written with. Values written as text by older versions are returned as String.
+     *
+     * @param value  - The decrypted value
+     * @param length - Length of the value in the buffer
+     * @return The decoded value, or null if it is empty, corrupt or kept in a side file
+     */
+    static Object decodeObject(byte[] value, int length) {
+        switch (typeOf(value, length)) {
+            case TYPE_INT:
+                return decodeInt(value, length, 0);
+            case TYPE_LONG:
+                return decodeLong(value, length, 0L);
+            case TYPE_FLOAT:
+                return decodeFloat(value, length, 0f);
+            case TYPE_BOOLEAN:
+                return decodeBoolean(value, length, false);
+            case TYPE_BYTES:
+                return decodeBytes(value, length);
+            default:
+                return decodeString(value, length, null);
+        }
+    }
+
+    /**
+     * Convert a value returned by {@link #decodeObject(byte[], int)} into the boxed type of the given sample, with the same widening and parsing rules
+     * as the typed decode methods.
+     *
+     * @param value        - The decoded value, or null if it does not exist
+     * @param type         - A sample of the requested type
+     * @param defaultValue - Value to return if the value is null or can not be converted
+     * @return The converted value or defaultValue
+     */
+    static Object convert(Object value, Object type, Object defaultValue) {
+        if (value == null) return defaultValue;
+        if (value.getClass() == type.getClass()) return value;
+        if (value instanceof byte[]) return defaultValue;
+        return parsed(value.toString(), type, defaultValue);
+    }
+
+    private static Object parsed(byte[] value, int length, Object type, Object defaultValue) {
+        String text = decodeString(value, length, null);
+        if (text == null) return defaultValue;
+        return parsed(text, type, defaultValue);
+    }
+
+    private static Object parsed(String text, Object type, Object defaultValue) {
+        if (type instanceof String) return text;
+        try {
+            if (type instanceof Integer) return Integer.parseInt(text);
+            if (type instanceof Long) return Long.parseLong(text);
+            if (type instanceof Float) return Float.parseFloat(text);
+            return Boolean.parseBoolean(text);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static byte[] header(int type, int payloadSize) {
+        byte[] result = new byte[HEADER_SIZE + payloadSize];
+        result[0] = MAGIC;
+        result[1] = (byte) (VERSION << 4 | type);
+        return result;
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] source, int offset) {
+        return (source[offset] & 0xFF) << 24
+                | (source[offset + 1] & 0xFF) << 16
+                | (source[offset + 2] & 0xFF) << 8
+                | (source[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] source) {
+        return (long) getInt(source, HEADER_SIZE) << 32 | getInt(source, HEADER_SIZE + 4) & 0xFFFFFFFFL;
+    }
+}
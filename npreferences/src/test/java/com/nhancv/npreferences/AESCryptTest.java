@@ -0,0 +1,104 @@
+package com.nhancv.npreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * The key cache of {@link AESCrypt}: a cached password is not hashed again, and the least recently used key is dropped once the cache is full.
+ */
+public class AESCryptTest {
+
+    private static final int MAX_CACHED_KEYS = 8;
+
+    private CountingDigest digest;
+
+    @Before
+    public void setUp() throws Exception {
+        AESCrypt.clearKeyCache();
+        digest = new CountingDigest();
+        AESCrypt.digestCache.set(digest);
+    }
+
+    @After
+    public void tearDown() {
+        AESCrypt.digestCache.remove();
+    }
+
+    @Test
+    public void keyIsTheDigestOfThePassword() throws Exception {
+        SecretKeySpec key = AESCrypt.getKey("password");
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest("password".getBytes("UTF-8")), key.getEncoded());
+        assertNotEquals(key, AESCrypt.getKey("another password"));
+    }
+
+    @Test
+    public void cacheHitDoesNotHash() throws Exception {
+        SecretKeySpec key = AESCrypt.getKey("password");
+        assertEquals(1, digest.digests);
+        for (int i = 0; i < 100; i++) {
+            assertSame(key, AESCrypt.getKey("password"));
+        }
+        assertEquals(1, digest.digests);
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsedKey() throws Exception {
+        SecretKeySpec used = AESCrypt.getKey("used");
+        SecretKeySpec unused = AESCrypt.getKey("unused");
+        for (int i = 0; i < MAX_CACHED_KEYS - 2; i++) {
+            AESCrypt.getKey("password" + i);
+        }
+        assertSame(used, AESCrypt.getKey("used"));
+        AESCrypt.getKey("one more");
+        int digests = digest.digests;
+
+        assertSame(used, AESCrypt.getKey("used"));
+        assertEquals(digests, digest.digests);
+        SecretKeySpec derivedAgain = AESCrypt.getKey("unused");
+        assertEquals(digests + 1, digest.digests);
+        assertNotSame(unused, derivedAgain);
+        assertEquals(unused, derivedAgain);
+    }
+
+    /**
+     * SHA-256 counting the hashes it computes.
+     */
+    private static final class CountingDigest extends MessageDigest {
+
+        private final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        private int digests;
+
+        CountingDigest() throws NoSuchAlgorithmException {
+            super("SHA-256");
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            sha256.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            sha256.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            digests++;
+            return sha256.digest();
+        }
+
+        @Override
+        protected void engineReset() {
+            sha256.reset();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Values sealed with AES-GCM, see {@link NPreferencesStore.Builder#authenticatedValues(boolean)}, must not read once changed or moved under the name
+ * of another key.
+ */
+public class AuthenticatedValuesTest {
+
+    private static final String NAME = "sealed";
+    private static final String PASSWORD = "password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BenchmarkContext context;
+    private SharedPreferences backing;
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        context = new BenchmarkContext(folder.getRoot());
+        backing = context.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+    }
+
+    @Test
+    public void sealsValues() {
+        NPreferencesStore store = store();
+        store.edit().putInt("int", 7).putString("string", "value").commit();
+
+        for (Object value : backing.getAll().values()) {
+            assertTrue(value.toString().startsWith("~"));
+        }
+        assertEquals(7, store().getInt("int", 0));
+        assertEquals("value", store().getString("string", null));
+    }
+
+    @Test
+    public void rejectsTamperedValue() {
+        NPreferencesStore store = store();
+        String name = storedName(store, "key", "value");
+        String sealed = backing.getString(name, null);
+        char[] chars = sealed.toCharArray();
+        int middle = chars.length / 2;
+        chars[middle] = chars[middle] == 'A' ? 'B' : 'A';
+        backing.edit().putString(name, new String(chars)).commit();
+
+        NPreferencesStore reopened = store();
+        assertNull(reopened.getString("key", null));
+        assertFalse(reopened.getAll().containsKey("key"));
+    }
+
+    @Test
+    public void rejectsValueMovedUnderAnotherName() {
+        NPreferencesStore store = store();
+        String first = storedName(store, "first", "1");
+        String second = storedName(store, "second", "2");
+        backing.edit().putString(second, backing.getString(first, null)).commit();
+
+        NPreferencesStore reopened = store();
+        assertEquals("1", reopened.getString("first", null));
+        assertNull(reopened.getString("second", null));
+        assertFalse(reopened.getAll().containsKey("second"));
+    }
+
+    private NPreferencesStore store() {
+        return new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD).authenticatedValues(true).build();
+    }
+
+    /**
+     * Write a value and find the name it is stored under.
+     */
+    private String storedName(NPreferencesStore store, String key, String value) {
+        Set<String> before = new HashSet<>(backing.getAll().keySet());
+        assertTrue(store.edit().putString(key, value).commit());
+        Set<String> names = new HashSet<>(backing.getAll().keySet());
+        names.removeAll(before);
+        assertEquals(1, names.size());
+        return names.iterator().next();
+    }
+}
@@ -0,0 +1,145 @@
+package com.nhancv.npreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * The framed backup format: a backup reads back as written, and a truncated, reordered or foreign backup fails instead of returning part of it.
+ */
+public class BackupTest {
+
+    private static final int MAGIC_SIZE = 4;
+    private static final int LENGTH_SIZE = 4;
+
+    private SecretKeySpec key;
+    private byte[] blob;
+    private byte[] backup;
+
+    @Before
+    public void setUp() throws Exception {
+        key = AESCrypt.getKey("backup password");
+        blob = new byte[20000];
+        new Random(1).nextBytes(blob);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Backup.Writer writer = new Backup.Writer(out, key);
+        byte[] first = ValueCodec.encodeInt(1);
+        writer.entry("first", first, first.length);
+        byte[] second = ValueCodec.encodeString("second value");
+        writer.entry("second", second, second.length);
+        writer.stream("blob", new ByteArrayInputStream(blob));
+        writer.finish(3);
+        backup = out.toByteArray();
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        Backup.Reader reader = new Backup.Reader(new ByteArrayInputStream(backup), key);
+        assertEquals(Backup.TYPE_ENTRY, reader.next());
+        assertEquals("first", reader.key());
+        assertArrayEquals(ValueCodec.encodeInt(1), reader.value());
+        assertEquals(Backup.TYPE_ENTRY, reader.next());
+        assertEquals("second", reader.key());
+        assertArrayEquals(ValueCodec.encodeString("second value"), reader.value());
+        assertEquals(Backup.TYPE_STREAM, reader.next());
+        assertEquals("blob", reader.key());
+        assertArrayEquals(blob, readFully(reader.chunks()));
+        assertEquals(Backup.TYPE_END, reader.next());
+        assertEquals(3, reader.count());
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsBackupWithoutEnd() throws Exception {
+        List<byte[]> frames = frames(backup);
+        readAll(join(frames.subList(0, frames.size() - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFrame() throws Exception {
+        readAll(Arrays.copyOf(backup, backup.length - 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsReorderedFrames() throws Exception {
+        List<byte[]> frames = frames(backup);
+        byte[] first = frames.get(0);
+        frames.set(0, frames.get(1));
+        frames.set(1, first);
+        readAll(join(frames));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDroppedFrame() throws Exception {
+        List<byte[]> frames = frames(backup);
+        frames.remove(1);
+        readAll(join(frames));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongPassword() throws Exception {
+        new Backup.Reader(new ByteArrayInputStream(backup), AESCrypt.getKey("another password")).next();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws Exception {
+        new Backup.Reader(new ByteArrayInputStream("not a backup".getBytes("UTF-8")), key);
+    }
+
+    /**
+     * Read every frame, the way {@link NPreferencesStore#importFrom(InputStream, String)} does.
+     */
+    private void readAll(byte[] data) throws IOException {
+        Backup.Reader reader = new Backup.Reader(new ByteArrayInputStream(data), key);
+        int type;
+        while ((type = reader.next()) != Backup.TYPE_END) {
+            reader.key();
+            if (type == Backup.TYPE_STREAM) readFully(reader.chunks());
+        }
+    }
+
+    /**
+     * @return The frames of a backup, each with its length
+     */
+    private static List<byte[]> frames(byte[] data) {
+        List<byte[]> frames = new ArrayList<>();
+        int position = MAGIC_SIZE;
+        while (position < data.length) {
+            int length = (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16 | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+            frames.add(Arrays.copyOfRange(data, position, position + LENGTH_SIZE + length));
+            position += LENGTH_SIZE + length;
+        }
+        return frames;
+    }
+
+    private byte[] join(List<byte[]> frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(backup, 0, MAGIC_SIZE);
+        for (byte[] frame : frames) {
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
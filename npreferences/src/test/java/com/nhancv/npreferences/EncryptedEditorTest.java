@@ -0,0 +1,74 @@
+package com.nhancv.npreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The staged changes of an editor: none is visible before the commit, and a clear is done before the puts of the same editor whenever it was called.
+ */
+public class EncryptedEditorTest {
+
+    private static final String NAME = "edited";
+    private static final String PASSWORD = "password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NPreferencesStore store;
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        store = new NPreferencesStore.Builder(new BenchmarkContext(folder.getRoot())).name(NAME).password(PASSWORD).build();
+        assertTrue(store.edit().putInt("old", 1).commit());
+    }
+
+    @Test
+    public void changesAreStagedUntilCommitted() {
+        NPreferences.EncryptedEditor editor = store.edit().putInt("new", 2).remove("old").clear();
+        assertEquals(-1, store.getInt("new", -1));
+        assertEquals(1, store.getInt("old", -1));
+
+        assertTrue(editor.commit());
+        assertEquals(2, store.getInt("new", -1));
+        assertFalse(store.contains("old"));
+    }
+
+    @Test
+    public void clearIsDoneBeforeThePutsOnCommit() {
+        assertTrue(store.edit().putInt("new", 2).clear().commit());
+        assertFalse(store.contains("old"));
+        assertEquals(2, store.getInt("new", -1));
+        assertEquals(1, store.getAll().size());
+    }
+
+    @Test
+    public void clearIsDoneBeforeThePutsOnApply() {
+        store.edit().putInt("new", 2).clear().apply();
+        assertFalse(store.contains("old"));
+        assertEquals(2, store.getInt("new", -1));
+        assertEquals(1, store.getAll().size());
+    }
+
+    @Test
+    public void clearKeepsTheSideFilesOfThePuts() throws Exception {
+        File directory = folder.newFolder("blobs");
+        NPreferencesStore blobs = new NPreferencesStore.Builder(new BenchmarkContext(folder.getRoot())).name("blobs").password(PASSWORD)
+                .blobs(directory, 16).build();
+        byte[] bytes = new byte[4096];
+        new Random(1).nextBytes(bytes);
+
+        assertTrue(blobs.edit().putBytes("blob", bytes).clear().commit());
+        assertArrayEquals(bytes, blobs.getBytes("blob", null));
+    }
+}
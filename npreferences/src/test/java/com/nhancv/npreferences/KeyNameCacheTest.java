@@ -0,0 +1,88 @@
+package com.nhancv.npreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * The bounded cache of key names: a store with more keys than it holds names for drops one name at a time, and keeps its cached values.
+ */
+public class KeyNameCacheTest {
+
+    private static final String NAME = "names";
+    private static final String PASSWORD = "password";
+    //more than the 512 names a store keeps
+    private static final int KEYS = 600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BenchmarkContext context;
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        context = new BenchmarkContext(folder.getRoot());
+    }
+
+    @Test
+    public void keepsCachedValuesWhenNamesAreDropped() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        NPreferencesStore store = store().metrics(recorder).build();
+        NPreferences.EncryptedEditor editor = store.edit();
+        for (int i = 0; i < KEYS; i++) {
+            editor.putInt("key" + i, i);
+        }
+        editor.commit();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(i, store.getInt("key" + i, -1));
+        }
+
+        recorder.reset();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(i, store.getInt("key" + i, -1));
+        }
+        assertEquals(KEYS, recorder.getHitCount(MetricsListener.Cache.VALUE));
+        assertEquals(0, recorder.getMissCount(MetricsListener.Cache.VALUE));
+    }
+
+    @Test
+    public void keepsRecentlyUsedNames() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        NPreferencesStore store = new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD).metrics(recorder).build();
+        store.getInt("hot", 0);
+        recorder.reset();
+        for (int i = 0; i < KEYS; i++) {
+            store.getInt("key" + i, 0);
+            store.getInt("hot", 0);
+        }
+        //only the names seen for the first time were derived
+        assertEquals(KEYS, recorder.getMissCount(MetricsListener.Cache.KEY_NAME));
+        assertEquals(KEYS, recorder.getHitCount(MetricsListener.Cache.KEY_NAME));
+    }
+
+    @Test
+    public void changeOfAnotherWriterReachesValueWhoseNameWasDropped() {
+        NPreferencesStore reader = store().build();
+        NPreferencesStore writer = store().build();
+        writer.edit().putInt("key", 1).commit();
+        assertEquals(1, reader.getInt("key", -1));
+        //push the name of key out of the cache of the reader
+        for (int i = 0; i < KEYS; i++) {
+            reader.getInt("other" + i, 0);
+        }
+
+        writer.edit().putInt("key", 2).commit();
+        assertEquals(2, reader.getInt("key", -1));
+    }
+
+    private NPreferencesStore.Builder store() {
+        return new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD).cacheEnabled(true);
+    }
+}
@@ -0,0 +1,132 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hashed key names, see {@link NPreferencesStore.Builder#hashedKeyNames(boolean)}: probing past names held by other keys, and the migration from and
+ * back to encrypted names.
+ */
+public class KeyNamesTest {
+
+    private static final String NAME = "hashed";
+    private static final String PASSWORD = "password";
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BenchmarkContext context;
+    private SharedPreferences backing;
+    private KeyNames keyNames;
+
+    @Before
+    public void setUp() throws Exception {
+        Pkcs7PaddingProvider.install();
+        context = new BenchmarkContext(folder.getRoot());
+        backing = context.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+        keyNames = new KeyNames(AESCrypt.getKey(PASSWORD));
+    }
+
+    @Test
+    public void namesHaveOneShape() {
+        Set<String> names = new HashSet<>();
+        for (int probe = 0; probe < KeyNames.MAX_PROBES; probe++) {
+            String name = keyNames.name("key", probe);
+            assertEquals(KeyNames.NAME_LENGTH, name.length());
+            assertTrue(KeyNames.isHashed(name));
+            assertEquals(probe, keyNames.probeOf(name, "key"));
+            names.add(name);
+        }
+        assertEquals(KeyNames.MAX_PROBES, names.size());
+        assertEquals(-1, keyNames.probeOf(keyNames.name("key", 0), "other"));
+        //a key ending in a probe number is not another probe of the shorter key
+        assertNotEquals(keyNames.name("key", 1), keyNames.name("key\u0001", 0));
+        assertEquals(-1, keyNames.probeOf(keyNames.name("key", 1), "key\u0001"));
+        assertFalse(KeyNames.isHashed("short"));
+    }
+
+    @Test
+    public void probesPastNameOfAnotherKey() throws Exception {
+        NPreferencesStore store = hashedStore();
+        store.edit().putString("x", "foreign").commit();
+        //move the entry of x under the first name of y, as if both names collided
+        String foreign = backing.getString(keyNames.name("x", 0), null);
+        backing.edit().remove(keyNames.name("x", 0)).putString(keyNames.name("y", 0), foreign).commit();
+
+        NPreferencesStore collided = hashedStore();
+        assertNull(collided.getString("y", null));
+        assertFalse(collided.getAll().containsKey("y"));
+        assertTrue(collided.edit().putString("y", "mine").commit());
+
+        assertEquals(foreign, backing.getString(keyNames.name("y", 0), null));
+        assertTrue(backing.contains(keyNames.name("y", 1)));
+        assertEquals("mine", hashedStore().getString("y", null));
+    }
+
+    @Test
+    public void migratesBetweenEncryptedAndHashedNames() throws Exception {
+        NPreferencesStore encrypted = new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD).build();
+        NPreferences.EncryptedEditor editor = encrypted.edit();
+        for (int i = 0; i < 100; i++) {
+            editor.putInt("key" + i, i);
+        }
+        editor.putString("\u043a\u043b\u044e\u0447", "\u0437\u043d\u0430\u0447").commit();
+        assertEquals(0, hashedNames());
+
+        NPreferencesStore hashed = encrypted.buildUpon().hashedKeyNames(true).build();
+        encrypted.close();
+        //readable while the entries move
+        assertEquals(50, hashed.getInt("key50", -1));
+        await(hashed);
+        assertEquals(backing.getAll().size() - 1, hashedNames());
+        assertTrue(backing.contains(NPreferencesStore.MIGRATION_STATE));
+        Map<String, Object> all = hashedStore().getAll();
+        assertEquals(101, all.size());
+        assertEquals(99, all.get("key99"));
+        assertEquals("\u0437\u043d\u0430\u0447", all.get("\u043a\u043b\u044e\u0447"));
+
+        NPreferencesStore back = hashed.buildUpon().hashedKeyNames(false).build();
+        hashed.close();
+        await(back);
+        assertEquals(0, hashedNames());
+        assertEquals(101, back.getAll().size());
+        assertEquals(99, back.getInt("key99", -1));
+    }
+
+    private NPreferencesStore hashedStore() throws InterruptedException {
+        NPreferencesStore store = new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD).hashedKeyNames(true).build();
+        await(store);
+        return store;
+    }
+
+    private int hashedNames() {
+        int count = 0;
+        for (String name : backing.getAll().keySet()) {
+            if (KeyNames.isHashed(name)) count++;
+        }
+        return count;
+    }
+
+    private static void await(NPreferencesStore store) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (store.isRotating()) {
+            assertTrue("migration timed out", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.nhancv.npreferences;
+
+import android.content.SharedPreferences;
+
+import com.nhancv.npreferences.benchmark.InMemorySharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay of the log written by {@link LogPreferences}: every test reads the file back through a copy, as instances are shared per file.
+ */
+public class LogPreferencesTest {
+
+    //magic in front of the first record, then the length and checksum of every record
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int copies;
+
+    @Test
+    public void replaysEveryType() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        Set<String> values = new HashSet<>(Arrays.asList("x", "y"));
+        assertTrue(preferences.edit().putString("string", "\u00e9t\u00e9").putInt("int", 1).putLong("long", 1L << 40).putFloat("float", 2.5f)
+                .putBoolean("boolean", true).putStringSet("set", values).putInt("removed", 3).commit());
+        assertTrue(preferences.edit().remove("removed").putInt("int", 2).commit());
+
+        LogPreferences reloaded = reload(file);
+        assertEquals(preferences.getAll(), reloaded.getAll());
+        assertEquals("\u00e9t\u00e9", reloaded.getString("string", null));
+        assertEquals(2, reloaded.getInt("int", 0));
+        assertEquals(1L << 40, reloaded.getLong("long", 0));
+        assertEquals(2.5f, reloaded.getFloat("float", 0), 0);
+        assertTrue(reloaded.getBoolean("boolean", false));
+        assertEquals(values, reloaded.getStringSet("set", null));
+        assertFalse(reloaded.contains("removed"));
+    }
+
+    @Test
+    public void clearRunsBeforeTheChangesOfItsCommit() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        preferences.edit().putString("x", "1").putString("y", "2").commit();
+        preferences.edit().putString("z", "3").clear().remove("x").commit();
+
+        assertEquals(Collections.singletonMap("z", "3"), preferences.getAll());
+        assertEquals(Collections.singletonMap("z", "3"), reload(file).getAll());
+    }
+
+    @Test
+    public void readersNeverSeeHalfACommit() throws Exception {
+        final LogPreferences preferences = LogPreferences.get(newLog());
+        preferences.edit().putInt("a", 0).putInt("b", 0).commit();
+        final AtomicReference<String> torn = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get() && torn.get() == null) {
+                    Map<String, ?> all = preferences.getAll();
+                    if (all.size() != 2 || !all.get("a").equals(all.get("b"))) torn.set(all.toString());
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 1; i < 2000; i++) {
+                SharedPreferences.Editor editor = preferences.edit();
+                //every other commit clears the log first, which must not show an empty store either
+                if (i % 2 == 0) editor.clear();
+                editor.putInt("a", i).putInt("b", i).apply();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        assertNull(torn.get());
+    }
+
+    @Test
+    public void dropsCorruptTail() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        preferences.edit().putString("a", "1").commit();
+        preferences.edit().putString("b", "2").putString("c", "3").remove("a").commit();
+
+        File corrupt = copy(file);
+        int second = secondRecord(corrupt);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(corrupt, "rw");
+        try {
+            randomAccessFile.seek(second + RECORD_HEADER_SIZE + 5);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(second + RECORD_HEADER_SIZE + 5);
+            randomAccessFile.write(value ^ 1);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        //the whole second commit is dropped, not only the change the flipped byte belongs to
+        assertEquals(Collections.singletonMap("a", "1"), LogPreferences.get(corrupt).getAll());
+    }
+
+    @Test
+    public void dropsTruncatedTailAndAppendsAfterIt() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        preferences.edit().putString("a", "1").commit();
+        preferences.edit().putString("b", "2").putString("c", "3").clear().commit();
+
+        //a crash in the middle of the second commit: its record only partly reached the disk
+        File truncated = copy(file);
+        int second = secondRecord(truncated);
+        int length = readInt(truncated, second);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(truncated, "rw");
+        try {
+            randomAccessFile.seek(second + RECORD_HEADER_SIZE + length / 2);
+            randomAccessFile.write(new byte[length - length / 2]);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        LogPreferences recovered = LogPreferences.get(truncated);
+        assertEquals(Collections.singletonMap("a", "1"), recovered.getAll());
+        assertTrue(recovered.edit().putString("d", "4").commit());
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("a", "1");
+        expected.put("d", "4");
+        assertEquals(expected, reload(truncated).getAll());
+    }
+
+    @Test
+    public void dropsRecordLongerThanTheLog() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        preferences.edit().putString("a", "1").commit();
+        preferences.edit().putString("b", "2").commit();
+
+        File torn = copy(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(torn, "rw");
+        try {
+            randomAccessFile.seek(secondRecord(torn));
+            randomAccessFile.writeInt(Integer.MAX_VALUE - RECORD_HEADER_SIZE);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertEquals(Collections.singletonMap("a", "1"), LogPreferences.get(torn).getAll());
+    }
+
+    @Test
+    public void adoptMovesEntriesTheLogLacks() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        preferences.edit().putString("both", "log").commit();
+        SharedPreferences source = new InMemorySharedPreferences();
+        source.edit().putString("both", "xml").putInt("only in xml", 1).commit();
+
+        assertTrue(preferences.adopt(source));
+
+        assertTrue(source.getAll().isEmpty());
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("both", "log");
+        expected.put("only in xml", 1);
+        assertEquals(expected, preferences.getAll());
+        assertEquals(expected, reload(file).getAll());
+    }
+
+    @Test
+    public void compactionKeepsLiveEntries() throws Exception {
+        File file = newLog();
+        LogPreferences preferences = LogPreferences.get(file);
+        //compaction only runs when the test asks for it
+        preferences.setCompactionThreshold(1f);
+        for (int i = 0; i < 2000; i++) {
+            preferences.edit().putInt("counter", i).putString("key" + i % 10, "value " + i).apply();
+        }
+        preferences.edit().remove("key0").commit();
+        long before = file.length();
+
+        preferences.compact();
+
+        assertTrue(file.length() < before);
+        assertEquals(1999, preferences.getInt("counter", 0));
+        assertTrue(preferences.edit().putString("after", "compaction").commit());
+        LogPreferences reloaded = reload(file);
+        assertEquals(preferences.getAll(), reloaded.getAll());
+        assertEquals(11, reloaded.getAll().size());
+        assertEquals("value 1999", reloaded.getString("key9", null));
+        assertFalse(reloaded.contains("key0"));
+    }
+
+    private File newLog() {
+        return new File(folder.getRoot(), "preferences" + copies++ + ".nplog");
+    }
+
+    /**
+     * @return A new instance reading a copy of the log
+     */
+    private LogPreferences reload(File file) throws IOException {
+        return LogPreferences.get(copy(file));
+    }
+
+    private File copy(File file) throws IOException {
+        File copy = newLog();
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new FileOutputStream(copy);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return copy;
+    }
+
+    private static int secondRecord(File file) throws IOException {
+        return HEADER_SIZE + RECORD_HEADER_SIZE + readInt(file, HEADER_SIZE);
+    }
+
+    private static int readInt(File file, int offset) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.seek(offset);
+            return randomAccessFile.readInt();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
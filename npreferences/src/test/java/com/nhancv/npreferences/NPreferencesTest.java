@@ -0,0 +1,72 @@
+package com.nhancv.npreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * The static setters of {@link NPreferences}: options that only change how values are written apply to the default store in place, the others
+ * rebuild it once however many of them are set.
+ */
+public class NPreferencesTest {
+
+    private static final String NAME = "facade";
+    private static final String PASSWORD = "password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        NPreferences.init(NAME, new BenchmarkContext(folder.getRoot()), PASSWORD);
+    }
+
+    @After
+    public void tearDown() {
+        NPreferences.setCompressionThreshold(-1);
+        NPreferences.setMetricsListener(null);
+        NPreferences.setCacheEnabled(false);
+        NPreferences.setSnapshotEnabled(false);
+        NPreferences.setDefault(null);
+    }
+
+    @Test
+    public void writeOptionsKeepTheStore() {
+        NPreferencesStore store = NPreferences.getDefault();
+        NPreferencesStore.Key key = store.key("json");
+        MetricsRecorder recorder = new MetricsRecorder();
+
+        NPreferences.setCompressionThreshold(16);
+        NPreferences.setMetricsListener(recorder);
+        NPreferences.setDebug(false);
+
+        assertSame(store, NPreferences.getDefault());
+        String value = new String(new char[1000]).replace('\0', 'z');
+        assertTrue(NPreferences.edit().putString("json", value).commit());
+        assertEquals(value, store.getString(key, null));
+        assertTrue(recorder.getCount(MetricsListener.Operation.COMPRESSION) > 0);
+    }
+
+    @Test
+    public void storeOptionsRebuildOnce() {
+        NPreferencesStore store = NPreferences.getDefault();
+        NPreferences.edit().putInt("int", 1).commit();
+
+        NPreferences.setCacheEnabled(true);
+        NPreferences.setSnapshotEnabled(true);
+        NPreferences.setCompressionThreshold(16);
+
+        NPreferencesStore rebuilt = NPreferences.getDefault();
+        assertNotSame(store, rebuilt);
+        assertSame(rebuilt, NPreferences.getDefault());
+        assertEquals(1, NPreferences.getInt("int", 0));
+    }
+}
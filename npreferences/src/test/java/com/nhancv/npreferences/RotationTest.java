@@ -0,0 +1,225 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Password rotation: entries not moved yet are read with the previous password, an interrupted rotation resumes from its state, and side files are
+ * encrypted again with the new password.
+ */
+public class RotationTest {
+
+    private static final String NAME = "rotated";
+    private static final String OLD_PASSWORD = "old password";
+    private static final String NEW_PASSWORD = "new password";
+    //a few batches of 64 entries
+    private static final int ENTRIES = 200;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BenchmarkContext context;
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        context = new BenchmarkContext(folder.getRoot());
+        fill(ENTRIES);
+    }
+
+    @Test
+    public void readsFallBackToPreviousPassword() throws Exception {
+        NPreferencesStore rotated;
+        WriterBlocker blocker = WriterBlocker.block();
+        try {
+            rotated = store(NEW_PASSWORD).previousPassword(OLD_PASSWORD).build();
+            assertTrue(rotated.isRotating());
+            //nothing is moved while the writer is held
+            assertEquals(0, store(NEW_PASSWORD).build().getAll().size());
+            for (int i = 0; i < ENTRIES; i++) {
+                assertTrue(rotated.contains("key" + i));
+                assertEquals(i, rotated.getInt("key" + i, -1));
+            }
+            assertEquals(ENTRIES, rotated.getAll().size());
+            //written with the new password, the entry under the previous one is dropped rather than moved over it
+            assertTrue(rotated.edit().putInt("key0", -5).commit());
+            assertEquals(-5, rotated.getInt("key0", 0));
+        } finally {
+            blocker.release();
+        }
+        await(rotated);
+
+        NPreferencesStore current = store(NEW_PASSWORD).build();
+        assertFalse(current.isRotating());
+        assertEquals(ENTRIES, current.getAll().size());
+        assertEquals(-5, current.getInt("key0", 0));
+        for (int i = 1; i < ENTRIES; i++) {
+            assertEquals(i, current.getInt("key" + i, -1));
+        }
+        assertEquals(0, store(OLD_PASSWORD).build().getAll().size());
+    }
+
+    @Test
+    public void resumesFromItsState() throws Exception {
+        WriterBlocker first = WriterBlocker.block();
+        NPreferencesStore interrupted = store(NEW_PASSWORD).previousPassword(OLD_PASSWORD).build();
+        //queued behind the first batch, which queues the next one behind it
+        WriterBlocker second = WriterBlocker.enqueue();
+        first.release();
+        second.awaitBlocked();
+        interrupted.close();
+        second.release();
+
+        assertEquals(64, store(NEW_PASSWORD).build().getAll().size());
+        assertEquals("64:running", progress(interrupted));
+
+        NPreferencesStore resumed = store(NEW_PASSWORD).previousPassword(OLD_PASSWORD).build();
+        await(resumed);
+        assertEquals(ENTRIES + ":done", progress(resumed));
+        NPreferencesStore current = store(NEW_PASSWORD).build();
+        assertEquals(ENTRIES, current.getAll().size());
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals(i, current.getInt("key" + i, -1));
+        }
+
+        //the finished state is not taken for a rotation to redo
+        assertFalse(store(NEW_PASSWORD).previousPassword(OLD_PASSWORD).build().isRotating());
+    }
+
+    @Test
+    public void movesSideFiles() throws Exception {
+        File directory = folder.newFolder("blobs");
+        byte[] bytes = new byte[4096];
+        new Random(1).nextBytes(bytes);
+        NPreferencesStore old = store(OLD_PASSWORD).blobs(directory, 16).build();
+        assertTrue(old.edit().putBytes("blob", bytes).commit());
+        old.close();
+        Set<String> oldFiles = new HashSet<>(Arrays.asList(directory.list()));
+        assertFalse(oldFiles.isEmpty());
+
+        NPreferencesStore rotated = store(NEW_PASSWORD).previousPassword(OLD_PASSWORD).blobs(directory, 16).build();
+        await(rotated);
+
+        assertArrayEquals(bytes, store(NEW_PASSWORD).blobs(directory, 16).build().getBytes("blob", null));
+        String[] files = directory.list();
+        assertEquals(oldFiles.size(), files.length);
+        for (String file : files) {
+            assertFalse(file, oldFiles.contains(file));
+        }
+    }
+
+    @Test
+    public void readsDuringRotationFindEveryEntry() throws Exception {
+        //enough batches for reads to overlap many of them
+        fill(2000);
+        final NPreferencesStore rotated = store(NEW_PASSWORD).previousPassword(OLD_PASSWORD).build();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (rotated.isRotating() && failure.get() == null) {
+                    for (int i = 0; i < 2000; i += 13) {
+                        if (rotated.getInt("key" + i, -1) != i) failure.set("get key" + i);
+                        if (!rotated.contains("key" + i)) failure.set("contains key" + i);
+                    }
+                    int size = rotated.getAll().size();
+                    if (size != 2000) failure.set("getAll returned " + size + " entries");
+                }
+            }
+        });
+        reader.start();
+        await(rotated);
+        reader.join(TIMEOUT_MILLIS);
+        assertNull(failure.get());
+    }
+
+    private void fill(int entries) {
+        NPreferencesStore old = store(OLD_PASSWORD).build();
+        NPreferences.EncryptedEditor editor = old.edit();
+        for (int i = 0; i < entries; i++) {
+            editor.putInt("key" + i, i);
+        }
+        assertTrue(editor.commit());
+        old.close();
+    }
+
+    /**
+     * @return Returns the entries moved and whether the rotation is done, as saved in its state.
+     */
+    private String progress(NPreferencesStore store) {
+        SharedPreferences backing = context.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+        String[] state = store.decryptString(backing.getString(NPreferencesStore.MIGRATION_STATE, null)).split(":");
+        return state[1] + ":" + state[2];
+    }
+
+    private NPreferencesStore.Builder store(String password) {
+        return new NPreferencesStore.Builder(context).name(NAME).password(password);
+    }
+
+    private static void await(NPreferencesStore store) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (store.isRotating()) {
+            assertTrue("rotation did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A task holding the background writer, which runs the batches of every rotation, until released.
+     */
+    private static final class WriterBlocker implements Runnable {
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        static WriterBlocker block() throws InterruptedException {
+            WriterBlocker blocker = enqueue();
+            blocker.awaitBlocked();
+            return blocker;
+        }
+
+        static WriterBlocker enqueue() {
+            WriterBlocker blocker = new WriterBlocker();
+            NPreferencesStore.SharedThreads.WRITER.execute(blocker);
+            return blocker;
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public void run() {
+            blocked.countDown();
+            try {
+                released.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
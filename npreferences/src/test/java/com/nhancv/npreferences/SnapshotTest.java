@@ -0,0 +1,127 @@
+package com.nhancv.npreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshot reads: the store is decrypted once, writes publish a new snapshot in a single swap, and changes of other writers reach it.
+ */
+public class SnapshotTest {
+
+    private static final String NAME = "snapshot";
+    private static final String PASSWORD = "password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BenchmarkContext context;
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        context = new BenchmarkContext(folder.getRoot());
+    }
+
+    @Test
+    public void withLeavesThePublishedSnapshotUnchanged() {
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put("key" + i, i);
+        }
+        Snapshot published = Snapshot.of(values);
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("key0", -1);
+        changes.put("key1", null);
+        changes.put("new", "value");
+        Snapshot next = published.with(changes);
+
+        assertEquals(100, published.size());
+        assertEquals(0, published.get("key0"));
+        assertEquals(1, published.get("key1"));
+        assertNull(published.get("new"));
+        assertEquals(100, next.size());
+        assertEquals(-1, next.get("key0"));
+        assertNull(next.get("key1"));
+        assertEquals("value", next.get("new"));
+        assertEquals(2, next.get("key2"));
+        assertSame(next, next.with(Collections.<String, Object>emptyMap()));
+    }
+
+    @Test
+    public void writesKeepTheSnapshot() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        NPreferencesStore store = store().metrics(recorder).build();
+        assertTrue(store.edit().putInt("a", 1).commit());
+        assertEquals(1, store.getInt("a", -1));
+        assertEquals(1, recorder.getMissCount(MetricsListener.Cache.SNAPSHOT));
+
+        assertTrue(store.edit().putInt("a", 2).putString("b", "value").commit());
+        store.edit().remove("a").apply();
+        assertEquals(-1, store.getInt("a", -1));
+        assertEquals("value", store.getString("b", null));
+        assertEquals(1, store.getAll().size());
+        //published by the writes, not decrypted again
+        assertEquals(1, recorder.getMissCount(MetricsListener.Cache.SNAPSHOT));
+    }
+
+    @Test
+    public void changesOfAnotherWriterReachTheSnapshot() {
+        NPreferencesStore reader = store().build();
+        NPreferencesStore writer = store().build();
+        assertTrue(writer.edit().putInt("a", 1).commit());
+        assertEquals(1, reader.getInt("a", -1));
+
+        assertTrue(writer.edit().putInt("a", 2).commit());
+        assertEquals(2, reader.getInt("a", -1));
+        assertTrue(writer.edit().putInt("b", 3).commit());
+        assertEquals(3, reader.getInt("b", -1));
+        assertTrue(writer.edit().clear().commit());
+        assertFalse(reader.contains("a"));
+        assertTrue(reader.getAll().isEmpty());
+    }
+
+    @Test
+    public void readersNeverSeeHalfACommit() throws Exception {
+        final NPreferencesStore store = store().build();
+        assertTrue(store.edit().putInt("a", 0).putInt("b", 0).commit());
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final boolean[] done = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (failure.get() == null) {
+                    synchronized (done) {
+                        if (done[0]) return;
+                    }
+                    Map<String, ?> all = store.getAll();
+                    if (all.size() != 2 || !all.get("a").equals(all.get("b"))) failure.set("read " + all);
+                }
+            }
+        });
+        reader.start();
+        for (int i = 1; i <= 2000 && failure.get() == null; i++) {
+            store.edit().putInt("a", i).putInt("b", i).apply();
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    private NPreferencesStore.Builder store() {
+        return new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD).snapshotReads(true);
+    }
+}
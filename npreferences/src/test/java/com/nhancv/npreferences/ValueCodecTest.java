@@ -0,0 +1,158 @@
+package com.nhancv.npreferences;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the binary value format, and the values it must refuse.
+ */
+public class ValueCodecTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void roundTripsEveryType() throws Exception {
+        byte[] string = ValueCodec.encodeString("\u00e9t\u00e9");
+        assertEquals(ValueCodec.TYPE_STRING, ValueCodec.typeOf(string, string.length));
+        assertEquals("\u00e9t\u00e9", ValueCodec.decodeString(string, string.length, null));
+
+        byte[] integer = ValueCodec.encodeInt(Integer.MIN_VALUE);
+        assertEquals(Integer.MIN_VALUE, ValueCodec.decodeInt(integer, integer.length, 0));
+        byte[] longValue = ValueCodec.encodeLong(-1L << 40);
+        assertEquals(-1L << 40, ValueCodec.decodeLong(longValue, longValue.length, 0));
+        byte[] floatValue = ValueCodec.encodeFloat(-2.5f);
+        assertEquals(-2.5f, ValueCodec.decodeFloat(floatValue, floatValue.length, 0), 0);
+        byte[] booleanValue = ValueCodec.encodeBoolean(true);
+        assertTrue(ValueCodec.decodeBoolean(booleanValue, booleanValue.length, false));
+    }
+
+    @Test
+    public void roundTripsBytesAndBlobs() {
+        byte[] bytes = {0, 1, (byte) 0xFF, 2};
+        byte[] encoded = ValueCodec.encodeBytes(bytes, 1, 2);
+        assertArrayEquals(new byte[]{1, (byte) 0xFF}, ValueCodec.decodeBytes(encoded, encoded.length));
+        assertArrayEquals(new byte[]{1, (byte) 0xFF}, (byte[]) ValueCodec.decodeObject(encoded, encoded.length));
+
+        byte[] blob = ValueCodec.encodeBlob("file.bin", 1L << 33);
+        assertEquals("file.bin", ValueCodec.blobName(blob, blob.length));
+        assertEquals(1L << 33, ValueCodec.blobLength(blob));
+        assertFalse(ValueCodec.isInline(blob, blob.length));
+
+        byte[] string = ValueCodec.encodeString("text");
+        assertNull(ValueCodec.decodeBytes(string, string.length));
+        assertNull(ValueCodec.blobName(string, string.length));
+    }
+
+    @Test
+    public void convertsBetweenTypes() {
+        byte[] integer = ValueCodec.encodeInt(42);
+        assertEquals("42", ValueCodec.decodeString(integer, integer.length, null));
+        assertEquals(42L, ValueCodec.decodeLong(integer, integer.length, 0));
+        assertEquals(42L, ValueCodec.decode(integer, integer.length, 0L, null));
+        assertEquals(42, ValueCodec.decodeObject(integer, integer.length));
+        assertEquals(7, ValueCodec.convert("7", 0, -1));
+        assertEquals(-1, ValueCodec.convert("seven", 0, -1));
+    }
+
+    @Test
+    public void readsTextOfOlderVersions() {
+        byte[] text = "42".getBytes(UTF_8);
+        assertEquals(-1, ValueCodec.typeOf(text, text.length));
+        assertEquals(42, ValueCodec.decodeInt(text, text.length, 0));
+        assertEquals("42", ValueCodec.decodeObject(text, text.length));
+        assertTrue(ValueCodec.isInline(text, text.length));
+        assertEquals("default", ValueCodec.decodeString(new byte[0], 0, "default"));
+    }
+
+    @Test
+    public void rejectsBadHeaders() {
+        byte[] integer = ValueCodec.encodeInt(1);
+        //another version
+        byte[] version = integer.clone();
+        version[1] = (byte) (2 << 4 | ValueCodec.TYPE_INT);
+        //unknown type
+        byte[] type = integer.clone();
+        type[1] = (byte) (1 << 4 | 0x0F);
+        //payload shorter than the type
+        byte[] truncated = Arrays.copyOf(integer, integer.length - 1);
+        byte[] magicOnly = {(byte) 0xFF};
+
+        for (byte[] value : new byte[][]{version, type, truncated, magicOnly}) {
+            assertEquals(-2, ValueCodec.typeOf(value, value.length));
+            assertEquals(-3, ValueCodec.decodeInt(value, value.length, -3));
+            assertEquals("default", ValueCodec.decodeString(value, value.length, "default"));
+            assertNull(ValueCodec.decodeObject(value, value.length));
+            assertFalse(ValueCodec.isInline(value, value.length));
+        }
+    }
+
+    @Test
+    public void deflateRoundTrips() throws Exception {
+        byte[] value = ValueCodec.encodeString(new String(new char[1000]).replace('\0', 'z'));
+        byte[] deflated = new byte[value.length];
+        int length = ValueCodec.deflate(value, new Deflater(), deflated);
+        assertTrue(length > 0 && length < value.length);
+        assertEquals(ValueCodec.TYPE_DEFLATED, ValueCodec.typeOf(deflated, length));
+        assertEquals(value.length, ValueCodec.inflatedLength(deflated, length));
+
+        byte[] inflated = new byte[value.length];
+        assertEquals(value.length, ValueCodec.inflate(deflated, length, new Inflater(), inflated));
+        assertArrayEquals(value, inflated);
+
+        byte[] string = ValueCodec.encodeString("text");
+        assertEquals(-1, ValueCodec.inflatedLength(string, string.length));
+    }
+
+    @Test
+    public void deflateSkipsValuesThatDoNotShrink() {
+        byte[] value = ValueCodec.encodeInt(1);
+        assertEquals(-1, ValueCodec.deflate(value, new Deflater(), new byte[value.length]));
+    }
+
+    @Test
+    public void capsInflatedLength() {
+        byte[] value = ValueCodec.encodeString(new String(new char[100000]).replace('\0', 'z'));
+        byte[] deflated = new byte[value.length];
+        int length = ValueCodec.deflate(value, new Deflater(), deflated);
+        assertTrue(ValueCodec.inflatedLength(deflated, length) <= ValueCodec.maxInflatedLength(length));
+
+        //a header declaring more than its stream can hold
+        assertEquals(0, ValueCodec.maxInflatedLength(2 + 4));
+        assertEquals(16 * 1032, ValueCodec.maxInflatedLength(2 + 4 + 16));
+        assertEquals(ValueCodec.MAX_INFLATED_LENGTH, ValueCodec.maxInflatedLength(Integer.MAX_VALUE));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void inflateRejectsCorruptStream() throws Exception {
+        byte[] value = ValueCodec.encodeString(new String(new char[1000]).replace('\0', 'z'));
+        byte[] deflated = new byte[value.length];
+        int length = ValueCodec.deflate(value, new Deflater(), deflated);
+        //keep the header, the declared length and the zlib header, but none of the compressed data
+        assertTrue(length > 8);
+        ValueCodec.inflate(deflated, 8, new Inflater(), new byte[value.length]);
+    }
+
+    @Test
+    public void appendedKeyRoundTrips() {
+        byte[] value = ValueCodec.encodeInt(1);
+        for (String key : new String[]{"key", "\u043a\u043b\u044e\u0447", ""}) {
+            byte[] withKey = ValueCodec.appendKey(value, key);
+            int start = ValueCodec.keyStart(withKey, withKey.length);
+            assertEquals(value.length, start);
+            assertEquals(key, ValueCodec.key(withKey, start, withKey.length));
+            assertTrue(ValueCodec.hasKey(withKey, start, withKey.length, key));
+            assertFalse(ValueCodec.hasKey(withKey, start, withKey.length, key + "x"));
+        }
+        byte[] withKey = ValueCodec.appendKey(value, "key");
+        assertFalse(ValueCodec.hasKey(withKey, value.length, withKey.length, "kez"));
+        //a length running past the start of the value
+        assertEquals(-1, ValueCodec.keyStart(new byte[]{0, 0x7F}, 2));
+    }
+}
@@ -0,0 +1,118 @@
+package com.nhancv.npreferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.nhancv.npreferences.benchmark.BenchmarkContext;
+import com.nhancv.npreferences.benchmark.Pkcs7PaddingProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write-behind mode: changes of a key staged before a flush are written once, readers see them before they are written, and an export writes them
+ * first.
+ */
+public class WriteQueueTest {
+
+    private static final String NAME = "staged";
+    private static final String PASSWORD = "password";
+    //long enough for the background writer to never flush during a test
+    private static final long WINDOW_MILLIS = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BenchmarkContext context;
+
+    @Before
+    public void setUp() {
+        Pkcs7PaddingProvider.install();
+        context = new BenchmarkContext(folder.getRoot());
+    }
+
+    @Test
+    public void coalescesChangesOfAKey() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        NPreferencesStore store = writeBehind().metrics(recorder).build();
+        for (int i = 0; i < 100; i++) {
+            store.edit().putInt("counter", i).apply();
+        }
+        store.edit().putString("other", "value").apply();
+        assertTrue(backing().getAll().isEmpty());
+        assertEquals(0, recorder.getCount(MetricsListener.Operation.COMMIT));
+
+        assertTrue(store.flush());
+        assertEquals(1, recorder.getCount(MetricsListener.Operation.COMMIT));
+        assertEquals(2, backing().getAll().size());
+        NPreferencesStore reader = store().build();
+        assertEquals(99, reader.getInt("counter", -1));
+        assertEquals("value", reader.getString("other", null));
+        store.close();
+    }
+
+    @Test
+    public void readsStagedChanges() {
+        NPreferencesStore reader = store().build();
+        assertTrue(reader.edit().putInt("kept", 1).putInt("removed", 2).commit());
+        NPreferencesStore store = writeBehind().build();
+
+        store.edit().putInt("added", 3).remove("removed").apply();
+        assertEquals(3, store.getInt("added", -1));
+        assertTrue(store.contains("added"));
+        assertEquals(-1, store.getInt("removed", -1));
+        assertFalse(store.contains("removed"));
+        Map<String, ?> all = store.getAll();
+        assertEquals(2, all.size());
+        assertEquals(1, all.get("kept"));
+        assertEquals(3, all.get("added"));
+        //not written yet
+        assertEquals(2, reader.getInt("removed", -1));
+        assertFalse(reader.contains("added"));
+
+        store.edit().putInt("after", 4).clear().apply();
+        assertEquals(-1, store.getInt("kept", -1));
+        assertFalse(store.contains("added"));
+        assertEquals(4, store.getInt("after", -1));
+        assertEquals(1, store.getAll().size());
+
+        assertTrue(store.flush());
+        assertEquals(1, reader.getAll().size());
+        assertEquals(4, reader.getInt("after", -1));
+        store.close();
+    }
+
+    @Test
+    public void exportWritesStagedChangesFirst() throws Exception {
+        NPreferencesStore store = writeBehind().build();
+        store.edit().putInt("staged", 1).apply();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, store.exportTo(out, "backup password"));
+        assertEquals(1, backing().getAll().size());
+
+        NPreferencesStore restored = new NPreferencesStore.Builder(context).name("restored").password(PASSWORD).build();
+        assertEquals(1, restored.importFrom(new ByteArrayInputStream(out.toByteArray()), "backup password"));
+        assertEquals(1, restored.getInt("staged", -1));
+        store.close();
+    }
+
+    private SharedPreferences backing() {
+        return context.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+    }
+
+    private NPreferencesStore.Builder writeBehind() {
+        return store().writeBehind(true, WINDOW_MILLIS);
+    }
+
+    private NPreferencesStore.Builder store() {
+        return new NPreferencesStore.Builder(context).name(NAME).password(PASSWORD);
+    }
+}